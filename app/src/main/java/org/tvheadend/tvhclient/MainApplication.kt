@@ -16,6 +16,7 @@ import io.fabric.sdk.android.Fabric
 import org.tvheadend.tvhclient.data.repository.AppRepository
 import org.tvheadend.tvhclient.di.component.DaggerMainApplicationComponent
 import org.tvheadend.tvhclient.di.component.MainApplicationComponent
+import org.tvheadend.tvhclient.di.module.ConnectionModule
 import org.tvheadend.tvhclient.di.module.ContextModule
 import org.tvheadend.tvhclient.di.module.RepositoryModule
 import org.tvheadend.tvhclient.di.module.SharedPreferencesModule
@@ -56,6 +57,7 @@ class MainApplication : MultiDexApplication(), OptionsProvider, BillingUpdatesLi
                 .contextModule(ContextModule(this))
                 .sharedPreferencesModule(SharedPreferencesModule())
                 .repositoryModule(RepositoryModule())
+                .connectionModule(ConnectionModule())
                 .build()
         component.inject(this)
 
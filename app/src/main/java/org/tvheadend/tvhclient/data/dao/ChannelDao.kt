@@ -35,6 +35,13 @@ interface ChannelDao {
             ORDER_BY)
     fun loadAllChannelsSync(sortOrder: Int): List<Channel>
 
+    @Query("SELECT c.* FROM channels AS c " +
+            " WHERE $CONNECTION_IS_ACTIVE" +
+            " AND c.id IN (SELECT channel_id FROM tags_and_channels WHERE tag_id IN (:tagIds)) " +
+            " GROUP BY c.id " +
+            ORDER_BY)
+    fun loadAllChannelsByTagSync(sortOrder: Int, tagIds: List<Int>): List<Channel>
+
     @Transaction
     @Query(CHANNEL_BASE_QUERY +
             " LEFT JOIN programs AS program ON program.start <= :time AND program.stop > :time AND program.channel_id = c.id " +
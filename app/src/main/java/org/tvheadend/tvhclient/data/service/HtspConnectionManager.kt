@@ -0,0 +1,437 @@
+package org.tvheadend.tvhclient.data.service
+
+import android.content.Context
+import android.content.SharedPreferences
+import android.os.SystemClock
+import org.tvheadend.htsp.HtspConnection
+import org.tvheadend.htsp.HtspConnectionStateListener
+import org.tvheadend.htsp.HtspEndpointSelector
+import org.tvheadend.htsp.HtspMessageListener
+import org.tvheadend.htsp.HtspRecordListener
+import org.tvheadend.htsp.HtspSchema
+import org.tvheadend.tvhclient.R
+import org.tvheadend.tvhclient.data.repository.AppRepository
+import org.tvheadend.tvhclient.ui.common.getNetworkId
+import timber.log.Timber
+import java.util.*
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import kotlin.math.min
+
+/**
+ * Shares a single authenticated connection to the server of the active connection
+ * between the service, the intent service and the players. Every user acquires a lease
+ * and releases it when it is done. The connection is opened with the first lease and
+ * closed when no lease was held for the idle timeout. Users that acquire a lease while
+ * the connection is already authenticated get the server status and the authenticated
+ * state replayed, so they can continue as if they had opened the connection themselves.
+ *
+ * When an authenticated connection breaks while leases are held, for example because the
+ * heartbeat was not answered, a new connection is opened after a randomized, exponentially
+ * growing delay. The leases are moved to the new connection and their users are informed
+ * about the state changes of it like for the first connection. Users that keep objects
+ * which hold the connection, like data sources, must recreate them once the connection
+ * of the lease was authenticated again. A user can also request a new connection, for example
+ * after the network changed, which replaces the current one in the same way.
+ *
+ * The server url may contain several urls of the same server, separated by commas. The
+ * connection is opened to the one with the lowest latency in the current network.
+ */
+class HtspConnectionManager(private val appContext: Context,
+                            private val sharedPreferences: SharedPreferences,
+                            private val appRepository: AppRepository) {
+
+    private val execService: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor()
+    private val random = Random()
+    private val endpointSelector = HtspEndpointSelector()
+    @Volatile
+    private var current: SharedConnection? = null
+    private var idleCloseFuture: ScheduledFuture<*>? = null
+
+    /**
+     * Returns a lease of the connection to the active server. A new connection is opened in the
+     * background if none exists, the connection details were changed or the connection failed.
+     * The listeners are informed about the state of the connection until the lease is released.
+     *
+     * @param name            Name of the user that is used for logging
+     * @param stateListener   Listener that is informed about the connection and authentication state
+     * @param messageListener Optional listener that receives all server messages
+     */
+    @Synchronized
+    fun acquire(name: String, stateListener: HtspConnectionStateListener, messageListener: HtspMessageListener? = null): Lease {
+        idleCloseFuture?.cancel(false)
+        idleCloseFuture = null
+
+        val connection = appRepository.connectionData.activeItem
+        val key = getConnectionKey()
+
+        var shared = current
+        var isNewConnection = false
+        if (shared == null || shared.key != key || !shared.isUsable) {
+            shared?.let {
+                it.reconnectFuture?.cancel(false)
+                if (it.leases.isEmpty()) {
+                    Timber.d("Closing unused connection before opening a new one")
+                    it.connection.closeConnection()
+                }
+            }
+            val connectionTimeout = Integer.valueOf(sharedPreferences.getString("connection_timeout", appContext.resources.getString(R.string.pref_default_connection_timeout))!!) * 1000
+            shared = SharedConnection(key, connection.username ?: "", connection.password ?: "", connection.serverUrl
+                    ?: "", connectionTimeout)
+            current = shared
+            isNewConnection = true
+        }
+
+        val lease = Lease(name, shared, stateListener, messageListener)
+        shared.leases.add(lease)
+        lease.attach(shared.connection)
+        Timber.d("Acquired connection lease for $name, ${shared.leases.size} leases are active")
+
+        if (isNewConnection) {
+            shared.open()
+        }
+        return lease
+    }
+
+    /**
+     * Returns a lease of a new connection to the active server. The current connection is closed,
+     * or if it is still used by other leases of the same server, it is replaced by a new one like
+     * after it failed. This is required by users that change the state of the connection on the
+     * server, like enabling the asynchronous metadata, which must not be done twice.
+     */
+    @Synchronized
+    fun acquireNewConnection(name: String, stateListener: HtspConnectionStateListener, messageListener: HtspMessageListener? = null): Lease {
+        current?.let { shared ->
+            shared.reconnectFuture?.cancel(false)
+            shared.reconnectFuture = null
+            if (shared.leases.isEmpty()) {
+                Timber.d("Closing unused connection to ${shared.url} to open a new one")
+                shared.connection.closeConnection()
+                current = null
+            } else if (shared.key == getConnectionKey()) {
+                Timber.d("Replacing connection to ${shared.url} that is used by ${shared.leases.size} leases")
+                shared.reconnectAttempt = 0
+                reconnect(shared)
+            }
+        }
+        return acquire(name, stateListener, messageListener)
+    }
+
+    private fun getConnectionKey(): String {
+        val connection = appRepository.connectionData.activeItem
+        return "${connection.id}:${connection.serverUrl}:${connection.username}:${connection.password}"
+    }
+
+    /**
+     * Returns the url with the lowest latency in the current network from the given
+     * list of urls that are separated by commas. The first url is returned in case
+     * none of them is reachable. This blocks until the urls were probed, unless the
+     * result for the current network is known already, so it must not be called
+     * from the main thread.
+     */
+    fun selectUrl(urls: String?): String {
+        val urlList = HtspEndpointSelector.parseUrls(urls)
+        if (urlList.size <= 1) {
+            return urlList.firstOrNull() ?: ""
+        }
+        endpointSelector.setNetworkId(getNetworkId(appContext))
+        val connectionTimeout = Integer.valueOf(sharedPreferences.getString("connection_timeout", appContext.resources.getString(R.string.pref_default_connection_timeout))!!) * 1000
+        return endpointSelector.select(urlList, connectionTimeout)?.url ?: urlList[0]
+    }
+
+    /**
+     * Returns the url that was selected for the given list of urls in the current network
+     * without probing them, or the first url if none was selected yet or it expired
+     */
+    fun getSelectedUrl(urls: String?): String {
+        val urlList = HtspEndpointSelector.parseUrls(urls)
+        if (urlList.size <= 1) {
+            return urlList.firstOrNull() ?: ""
+        }
+        endpointSelector.setNetworkId(getNetworkId(appContext))
+        return endpointSelector.getCached(urlList)?.url ?: urlList[0]
+    }
+
+    @Synchronized
+    private fun release(lease: Lease) {
+        if (!lease.detach()) {
+            return
+        }
+        val shared = lease.shared
+        shared.leases.remove(lease)
+        Timber.d("Released connection lease for ${lease.name}, ${shared.leases.size} leases are active")
+        if (shared.leases.isNotEmpty()) {
+            return
+        }
+        shared.reconnectFuture?.cancel(false)
+        shared.reconnectFuture = null
+        if (shared !== current) {
+            Timber.d("Closing replaced connection to ${shared.url}")
+            shared.connection.closeConnection()
+            return
+        }
+        Timber.d("Closing connection to ${shared.url} if it is not used within $IDLE_TIMEOUT ms")
+        idleCloseFuture = execService.schedule(Runnable { closeIdleConnection(shared) }, IDLE_TIMEOUT, TimeUnit.MILLISECONDS)
+    }
+
+    @Synchronized
+    private fun closeIdleConnection(shared: SharedConnection) {
+        if (shared.leases.isEmpty() && shared === current) {
+            Timber.d("Closing idle connection to ${shared.url}")
+            current = null
+            shared.connection.closeConnection()
+        }
+    }
+
+    /**
+     * Schedules a new connection in case the connection was authenticated before and is still used
+     */
+    @Synchronized
+    private fun scheduleReconnect(shared: SharedConnection) {
+        if (shared !== current || shared.leases.isEmpty() || !shared.wasAuthenticated || shared.reconnectFuture != null) {
+            return
+        }
+        // Full jitter, the delay is chosen randomly up to the exponentially growing limit
+        val maxDelay = min(RECONNECT_MAX_DELAY, RECONNECT_BASE_DELAY shl min(shared.reconnectAttempt, 16))
+        val delay = (random.nextDouble() * maxDelay).toLong()
+        shared.reconnectAttempt++
+        Timber.d("Connection to ${shared.url} failed, reconnecting in $delay ms, attempt ${shared.reconnectAttempt}")
+        shared.reconnectFuture = execService.schedule(Runnable { reconnect(shared) }, delay, TimeUnit.MILLISECONDS)
+    }
+
+    @Synchronized
+    private fun reconnect(shared: SharedConnection) {
+        shared.reconnectFuture = null
+        if (shared !== current || shared.leases.isEmpty()) {
+            return
+        }
+        val previousConnection = shared.connection
+        previousConnection.closeConnection()
+        shared.open()
+        Timber.d("Moving ${shared.leases.size} leases to the new connection")
+        shared.leases.forEach { it.moveTo(previousConnection, shared.connection) }
+    }
+
+    /**
+     * Connection that is shared by all leases. It keeps track if the connection failed so that
+     * the next lease opens a new one, or that a new one is opened for the existing leases.
+     */
+    internal inner class SharedConnection(val key: String,
+                                          private val username: String,
+                                          private val password: String,
+                                          val url: String,
+                                          private val connectionTimeout: Int) : HtspConnectionStateListener {
+
+        var connection = HtspConnection(username, password, url, connectionTimeout, this, null)
+        val leases = ArrayList<Lease>()
+        var reconnectAttempt = 0
+        var reconnectFuture: ScheduledFuture<*>? = null
+        @Volatile
+        var wasAuthenticated = false
+        @Volatile
+        private var isFailed = false
+        @Volatile
+        private var isOpened = false
+        private var isStarted = false
+
+        val isUsable: Boolean
+            get() = reconnectFuture != null || (!isFailed && (!isOpened || !connection.isNotConnected))
+
+        /**
+         * Opens a new connection in the background, the previous one must have been closed
+         */
+        fun open() {
+            if (isStarted) {
+                connection = HtspConnection(username, password, url, connectionTimeout, this, null)
+            }
+            isStarted = true
+            connection.setEndpointSelector(endpointSelector)
+            endpointSelector.setNetworkId(getNetworkId(appContext))
+            isFailed = false
+            isOpened = false
+            Timber.d("Opening new connection to $url")
+            val newConnection = connection
+            // Since this is blocking, spawn to a new thread
+            execService.execute {
+                if (newConnection !== connection || current !== this) {
+                    Timber.d("Not opening connection to $url, it was replaced before")
+                    return@execute
+                }
+                newConnection.openConnection()
+                isOpened = true
+                newConnection.authenticate()
+            }
+        }
+
+        override fun onConnectionStateChange(state: HtspConnection.ConnectionState) {
+            when (state) {
+                HtspConnection.ConnectionState.FAILED,
+                HtspConnection.ConnectionState.FAILED_INTERRUPTED,
+                HtspConnection.ConnectionState.FAILED_CONNECTING_TO_SERVER,
+                HtspConnection.ConnectionState.FAILED_UNRESOLVED_ADDRESS,
+                HtspConnection.ConnectionState.FAILED_EXCEPTION_OPENING_SOCKET -> {
+                    isFailed = true
+                    // Called from the connection, which must not wait for the lock of the manager
+                    execService.execute { scheduleReconnect(this) }
+                }
+                else -> {
+                }
+            }
+        }
+
+        override fun onAuthenticationStateChange(state: HtspConnection.AuthenticationState) {
+            when (state) {
+                HtspConnection.AuthenticationState.AUTHENTICATED -> {
+                    wasAuthenticated = true
+                    execService.execute { resetReconnectAttempts(this) }
+                }
+                HtspConnection.AuthenticationState.FAILED -> {
+                    isFailed = true
+                    execService.execute { scheduleReconnect(this) }
+                }
+                HtspConnection.AuthenticationState.FAILED_BAD_CREDENTIALS -> isFailed = true
+                else -> {
+                }
+            }
+        }
+    }
+
+    @Synchronized
+    private fun resetReconnectAttempts(shared: SharedConnection) {
+        shared.reconnectAttempt = 0
+    }
+
+    /**
+     * Access to the shared connection that forwards the state changes to the user until it is
+     * released. The authenticated state is only passed on once per connection, either when the
+     * connection was authenticated or right after the lease was acquired for an authenticated
+     * connection. Record listeners that are added via the lease are kept when the connection
+     * is replaced after it failed.
+     */
+    inner class Lease internal constructor(val name: String,
+                                           internal val shared: SharedConnection,
+                                           private val stateListener: HtspConnectionStateListener,
+                                           private val messageListener: HtspMessageListener?) : HtspConnectionStateListener {
+
+        val connection: HtspConnection
+            get() = shared.connection
+
+        private val acquireTime = SystemClock.elapsedRealtime()
+        private val recordListeners = ArrayList<Triple<HtspSchema, HtspRecordListener, Boolean>>()
+        private var isReleased = false
+        private var isServerStatusMissed = false
+        private var authenticatedConnection: HtspConnection? = null
+
+        /**
+         * Milliseconds from acquiring the lease until the connection was authenticated,
+         * or -1 if the connection is not yet ready
+         */
+        @Volatile
+        var timeToReady: Long = -1
+            private set
+
+        val isReady: Boolean
+            get() = timeToReady >= 0
+
+        internal fun attach(connection: HtspConnection) {
+            connection.addConnectionStateListener(this)
+            messageListener?.let { connection.addMessageListener(it) }
+            synchronized(this) {
+                recordListeners.forEach { connection.addRecordListener(it.first, it.second, it.third) }
+            }
+            // The server status is only sent once while authenticating
+            isServerStatusMissed = connection.serverStatus != null
+            if (connection.isAuthenticated) {
+                execService.execute { onAuthenticationStateChange(HtspConnection.AuthenticationState.AUTHENTICATED) }
+            }
+        }
+
+        private fun detach(connection: HtspConnection) {
+            connection.removeConnectionStateListener(this)
+            messageListener?.let { connection.removeMessageListener(it) }
+            synchronized(this) {
+                recordListeners.forEach { connection.removeRecordListener(it.first, it.second) }
+            }
+        }
+
+        internal fun detach(): Boolean {
+            synchronized(this) {
+                if (isReleased) {
+                    return false
+                }
+                isReleased = true
+            }
+            detach(shared.connection)
+            return true
+        }
+
+        internal fun moveTo(previousConnection: HtspConnection, connection: HtspConnection) {
+            detach(previousConnection)
+            attach(connection)
+        }
+
+        /**
+         * Adds the record listener to the connection. An exclusive listener takes the methods
+         * of the schema, so that they are no longer passed to the message listeners.
+         */
+        fun addRecordListener(schema: HtspSchema, listener: HtspRecordListener, exclusive: Boolean = false) {
+            synchronized(this) {
+                recordListeners.add(Triple(schema, listener, exclusive))
+            }
+            connection.addRecordListener(schema, listener, exclusive)
+        }
+
+        fun removeRecordListener(schema: HtspSchema, listener: HtspRecordListener) {
+            synchronized(this) {
+                recordListeners.removeAll { it.first === schema && it.second === listener }
+            }
+            connection.removeRecordListener(schema, listener)
+        }
+
+        fun release() {
+            this@HtspConnectionManager.release(this)
+        }
+
+        override fun onConnectionStateChange(state: HtspConnection.ConnectionState) {
+            synchronized(this) {
+                if (isReleased) {
+                    return
+                }
+            }
+            stateListener.onConnectionStateChange(state)
+        }
+
+        override fun onAuthenticationStateChange(state: HtspConnection.AuthenticationState) {
+            var serverStatusReplayRequired = false
+            val connection = shared.connection
+            synchronized(this) {
+                if (isReleased) {
+                    return
+                }
+                if (state == HtspConnection.AuthenticationState.AUTHENTICATED) {
+                    if (authenticatedConnection === connection) {
+                        return
+                    }
+                    authenticatedConnection = connection
+                    serverStatusReplayRequired = isServerStatusMissed
+                    if (!isReady) {
+                        timeToReady = SystemClock.elapsedRealtime() - acquireTime
+                        Timber.d("Connection for $name is ready after $timeToReady ms")
+                    }
+                }
+            }
+            if (serverStatusReplayRequired) {
+                connection.serverStatus?.let { messageListener?.onMessage(it) }
+            }
+            stateListener.onAuthenticationStateChange(state)
+        }
+    }
+
+    companion object {
+        private const val IDLE_TIMEOUT: Long = 30000
+        private const val RECONNECT_BASE_DELAY: Long = 500
+        private const val RECONNECT_MAX_DELAY: Long = 30000
+    }
+}
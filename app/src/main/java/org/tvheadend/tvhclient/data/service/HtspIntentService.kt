@@ -2,7 +2,6 @@ package org.tvheadend.tvhclient.data.service
 
 import android.content.Context
 import android.content.Intent
-import android.content.SharedPreferences
 import android.graphics.Bitmap
 import android.graphics.BitmapFactory
 import androidx.core.app.JobIntentService
@@ -10,7 +9,6 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager
 import leakcanary.AppWatcher
 import org.tvheadend.htsp.*
 import org.tvheadend.tvhclient.MainApplication
-import org.tvheadend.tvhclient.R
 import org.tvheadend.tvhclient.data.repository.AppRepository
 import org.tvheadend.tvhclient.domain.entity.Connection
 import org.tvheadend.tvhclient.domain.entity.Program
@@ -20,6 +18,7 @@ import timber.log.Timber
 import java.io.*
 import java.net.URL
 import java.util.*
+import java.util.concurrent.ExecutionException
 import java.util.concurrent.Executors
 import java.util.concurrent.ScheduledExecutorService
 import javax.inject.Inject
@@ -29,7 +28,9 @@ import kotlin.math.max
 class HtspIntentService : JobIntentService(), HtspConnectionStateListener {
 
     private val execService: ScheduledExecutorService
+    private val connectionLease: HtspConnectionManager.Lease
     private val htspConnection: HtspConnection
+        get() = connectionLease.connection
     private val connection: Connection
     private val serverStatus: ServerStatus
     private var htspVersion: Int = 13
@@ -39,7 +40,7 @@ class HtspIntentService : JobIntentService(), HtspConnectionStateListener {
     @Inject
     lateinit var appRepository: AppRepository
     @Inject
-    lateinit var sharedPreferences: SharedPreferences
+    lateinit var htspConnectionManager: HtspConnectionManager
 
     private val pendingEventOps = ArrayList<Program>()
     private val authenticationLock = Object()
@@ -52,19 +53,7 @@ class HtspIntentService : JobIntentService(), HtspConnectionStateListener {
         serverStatus = appRepository.serverStatusData.activeItem
         htspVersion = serverStatus.htspVersion
 
-        val connectionTimeout = Integer.valueOf(sharedPreferences.getString("connection_timeout", appContext.resources.getString(R.string.pref_default_connection_timeout))!!) * 1000
-        htspConnection = HtspConnection(
-                connection.username,
-                connection.password,
-                connection.serverUrl,
-                connectionTimeout,
-                this, null)
-
-        // Since this is blocking, spawn to a new thread
-        execService.execute {
-            htspConnection.openConnection()
-            htspConnection.authenticate()
-        }
+        connectionLease = htspConnectionManager.acquire("HtspIntentService", this)
     }
 
     override fun onHandleWork(intent: Intent) {
@@ -76,7 +65,9 @@ class HtspIntentService : JobIntentService(), HtspConnectionStateListener {
 
         synchronized(authenticationLock) {
             try {
-                authenticationLock.wait(5000)
+                if (!connectionLease.isReady) {
+                    authenticationLock.wait(5000)
+                }
             } catch (e: InterruptedException) {
                 Timber.e(e, "Timeout waiting while connecting to server")
             }
@@ -98,7 +89,7 @@ class HtspIntentService : JobIntentService(), HtspConnectionStateListener {
     override fun onDestroy() {
         Timber.d("Stopping service")
         execService.shutdown()
-        htspConnection.closeConnection()
+        connectionLease.release()
         AppWatcher.objectWatcher.watch(this)
     }
 
@@ -296,59 +287,48 @@ class HtspIntentService : JobIntentService(), HtspConnectionStateListener {
         Timber.d("Database currently contains ${appRepository.programData.itemCount} events.")
         Timber.d("Loading $numberOfProgramsToLoad events for each of the ${channelList.size} channels")
 
-        var channelCount = 0
-        channelList.forEach {
-            // Determine if events for the last channel in the list are being loaded.
-            // This is required to set and release a lock to get all responses
-            // before saving the event data
-            val isLastChannel = ++channelCount == channelList.size
-
+        // The requests are sent as soon as the request window of the connection has space.
+        // The responses are handled in the order of the requests while further ones are sent.
+        val pendingResponses = ArrayDeque<Pair<HtspResponseFuture, Intent>>()
+        for (channel in channelList) {
             val msgIntent = Intent()
             msgIntent.putExtra("numFollowing", numberOfProgramsToLoad)
-            msgIntent.putExtra("channelId", it.id)
-            msgIntent.putExtra("channelName", it.name)
+            msgIntent.putExtra("channelId", channel.id)
+            msgIntent.putExtra("channelName", channel.name)
 
-            val lastProgram = appRepository.programData.getLastItemByChannelId(it.id)
+            val lastProgram = appRepository.programData.getLastItemByChannelId(channel.id)
             when {
                 lastProgram != null -> {
-                    Timber.d("Loading more programs for channel ${it.name} from last program id ${lastProgram.eventId}")
+                    Timber.d("Loading more programs for channel ${channel.name} from last program id ${lastProgram.eventId}")
                     msgIntent.putExtra("eventId", lastProgram.nextEventId)
                 }
-                it.nextEventId > 0 -> {
-                    Timber.d("Loading more programs for channel ${it.name} starting from channel next event id ${it.nextEventId}")
-                    msgIntent.putExtra("eventId", it.nextEventId)
+                channel.nextEventId > 0 -> {
+                    Timber.d("Loading more programs for channel ${channel.name} starting from channel next event id ${channel.nextEventId}")
+                    msgIntent.putExtra("eventId", channel.nextEventId)
                 }
                 else -> {
-                    Timber.d("Loading more programs for channel ${it.name} starting from channel event id ${it.eventId}")
-                    msgIntent.putExtra("eventId", it.eventId)
+                    Timber.d("Loading more programs for channel ${channel.name} starting from channel event id ${channel.eventId}")
+                    msgIntent.putExtra("eventId", channel.eventId)
                 }
             }
 
             val request = convertIntentToEventMessage(msgIntent)
-            htspConnection.sendMessage(request, object : HtspResponseListener {
-                override fun handleResponse(response: HtspMessage) {
-                    onGetEvents(response, msgIntent)
-                    // Release the lock so that all data can be saved
-                    if (isLastChannel) {
-                        synchronized(responseLock) {
-                            Timber.d("Got response for last channel, releasing lock")
-                            responseLock.notify()
-                        }
-                    }
-                }
-            })
-
-            // Wait until the last response from the server was received and the lock released
-            if (isLastChannel) {
-                synchronized(responseLock) {
-                    try {
-                        Timber.d("Loaded more events for last channel, waiting for response")
-                        responseLock.wait(5000)
-                    } catch (e: InterruptedException) {
-                        Timber.e(e, "Timeout while loading events for last channel")
-                    }
-                }
+            try {
+                val future = htspConnection.requestInWindow(request, EVENTS_REQUEST_TIMEOUT, numberOfProgramsToLoad * EVENT_SIZE_ESTIMATE)
+                pendingResponses.add(Pair(future, msgIntent))
+            } catch (e: InterruptedException) {
+                Timber.e(e, "Interrupted while waiting to load events for channel ${channel.name}")
+                break
             }
+            while (pendingResponses.isNotEmpty() && pendingResponses.first.first.isDone) {
+                val (receivedFuture, receivedIntent) = pendingResponses.removeFirst()
+                onGetEventsResponse(receivedFuture, receivedIntent)
+            }
+        }
+
+        Timber.d("Waiting for the remaining ${pendingResponses.size} responses")
+        for ((future, msgIntent) in pendingResponses) {
+            onGetEventsResponse(future, msgIntent)
         }
 
         Timber.d("Done loading more events")
@@ -357,8 +337,21 @@ class HtspIntentService : JobIntentService(), HtspConnectionStateListener {
         pendingEventOps.clear()
     }
 
+    private fun onGetEventsResponse(future: HtspResponseFuture, intent: Intent) {
+        try {
+            onGetEvents(future.get(), intent)
+        } catch (e: ExecutionException) {
+            Timber.d(e.cause, "Could not load events for channel ${intent.getStringExtra("channelName")}")
+        } catch (e: InterruptedException) {
+            Timber.d(e, "Interrupted while waiting for events of channel ${intent.getStringExtra("channelName")}")
+        }
+    }
+
     companion object {
 
+        private const val EVENTS_REQUEST_TIMEOUT: Long = 30000
+        private const val EVENT_SIZE_ESTIMATE: Long = 1024
+
         fun enqueueWork(context: Context, work: Intent) {
             enqueueWork(context, HtspIntentService::class.java, 1, work)
         }
@@ -0,0 +1,47 @@
+package org.tvheadend.tvhclient.data.service
+
+import org.tvheadend.htsp.HtspSchema
+
+/**
+ * Fields of the server messages that are decoded into records instead of messages.
+ * The records are converted by the same functions as the messages, which access
+ * the fields by their name, so only the fields that these functions use are listed.
+ */
+object ChannelSchema {
+    val schema = HtspSchema("channelAdd").addFields(
+            "channelId", "channelNumber", "channelNumberMinor", "channelName",
+            "channelIcon", "eventId", "nextEventId", "tags")
+}
+
+object RecordingSchema {
+    val schema = HtspSchema("dvrEntryAdd").addFields(
+            "id", "channel", "start", "stop", "startExtra", "stopExtra", "retention",
+            "priority", "eventId", "autorecId", "timerecId", "contentType", "title",
+            "subtitle", "summary", "description", "state", "error", "owner", "creator",
+            "subscriptionError", "streamErrors", "dataErrors", "path", "dataSize",
+            "enabled", "duplicate", "image", "fanart_image", "copyright_year", "removal")
+}
+
+object ProgramSchema {
+    val schema = HtspSchema("eventAdd", "eventUpdate").addFields(
+            "eventId", "channelId", "start", "stop", "title", "subtitle", "summary",
+            "description", "serieslinkId", "episodeId", "seasonId", "brandId",
+            "contentType", "ageRating", "starRating", "firstAired", "seasonNumber",
+            "seasonCount", "episodeNumber", "episodeCount", "partNumber", "partCount",
+            "episodeOnscreen", "image", "dvrId", "nextEventId", "serieslinkUri",
+            "episodeUri", "copyright_year")
+}
+
+/**
+ * Fields of the muxpkt messages that contain the packets of a subscription
+ */
+object MuxpktSchema {
+    val schema = HtspSchema("muxpkt")
+    val subscriptionId = schema.addField("subscriptionId")
+    val stream = schema.addField("stream")
+    val frametype = schema.addField("frametype")
+    val pts = schema.addField("pts")
+    val dts = schema.addField("dts")
+    val duration = schema.addField("duration")
+    val payload = schema.addField("payload")
+}
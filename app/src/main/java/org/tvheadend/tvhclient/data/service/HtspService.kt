@@ -32,6 +32,7 @@ import timber.log.Timber
 import java.io.*
 import java.net.URL
 import java.util.*
+import java.util.concurrent.ExecutionException
 import java.util.concurrent.Executors
 import java.util.concurrent.ScheduledExecutorService
 import java.util.concurrent.TimeUnit
@@ -39,16 +40,20 @@ import javax.inject.Inject
 import kotlin.math.floor
 import kotlin.math.max
 
-class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener {
+class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener, HtspRecordListener {
 
     @Inject
     lateinit var appRepository: AppRepository
     @Inject
     lateinit var sharedPreferences: SharedPreferences
+    @Inject
+    lateinit var htspConnectionManager: HtspConnectionManager
 
     private lateinit var connection: Connection
     private var htspVersion: Int = 13
-    private var htspConnection: HtspConnection? = null
+    private var connectionLease: HtspConnectionManager.Lease? = null
+    private val htspConnection: HtspConnection?
+        get() = connectionLease?.connection
     private val execService: ScheduledExecutorService = Executors.newScheduledThreadPool(10)
 
     private val pendingEventOps = ArrayList<Program>()
@@ -60,15 +65,14 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
     private lateinit var htspPlaybackProfiles: List<ServerProfile>
 
     private var initialSyncWithServerRunning: Boolean = false
+    private var initialSyncStartTime: Long = 0
     private var syncEventsRequired: Boolean = false
     private var syncRequired: Boolean = false
     private var firstEventReceived = false
-    private var connectionTimeout: Int = 0
 
     override fun onCreate() {
         Timber.d("Starting service")
         MainApplication.component.inject(this)
-        connectionTimeout = Integer.valueOf(sharedPreferences.getString("connection_timeout", resources.getString(R.string.pref_default_connection_timeout))!!) * 1000
 
         connection = appRepository.connectionData.activeItem
         Timber.d("Loaded connection ${connection.name}")
@@ -134,7 +138,7 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
                             "getSubscriptions" -> getSubscriptions()
                             "getInputs" -> getInputs()
                             // Internal calls that are called from the intent service
-                            "getMoreEvents" -> getMoreEvents(intent)
+                            "getMoreEvents" -> execService.execute { getMoreEvents(intent) }
                             "loadChannelIcons" -> {
                                 loadAllChannelIcons()
                                 loadAllChannelTagIcons()
@@ -159,21 +163,24 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
     private fun startHtspConnection() {
         stopHtspConnection()
         Timber.d("Connecting to ${connection.name}, serverUrl is ${connection.serverUrl}")
-        htspConnection = HtspConnection(
-                connection.username, connection.password,
-                connection.serverUrl,
-                connectionTimeout,
-                this, this)
-        // Since this is blocking, spawn to a new thread
-        execService.execute {
-            htspConnection?.openConnection()
-            htspConnection?.authenticate()
-        }
+        // The asynchronous metadata is enabled once per connection, a connection
+        // that other users keep open may already have it enabled
+        val lease = htspConnectionManager.acquireNewConnection("HtspService", this, this)
+        lease.addRecordListener(ChannelSchema.schema, this, true)
+        lease.addRecordListener(RecordingSchema.schema, this, true)
+        lease.addRecordListener(ProgramSchema.schema, this, true)
+        connectionLease = lease
     }
 
     private fun stopHtspConnection() {
-        Timber.d("Stopping existing connection")
-        htspConnection?.closeConnection()
+        connectionLease?.let {
+            Timber.d("Releasing existing connection")
+            it.removeRecordListener(ChannelSchema.schema, this)
+            it.removeRecordListener(RecordingSchema.schema, this)
+            it.removeRecordListener(ProgramSchema.schema, this)
+            it.release()
+        }
+        connectionLease = null
     }
 
     override fun onMessage(response: HtspMessage) {
@@ -181,10 +188,8 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
             "tagAdd" -> onTagAdd(response)
             "tagUpdate" -> onTagUpdate(response)
             "tagDelete" -> onTagDelete(response)
-            "channelAdd" -> onChannelAdd(response)
             "channelUpdate" -> onChannelUpdate(response)
             "channelDelete" -> onChannelDelete(response)
-            "dvrEntryAdd" -> onDvrEntryAdd(response)
             "dvrEntryUpdate" -> onDvrEntryUpdate(response)
             "dvrEntryDelete" -> onDvrEntryDelete(response)
             "timerecEntryAdd" -> onTimerRecEntryAdd(response)
@@ -193,8 +198,6 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
             "autorecEntryAdd" -> onAutorecEntryAdd(response)
             "autorecEntryUpdate" -> onAutorecEntryUpdate(response)
             "autorecEntryDelete" -> onAutorecEntryDelete(response)
-            "eventAdd" -> onEventAdd(response)
-            "eventUpdate" -> onEventUpdate(response)
             "eventDelete" -> onEventDelete(response)
             "initialSyncCompleted" -> onInitialSyncCompleted()
             "getSysTime" -> onSystemTime(response)
@@ -208,6 +211,17 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
         }
     }
 
+    override fun onRecord(record: HtspRecord) {
+        when (record.method) {
+            "channelAdd" -> onChannelAdd(record)
+            "dvrEntryAdd" -> onDvrEntryAdd(record)
+            "eventAdd" -> onEventAdd(record)
+            "eventUpdate" -> onEventUpdate(record)
+            else -> {
+            }
+        }
+    }
+
     override fun onBind(intent: Intent): IBinder? {
         return null
     }
@@ -285,6 +299,7 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
         pendingEventOps.clear()
 
         initialSyncWithServerRunning = true
+        initialSyncStartTime = System.currentTimeMillis()
 
         val enableAsyncMetadataRequest = HtspMessage()
         enableAsyncMetadataRequest.method = "enableAsyncMetadata"
@@ -323,7 +338,9 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
     }
 
     private fun onInitialSyncCompleted() {
-        Timber.d("Received initial sync data from server")
+        Timber.d("Received initial sync data from server after ${System.currentTimeMillis() - initialSyncStartTime} ms")
+        Timber.d("Field name table contains ${HtspFieldNameTable.getEntryCount()} names, " +
+                "${HtspFieldNameTable.getHitCount()} hits and ${HtspFieldNameTable.getMissCount()} misses")
 
         if (syncRequired) {
             sendSyncStateMessage(SyncStateReceiver.State.SYNC_IN_PROGRESS,
@@ -647,14 +664,14 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
      * Server to client method.
      * A channel has been added on the server.
      *
-     * @param msg The message with the new channel data
+     * @param record The record with the new channel data
      */
-    private fun onChannelAdd(msg: HtspMessage) {
+    private fun onChannelAdd(record: HtspRecord) {
         if (!initialSyncWithServerRunning) {
             return
         }
 
-        val channel = convertMessageToChannelModel(Channel(), msg)
+        val channel = convertMessageToChannelModel(Channel(), record)
         channel.connectionId = connection.id
         channel.serverOrder = pendingChannelOps.size + 1
 
@@ -707,10 +724,10 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
      * Server to client method.
      * A recording has been added on the server.
      *
-     * @param msg The message with the new recording data
+     * @param record The record with the new recording data
      */
-    private fun onDvrEntryAdd(msg: HtspMessage) {
-        val recording = convertMessageToRecordingModel(Recording(), msg)
+    private fun onDvrEntryAdd(record: HtspRecord) {
+        val recording = convertMessageToRecordingModel(Recording(), record)
         recording.connectionId = connection.id
 
         if (initialSyncWithServerRunning) {
@@ -852,9 +869,9 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
      * Server to client method.
      * An epg event has been added on the server.
      *
-     * @param msg The message with the new epg event data
+     * @param record The record with the new epg event data
      */
-    private fun onEventAdd(msg: HtspMessage) {
+    private fun onEventAdd(record: HtspRecord) {
         if (!firstEventReceived && syncRequired) {
             Timber.d("Sync is required and received first event, saving ${pendingChannelOps.size} channels")
             appRepository.channelData.addItems(pendingChannelOps)
@@ -865,7 +882,7 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
         }
 
         firstEventReceived = true
-        val program = convertMessageToProgramModel(Program(), msg)
+        val program = convertMessageToProgramModel(Program(), record)
         program.connectionId = connection.id
 
         if (initialSyncWithServerRunning) {
@@ -887,11 +904,11 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
      * Server to client method.
      * An epg event has been updated on the server.
      *
-     * @param msg The message with the updated epg event data
+     * @param record The record with the updated epg event data
      */
-    private fun onEventUpdate(msg: HtspMessage) {
-        val program = appRepository.programData.getItemById(msg.getInteger("eventId")) ?: return
-        val updatedProgram = convertMessageToProgramModel(program, msg)
+    private fun onEventUpdate(record: HtspRecord) {
+        val program = appRepository.programData.getItemById(record.getInteger("eventId")) ?: return
+        val updatedProgram = convertMessageToProgramModel(program, record)
         Timber.d("Updating event ${updatedProgram.title}")
         appRepository.programData.updateItem(updatedProgram)
     }
@@ -914,27 +931,27 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
      * @param message The message with the events
      */
     private fun onGetEvents(message: HtspMessage, intent: Intent) {
+        if (message.containsKey("events")) {
+            val programs = convertMessageToPrograms(message)
+            Timber.d("Saving ${programs.size} events for channel ${intent.getStringExtra("channelName")}")
+            appRepository.programData.addItems(programs)
+        }
+    }
 
-        val useEventList = intent.getBooleanExtra("useEventList", false)
-        val channelName = intent.getStringExtra("channelName")
-
+    /**
+     * Returns the events of the given server message that contains a list of events
+     */
+    private fun convertMessageToPrograms(message: HtspMessage): List<Program> {
+        val programs = ArrayList<Program>()
         if (message.containsKey("events")) {
-            val programs = ArrayList<Program>()
             for (obj in message.getList("events")) {
                 val msg = obj as HtspMessage
                 val program = convertMessageToProgramModel(Program(), msg)
                 program.connectionId = connection.id
                 programs.add(program)
             }
-
-            if (useEventList) {
-                Timber.d("Adding ${programs.size} events to the list for channel $channelName")
-                pendingEventOps.addAll(programs)
-            } else {
-                Timber.d("Saving ${programs.size} events for channel $channelName")
-                appRepository.programData.addItems(programs)
-            }
         }
+        return programs
     }
 
     private fun onHtspProfiles(message: HtspMessage) {
@@ -1419,8 +1436,10 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
     /**
      * Loads a defined number of events for all channels.
      * This method is called by a worker after the initial sync is done.
-     * All loaded events are saved in a temporary list and saved in one
+     * All loaded events are saved in a list of this call and saved in one
      * batch into the database when all events were loaded for all channels.
+     * The list is not shared, so that calls can overlap with each other
+     * and with the events that are received while syncing.
      *
      * @param intent The intent with the parameters e.g. to define how many events shall be loaded
      */
@@ -1432,12 +1451,15 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
         Timber.d("Database currently contains ${appRepository.programData.itemCount} events. ")
         Timber.d("Loading $numberOfProgramsToLoad events for each of the ${channelList.size} channels")
 
+        // The requests are sent as soon as the request window of the connection has space.
+        // The responses are handled in the order of the requests while further ones are sent.
+        val pendingResponses = ArrayDeque<Pair<HtspResponseFuture, Intent>>()
+        val loadedPrograms = ArrayList<Program>()
         for (channel in channelList) {
             val lastProgram = appRepository.programData.getLastItemByChannelId(channel.id)
 
             val msgIntent = Intent()
             msgIntent.putExtra("numFollowing", numberOfProgramsToLoad)
-            msgIntent.putExtra("useEventList", true)
             msgIntent.putExtra("channelId", channel.id)
             msgIntent.putExtra("channelName", channel.name)
 
@@ -1455,12 +1477,41 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
                     msgIntent.putExtra("eventId", channel.eventId)
                 }
             }
-            getEvents(msgIntent)
+
+            val request = convertIntentToEventMessage(msgIntent)
+            try {
+                val future = htspConnection?.requestInWindow(request, EVENTS_REQUEST_TIMEOUT, numberOfProgramsToLoad * EVENT_SIZE_ESTIMATE)
+                        ?: break
+                pendingResponses.add(Pair(future, msgIntent))
+            } catch (e: InterruptedException) {
+                Timber.e(e, "Interrupted while waiting to load events for channel ${channel.name}")
+                break
+            }
+            while (pendingResponses.isNotEmpty() && pendingResponses.first.first.isDone) {
+                val (receivedFuture, receivedIntent) = pendingResponses.removeFirst()
+                onGetEventsResponse(receivedFuture, receivedIntent, loadedPrograms)
+            }
         }
 
-        appRepository.programData.addItems(pendingEventOps)
-        Timber.d("Saved ${pendingEventOps.size} events for all channels. Database contains ${appRepository.programData.itemCount} events")
-        pendingEventOps.clear()
+        Timber.d("Waiting for the remaining ${pendingResponses.size} responses")
+        for ((future, msgIntent) in pendingResponses) {
+            onGetEventsResponse(future, msgIntent, loadedPrograms)
+        }
+
+        appRepository.programData.addItems(loadedPrograms)
+        Timber.d("Saved ${loadedPrograms.size} events for all channels. Database contains ${appRepository.programData.itemCount} events")
+    }
+
+    private fun onGetEventsResponse(future: HtspResponseFuture, intent: Intent, loadedPrograms: MutableList<Program>) {
+        try {
+            val programs = convertMessageToPrograms(future.get())
+            Timber.d("Adding ${programs.size} events to the list for channel ${intent.getStringExtra("channelName")}")
+            loadedPrograms.addAll(programs)
+        } catch (e: ExecutionException) {
+            Timber.d(e.cause, "Could not load events for channel ${intent.getStringExtra("channelName")}")
+        } catch (e: InterruptedException) {
+            Timber.d(e, "Interrupted while waiting for events of channel ${intent.getStringExtra("channelName")}")
+        }
     }
 
     private fun getEpgQuery(intent: Intent) {
@@ -1478,7 +1529,7 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
                 } else if (response.containsKey("eventIds")) {
                     // List of eventIds that match the query
                     for (obj in response.getArrayList("eventIds")) {
-                        eventIdList.add(obj as Int)
+                        eventIdList.add((obj as Number).toInt())
                     }
                 }
             }
@@ -1694,4 +1745,9 @@ class HtspService : Service(), HtspConnectionStateListener, HtspMessageListener
         }
         LocalBroadcastManager.getInstance(this).sendBroadcast(intent)
     }
+
+    companion object {
+        private const val EVENTS_REQUEST_TIMEOUT: Long = 30000
+        private const val EVENT_SIZE_ESTIMATE: Long = 1024
+    }
 }
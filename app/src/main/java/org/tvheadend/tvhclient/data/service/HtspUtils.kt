@@ -1,6 +1,7 @@
 package org.tvheadend.tvhclient.data.service
 
 import android.content.Intent
+import org.tvheadend.htsp.HtspFields
 import org.tvheadend.htsp.HtspMessage
 import org.tvheadend.tvhclient.domain.entity.*
 import timber.log.Timber
@@ -46,7 +47,7 @@ fun convertMessageToChannelTagModel(tag: ChannelTag, msg: HtspMessage, channels:
     return tag
 }
 
-fun convertMessageToChannelModel(channel: Channel, msg: HtspMessage): Channel {
+fun convertMessageToChannelModel(channel: Channel, msg: HtspFields): Channel {
     if (msg.containsKey("channelId")) {
         channel.id = msg.getInteger("channelId")
     }
@@ -87,7 +88,7 @@ fun convertMessageToChannelModel(channel: Channel, msg: HtspMessage): Channel {
     return channel
 }
 
-fun convertMessageToRecordingModel(recording: Recording, msg: HtspMessage): Recording {
+fun convertMessageToRecordingModel(recording: Recording, msg: HtspFields): Recording {
     if (msg.containsKey("id")) {
         recording.id = msg.getInteger("id")
     }
@@ -229,7 +230,7 @@ fun convertMessageToRecordingModel(recording: Recording, msg: HtspMessage): Reco
     return recording
 }
 
-fun convertMessageToProgramModel(program: Program, msg: HtspMessage): Program {
+fun convertMessageToProgramModel(program: Program, msg: HtspFields): Program {
     if (msg.containsKey("eventId")) {
         program.eventId = msg.getInteger("eventId")
     }
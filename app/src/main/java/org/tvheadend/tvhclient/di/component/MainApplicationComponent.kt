@@ -4,6 +4,7 @@ import dagger.Component
 import org.tvheadend.tvhclient.MainApplication
 import org.tvheadend.tvhclient.data.service.HtspIntentService
 import org.tvheadend.tvhclient.data.service.HtspService
+import org.tvheadend.tvhclient.di.module.ConnectionModule
 import org.tvheadend.tvhclient.di.module.ContextModule
 import org.tvheadend.tvhclient.di.module.RepositoryModule
 import org.tvheadend.tvhclient.di.module.SharedPreferencesModule
@@ -18,7 +19,8 @@ import javax.inject.Singleton
 @Component(modules = [
     ContextModule::class,
     SharedPreferencesModule::class,
-    RepositoryModule::class])
+    RepositoryModule::class,
+    ConnectionModule::class])
 interface MainApplicationComponent {
 
     fun inject(mainApplication: MainApplication)
@@ -40,5 +42,7 @@ interface MainApplicationComponent {
         fun repositoryModule(repositoryModule: RepositoryModule): Builder
 
         fun contextModule(contextModule: ContextModule): Builder
+
+        fun connectionModule(connectionModule: ConnectionModule): Builder
     }
 }
\ No newline at end of file
@@ -0,0 +1,19 @@
+package org.tvheadend.tvhclient.di.module
+
+import android.content.Context
+import android.content.SharedPreferences
+import dagger.Module
+import dagger.Provides
+import org.tvheadend.tvhclient.data.repository.AppRepository
+import org.tvheadend.tvhclient.data.service.HtspConnectionManager
+import javax.inject.Singleton
+
+@Module
+class ConnectionModule {
+
+    @Singleton
+    @Provides
+    internal fun providesHtspConnectionManager(context: Context, sharedPreferences: SharedPreferences, appRepository: AppRepository): HtspConnectionManager {
+        return HtspConnectionManager(context, sharedPreferences, appRepository)
+    }
+}
@@ -64,6 +64,17 @@ class ChannelData(private val db: AppRoomDatabase) : DataSourceInterface<Channel
         return channels
     }
 
+    fun getChannels(sortOrder: Int, tagIds: List<Int>): List<Channel> {
+        if (tagIds.isEmpty()) {
+            return getChannels(sortOrder)
+        }
+        val channels = ArrayList<Channel>()
+        runBlocking(Dispatchers.IO) {
+            channels.addAll(db.channelDao.loadAllChannelsByTagSync(sortOrder, tagIds))
+        }
+        return channels
+    }
+
     override fun getItems(): List<Channel> {
         return getChannels()
     }
@@ -8,6 +8,7 @@ import androidx.core.util.Pair
 import androidx.lifecycle.*
 import org.tvheadend.tvhclient.MainApplication
 import org.tvheadend.tvhclient.data.repository.AppRepository
+import org.tvheadend.tvhclient.data.service.HtspConnectionManager
 import org.tvheadend.tvhclient.data.service.HtspService
 import org.tvheadend.tvhclient.domain.entity.Connection
 import org.tvheadend.tvhclient.ui.common.Event
@@ -24,6 +25,8 @@ open class BaseViewModel(application: Application) : AndroidViewModel(applicatio
     lateinit var appRepository: AppRepository
     @Inject
     lateinit var sharedPreferences: SharedPreferences
+    @Inject
+    lateinit var htspConnectionManager: HtspConnectionManager
 
     var connection: Connection
     var connectionCount: LiveData<Int>
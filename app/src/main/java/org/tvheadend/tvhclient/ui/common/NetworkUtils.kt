@@ -24,6 +24,17 @@ fun isNetworkAvailable(context: Context): Boolean {
     return activeNetworkInfo != null && activeNetworkInfo.isConnected
 }
 
+/**
+ * Returns an identifier of the active network, like the type and the name of the wifi
+ * network or the mobile access point. It is used to remember the best server address
+ * per network.
+ */
+fun getNetworkId(context: Context): String {
+    val connectivityManager = context.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+    val activeNetworkInfo = connectivityManager.activeNetworkInfo ?: return ""
+    return "${activeNetworkInfo.typeName}:${activeNetworkInfo.subtypeName}:${activeNetworkInfo.extraInfo ?: ""}"
+}
+
 private fun isWifiApEnabled(context: Context): Boolean {
     val wifiManager = context.applicationContext.getSystemService(Context.WIFI_SERVICE) as WifiManager
     val wmMethods = wifiManager.javaClass.declaredMethods
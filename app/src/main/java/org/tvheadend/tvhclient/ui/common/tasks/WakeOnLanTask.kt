@@ -3,6 +3,7 @@ package org.tvheadend.tvhclient.ui.common.tasks
 import android.content.Context
 import android.net.Uri
 import android.os.AsyncTask
+import org.tvheadend.htsp.HtspEndpointSelector
 import org.tvheadend.tvhclient.R
 import org.tvheadend.tvhclient.domain.entity.Connection
 import org.tvheadend.tvhclient.util.extensions.sendSnackbarMessage
@@ -40,7 +41,8 @@ class WakeOnLanTask(context: Context, private val connection: Connection) : Asyn
         }
 
         try {
-            val uri = Uri.parse(connection.serverUrl)
+            // Wake the server via the first url in case several are given
+            val uri = Uri.parse(HtspEndpointSelector.parseUrls(connection.serverUrl).firstOrNull() ?: "")
             val address: InetAddress
             if (!connection.isWolUseBroadcast) {
                 address = InetAddress.getByName(uri.host)
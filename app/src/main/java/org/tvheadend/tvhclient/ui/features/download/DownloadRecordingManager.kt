@@ -15,6 +15,7 @@ import androidx.core.app.ActivityCompat
 import androidx.localbroadcastmanager.content.LocalBroadcastManager
 import androidx.preference.PreferenceManager
 import com.google.android.material.snackbar.Snackbar
+import org.tvheadend.htsp.HtspEndpointSelector
 import org.tvheadend.tvhclient.R
 import org.tvheadend.tvhclient.domain.entity.Connection
 import org.tvheadend.tvhclient.domain.entity.Recording
@@ -44,7 +45,9 @@ class DownloadRecordingManager(private val activity: Activity?, private val conn
         // Therefore /storage/emulated/0 is fixed, only the location within this folder can be changed
         val downloadDirectory = PreferenceManager.getDefaultSharedPreferences(activity)
                 .getString("download_directory", Environment.DIRECTORY_DOWNLOADS)
-        val downloadUrl = "${connection.streamingUrl}/dvrfile/${recording.id}"
+        // Use the first streaming url in case several are given
+        val streamingUrl = HtspEndpointSelector.parseUrls(connection.streamingUrl).firstOrNull() ?: ""
+        val downloadUrl = "$streamingUrl/dvrfile/${recording.id}"
         // The user and password are required for authentication. They need to be encoded.
         val credentials = "Basic " + Base64.encodeToString((connection.username + ":" + connection.password).toByteArray(), Base64.NO_WRAP)
         // Use the recording title if present, otherwise use the recording id only
@@ -4,12 +4,11 @@ import android.app.Application
 import android.net.Uri
 import android.os.Bundle
 import androidx.lifecycle.MutableLiveData
-import androidx.preference.PreferenceManager
 import org.tvheadend.htsp.HtspConnection
 import org.tvheadend.htsp.HtspConnectionStateListener
 import org.tvheadend.htsp.HtspMessage
 import org.tvheadend.htsp.HtspResponseListener
-import org.tvheadend.tvhclient.R
+import org.tvheadend.tvhclient.data.service.HtspConnectionManager
 import org.tvheadend.tvhclient.domain.entity.Channel
 import org.tvheadend.tvhclient.domain.entity.Recording
 import org.tvheadend.tvhclient.domain.entity.ServerProfile
@@ -17,19 +16,21 @@ import org.tvheadend.tvhclient.domain.entity.ServerStatus
 import org.tvheadend.tvhclient.ui.base.BaseViewModel
 import timber.log.Timber
 import java.util.concurrent.ExecutionException
-import java.util.concurrent.Executors
-import java.util.concurrent.ScheduledExecutorService
 
 class ExternalPlayerViewModel(application: Application) : BaseViewModel(application), HtspConnectionStateListener {
 
     // Connection related
-    private val execService: ScheduledExecutorService = Executors.newScheduledThreadPool(10)
+    private val connectionLease: HtspConnectionManager.Lease
     private val htspConnection: HtspConnection
+        get() = connectionLease.connection
 
     var channel: Channel? = null
     var recording: Recording? = null
     private var path = ""
     private var ticket = ""
+    // The streaming url is selected before the ticket is passed on, off the main thread
+    @Volatile
+    private var streamingUrl: String? = null
 
     // Observable fields
     var isTicketReceived: MutableLiveData<Boolean> = MutableLiveData()
@@ -37,18 +38,7 @@ class ExternalPlayerViewModel(application: Application) : BaseViewModel(applicat
 
     init {
         Timber.d("Initializing")
-        val connectionTimeout = Integer.valueOf(PreferenceManager.getDefaultSharedPreferences(application).getString("connection_timeout", application.resources.getString(R.string.pref_default_connection_timeout))!!) * 1000
-        htspConnection = HtspConnection(
-                connection.username ?: "",
-                connection.password ?: "",
-                connection.serverUrl ?: "",
-                connectionTimeout,
-                this, null)
-
-        execService.execute {
-            htspConnection.openConnection()
-            htspConnection.authenticate()
-        }
+        connectionLease = htspConnectionManager.acquire("ExternalPlayerViewModel", this)
     }
 
     override fun onConnectionStateChange(state: HtspConnection.ConnectionState) {
@@ -87,8 +77,7 @@ class ExternalPlayerViewModel(application: Application) : BaseViewModel(applicat
     override fun onCleared() {
         super.onCleared()
         Timber.d("Clearing view model")
-        execService.shutdown()
-        htspConnection.closeConnection()
+        connectionLease.release()
     }
 
     fun requestTicketFromServer(bundle: Bundle?) {
@@ -110,6 +99,10 @@ class ExternalPlayerViewModel(application: Application) : BaseViewModel(applicat
                 Timber.d("Received response for ticket request")
                 path = response.getString("path", "")
                 ticket = response.getString("ticket", "")
+                // Without a ticket the response may have been passed on from the calling thread
+                if (ticket.isNotEmpty()) {
+                    streamingUrl = htspConnectionManager.selectUrl(connection.streamingUrl)
+                }
                 isTicketReceived.postValue(true)
             }
         })
@@ -118,8 +111,11 @@ class ExternalPlayerViewModel(application: Application) : BaseViewModel(applicat
     fun getServerUrl(convertHostnameToAddress: Boolean = false): String {
         // Convert the hostname to the IP address only when required.
         // This is usually required when a channel or recording shall
-        // be played on a chromecast
-        val uri = Uri.parse(connection.streamingUrl)
+        // be played on a chromecast. In case several streaming urls are
+        // given, the one with the lowest latency in this network is used.
+        val streamingUrl = this.streamingUrl
+                ?: htspConnectionManager.getSelectedUrl(connection.streamingUrl)
+        val uri = Uri.parse(streamingUrl)
         var hostname = uri.host
         if (convertHostnameToAddress && !hostname.isNullOrEmpty()) {
             Timber.d("Convert hostname $hostname to IP address")
@@ -142,7 +138,7 @@ class ExternalPlayerViewModel(application: Application) : BaseViewModel(applicat
             baseUrl += uri.path
         }
 
-        Timber.d("Original url was ${connection.streamingUrl}, converted url is $baseUrl")
+        Timber.d("Original url was $streamingUrl, converted url is $baseUrl")
         return baseUrl
     }
 
@@ -0,0 +1,312 @@
+package org.tvheadend.tvhclient.ui.features.playback.internal;
+
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import timber.log.Timber;
+
+/**
+ * Keeps chunks of recordings that were played in files on the device, so that playing a
+ * recording again or seeking back does not need to read the data from the server again.
+ * <p>
+ * A chunk is identified by the id of the recording, the modification time of the file on
+ * the server and the index of the chunk in the file. Changed files therefore use other
+ * chunks, the outdated ones are removed like all others that were not used for the longest
+ * time once the size limit is exceeded. The order of use is kept in the modification time
+ * of the chunk files, so the cache is restored after the app was restarted.
+ * <p>
+ * Chunks are written by a background thread, so that the thread that loads the recording
+ * does not wait for the storage. Until then they are returned from memory. Chunks are not
+ * cached when the storage cannot keep up, instead of holding more and more of them in memory.
+ */
+public final class HtspFileChunkCache {
+
+    static final int CHUNK_SIZE = 512 * 1024;
+    private static final String CHUNK_FILE_EXTENSION = ".chunk";
+    private static final String TEMP_FILE_EXTENSION = ".tmp";
+    // Limits the memory that is used by chunks that wait to be written to 4 MB
+    private static final int MAX_PENDING_WRITES = 8;
+
+    private static HtspFileChunkCache instance;
+
+    private final File directory;
+    // Chunk file name to file size, ordered from the least to the most recently used
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // Chunk file name to the data of the chunks that wait to be written
+    private final HashMap<String, byte[]> pendingWrites = new HashMap<>();
+    private final Executor writeExecutor = Executors.newSingleThreadExecutor();
+    private boolean isIndexed;
+    private long maxSize;
+    private long size;
+
+    private long hitCount;
+    private long hitByteCount;
+    private long missCount;
+    private long writeCount;
+    private long skippedWriteCount;
+    private long evictionCount;
+
+    public static synchronized HtspFileChunkCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new HtspFileChunkCache(new File(context.getCacheDir(), "recordings"));
+        }
+        return instance;
+    }
+
+    private HtspFileChunkCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Sets the maximum size of all cached chunks in bytes, zero disables the cache.
+     * Chunks above the limit are removed the next time the cache is used.
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the key of the chunks of a file, or null if the file cannot be cached
+     * because its modification time is unknown
+     */
+    @Nullable
+    static String getFileKey(String recordingId, long modificationTime) {
+        if (recordingId == null || recordingId.isEmpty() || modificationTime <= 0) {
+            return null;
+        }
+        return recordingId.replaceAll("[^0-9A-Za-z]", "_") + "-" + modificationTime;
+    }
+
+    /**
+     * Returns the data of the chunk or null if it is not cached
+     */
+    @Nullable
+    byte[] get(String fileKey, long chunkIndex) {
+        String name = getChunkFileName(fileKey, chunkIndex);
+        Long length;
+        synchronized (this) {
+            updateIndex();
+            byte[] pendingData = pendingWrites.get(name);
+            if (pendingData != null) {
+                hitCount++;
+                hitByteCount += pendingData.length;
+                return pendingData;
+            }
+            length = entries.get(name);
+            if (length == null) {
+                missCount++;
+                return null;
+            }
+        }
+
+        File file = new File(directory, name);
+        byte[] data = new byte[length.intValue()];
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            int offset = 0;
+            while (offset < data.length) {
+                int read = inputStream.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    throw new IOException("Chunk file " + name + " is shorter than expected");
+                }
+                offset += read;
+            }
+        } catch (IOException e) {
+            Timber.d(e, "Could not read cached chunk %s", name);
+            synchronized (this) {
+                remove(name);
+                missCount++;
+            }
+            return null;
+        } finally {
+            closeQuietly(inputStream);
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(System.currentTimeMillis());
+
+        synchronized (this) {
+            hitCount++;
+            hitByteCount += data.length;
+        }
+        return data;
+    }
+
+    /**
+     * Stores the chunk in the background. If the whole array is the chunk, the cache keeps
+     * it and the caller must not change it anymore, otherwise the data is copied.
+     *
+     * @return True if the cache keeps the array
+     */
+    boolean put(String fileKey, long chunkIndex, byte[] data, int length) {
+        final String name = getChunkFileName(fileKey, chunkIndex);
+        final byte[] chunk = length == data.length ? data : Arrays.copyOf(data, length);
+        synchronized (this) {
+            updateIndex();
+            if (length > maxSize || entries.containsKey(name) || pendingWrites.containsKey(name)) {
+                return false;
+            }
+            if (pendingWrites.size() >= MAX_PENDING_WRITES) {
+                skippedWriteCount++;
+                return false;
+            }
+            pendingWrites.put(name, chunk);
+        }
+        writeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(name, chunk);
+            }
+        });
+        return chunk == data;
+    }
+
+    /**
+     * Writes the chunk to a temporary file first, so that only
+     * complete chunks are found after the app was terminated
+     */
+    private void write(String name, byte[] data) {
+        File tempFile = new File(directory, name + TEMP_FILE_EXTENSION);
+        File file = new File(directory, name);
+        FileOutputStream outputStream = null;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create directory " + directory);
+            }
+            outputStream = new FileOutputStream(tempFile);
+            outputStream.write(data);
+            outputStream.close();
+            outputStream = null;
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Could not rename " + tempFile);
+            }
+        } catch (IOException e) {
+            Timber.d(e, "Could not write chunk %s", name);
+            closeQuietly(outputStream);
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            synchronized (this) {
+                pendingWrites.remove(name);
+            }
+            return;
+        }
+
+        synchronized (this) {
+            pendingWrites.remove(name);
+            entries.put(name, (long) data.length);
+            size += data.length;
+            writeCount++;
+            trimToSize();
+        }
+    }
+
+    private static String getChunkFileName(String fileKey, long chunkIndex) {
+        return fileKey + "-" + chunkIndex + CHUNK_FILE_EXTENSION;
+    }
+
+    /**
+     * Builds the index from the chunk files when the cache is used for the first time
+     * and removes the chunks that exceed the size limit
+     */
+    private void updateIndex() {
+        if (!isIndexed) {
+            isIndexed = true;
+            File[] files = directory.listFiles();
+            if (files != null) {
+                Arrays.sort(files, new Comparator<File>() {
+                    @Override
+                    public int compare(File file1, File file2) {
+                        long lastModified1 = file1.lastModified();
+                        long lastModified2 = file2.lastModified();
+                        return lastModified1 < lastModified2 ? -1 : (lastModified1 == lastModified2 ? 0 : 1);
+                    }
+                });
+                for (File file : files) {
+                    if (file.getName().endsWith(CHUNK_FILE_EXTENSION)) {
+                        entries.put(file.getName(), file.length());
+                        size += file.length();
+                    } else {
+                        // Left over from writing a chunk when the app was terminated
+                        //noinspection ResultOfMethodCallIgnored
+                        file.delete();
+                    }
+                }
+            }
+            Timber.d("Indexed " + entries.size() + " cached chunks with " + size + " bytes");
+        }
+        trimToSize();
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            iterator.remove();
+            size -= entry.getValue();
+            evictionCount++;
+            //noinspection ResultOfMethodCallIgnored
+            new File(directory, entry.getKey()).delete();
+        }
+    }
+
+    private void remove(String name) {
+        Long length = entries.remove(name);
+        if (length != null) {
+            size -= length;
+            //noinspection ResultOfMethodCallIgnored
+            new File(directory, name).delete();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing to do, the data was already read or the write failed
+            }
+        }
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getHitByteCount() {
+        return hitByteCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "chunk cache with " + entries.size() + " chunks, " + size + " of " + maxSize + " bytes, "
+                + hitCount + " hits with " + hitByteCount + " bytes, " + missCount + " misses, "
+                + writeCount + " writes, " + skippedWriteCount + " skipped writes, " + evictionCount + " evictions";
+    }
+}
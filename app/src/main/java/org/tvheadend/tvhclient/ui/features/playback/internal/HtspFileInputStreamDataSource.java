@@ -2,23 +2,22 @@ package org.tvheadend.tvhclient.ui.features.playback.internal;
 
 import android.net.Uri;
 
+import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DataSpec;
 
-import org.jetbrains.annotations.NotNull;
 import org.tvheadend.htsp.HtspConnection;
-import org.tvheadend.htsp.HtspMessage;
-import org.tvheadend.htsp.HtspMessageListener;
-import org.tvheadend.htsp.HtspResponseListener;
+import org.tvheadend.htsp.HtspFileInputStream;
 
 import java.io.Closeable;
-import java.nio.ByteBuffer;
+import java.io.EOFException;
+import java.io.IOException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import leakcanary.AppWatcher;
 import timber.log.Timber;
 
-public class HtspFileInputStreamDataSource implements DataSource, Closeable, HtspMessageListener, HtspDataSourceInterface {
+public class HtspFileInputStreamDataSource implements DataSource, Closeable, HtspDataSourceInterface {
 
     private static final AtomicInteger dataSourceCount = new AtomicInteger();
     private static final AtomicInteger subscriptionCount = new AtomicInteger();
@@ -27,27 +26,38 @@ public class HtspFileInputStreamDataSource implements DataSource, Closeable, Hts
     private DataSpec dataSpec;
     private final int dataSourceNumber;
 
-    private ByteBuffer byteBuffer;
-
+    private final HtspFileChunkCache chunkCache;
+    private HtspFileInputStream inputStream;
     private String fileName;
-    private int fileId = -1;
-    private long fileSize = -1;
-    private long filePosition = 0;
+    private long position;
+    private long bytesRemaining;
+
+    // Chunks of the file in the cache, null if the file is not cached
+    private String chunkCacheKey;
+    private byte[] cachedChunk;
+    private long cachedChunkIndex = -1;
+    private long missedChunkIndex = -1;
+    // Chunk that is filled with the data from the server until it can be cached
+    private byte[] chunkBuffer;
+    private long chunkBufferIndex = -1;
+    private int chunkBufferLength;
 
     public static class Factory implements DataSource.Factory {
 
         private final HtspConnection htspConnection;
+        private final HtspFileChunkCache chunkCache;
         private HtspFileInputStreamDataSource dataSource;
 
-        Factory(HtspConnection htspConnection) {
+        Factory(HtspConnection htspConnection, HtspFileChunkCache chunkCache) {
             Timber.d("Initializing subscription data source factory");
             this.htspConnection = htspConnection;
+            this.chunkCache = chunkCache;
         }
 
         @Override
         public DataSource createDataSource() {
             Timber.d("Created new data source from factory");
-            dataSource = new HtspFileInputStreamDataSource(htspConnection);
+            dataSource = new HtspFileInputStreamDataSource(htspConnection, chunkCache);
             return dataSource;
         }
 
@@ -64,10 +74,10 @@ public class HtspFileInputStreamDataSource implements DataSource, Closeable, Hts
         }
     }
 
-    private HtspFileInputStreamDataSource(HtspConnection htspConnection) {
+    private HtspFileInputStreamDataSource(HtspConnection htspConnection, HtspFileChunkCache chunkCache) {
         Timber.d("Initializing file input data source");
         this.htspConnection = htspConnection;
-        this.htspConnection.addMessageListener(this);
+        this.chunkCache = chunkCache;
         this.dataSourceNumber = dataSourceCount.incrementAndGet();
     }
 
@@ -108,94 +118,159 @@ public class HtspFileInputStreamDataSource implements DataSource, Closeable, Hts
         super.finalize();
     }
 
+    /**
+     * Opens the recording at the position and for the length of the data spec. The file
+     * stays open when the data source is opened again for the same recording, for example
+     * after seeking, so that only the position needs to be changed.
+     */
     @Override
-    public long open(DataSpec dataSpec) {
+    public long open(DataSpec dataSpec) throws IOException {
         Timber.d("Opening file input data source " + dataSourceNumber + ")");
         this.dataSpec = dataSpec;
 
-        fileName = "dvrfile" + dataSpec.uri.getPath();
-
-        HtspMessage fileReadRequest = new HtspMessage();
-        fileReadRequest.put("method", "fileRead");
-        fileReadRequest.put("size", 1024000);
-
-        final HtspResponseListener fileReadHandler = response -> {
-            if (response.containsKey("error")) {
-                String error = response.getString("error");
-                Timber.d("Error reading file at offset 0: %s", error);
+        String name = "dvrfile" + dataSpec.uri.getPath();
+        if (inputStream == null || !name.equals(fileName)) {
+            closeInputStream();
+            fileName = name;
+            Timber.d("Opening file: %s", fileName);
+            // The file is played back, so the requests are sent before the file requests
+            // of background tasks like icon downloads
+            inputStream = new HtspFileInputStream(htspConnection, fileName, HtspConnection.Priority.STREAMING_CONTROL);
+            Timber.d("Opened file " + fileName + " with size " + inputStream.getFileSize());
+            chunkCacheKey = chunkCache != null ? HtspFileChunkCache.getFileKey(dataSpec.uri.getLastPathSegment(), inputStream.getModificationTime()) : null;
+            cachedChunk = null;
+            cachedChunkIndex = -1;
+            missedChunkIndex = -1;
+            chunkBufferIndex = -1;
+        } else {
+            Timber.d("Reusing opened file %s", fileName);
+        }
 
-            } else {
-                final byte[] data = response.getByteArray("data");
-                Timber.d("Fetched " + data.length + " bytes of file at offset 0");
-                filePosition += data.length;
-                byteBuffer = ByteBuffer.wrap(data);
-            }
-            synchronized (fileReadRequest) {
-                Timber.d("Notifying fileReadRequest");
-                fileReadRequest.notify();
-            }
-        };
-
-        HtspMessage fileOpenRequest = new HtspMessage();
-        fileOpenRequest.put("method", "fileOpen");
-        fileOpenRequest.put("file", fileName);
-        htspConnection.sendMessage(fileOpenRequest, response -> {
-            if (response.containsKey("error")) {
-                String error = response.getString("error");
-                Timber.d("Error opening file: %s", error);
-
-            } else {
-                Timber.d("Opening file: %s", fileName);
-                fileId = response.getInteger("id");
-                if (response.containsKey("size")) {
-                    fileSize = response.getLong("size");
-                    Timber.v("Opened file " + fileName + " of size " + fileSize + " successfully");
-                } else {
-                    Timber.v("Opened file " + fileName + " successfully");
-                }
-                Timber.d("Sending file read request for file id %s", fileId);
-                fileReadRequest.put("id", fileId);
-                htspConnection.sendMessage(fileReadRequest, fileReadHandler);
-            }
-        });
-
-        Timber.d("Waiting for fileReadRequest");
-        synchronized (fileReadRequest) {
-            try {
-                fileReadRequest.wait(5000);
-            } catch (InterruptedException e) {
-                Timber.d(e, "Waiting for fileReadRequest message was interrupted");
-            }
+        // The file on the server is only positioned when the data is not cached
+        position = dataSpec.position;
+        missedChunkIndex = -1;
+        long fileSize = inputStream.getFileSize();
+        if (dataSpec.length != C.LENGTH_UNSET) {
+            bytesRemaining = dataSpec.length;
+        } else if (fileSize > 0) {
+            bytesRemaining = Math.max(0, fileSize - dataSpec.position);
+        } else {
+            bytesRemaining = C.LENGTH_UNSET;
         }
 
-        Timber.d("Opened file " + fileName + ", id " + fileId + " with size " + fileSize);
-        return fileSize;
+        Timber.d("Reading file " + fileName + " from position " + dataSpec.position + ", " + bytesRemaining + " bytes");
+        return bytesRemaining;
     }
 
     @Override
-    public int read(byte[] bytes, int offset, int readLength) {
-
-        // If we've reached the end of the file, we're done :)
-        if (fileSize == filePosition && !byteBuffer.hasRemaining()) {
-            return -1;
+    public int read(byte[] bytes, int offset, int readLength) throws IOException {
+        if (readLength == 0) {
+            return 0;
+        }
+        if (bytesRemaining == 0) {
+            return C.RESULT_END_OF_INPUT;
         }
 
-        sendFileRead(filePosition);
+        int length = bytesRemaining == C.LENGTH_UNSET ? readLength : (int) Math.min(readLength, bytesRemaining);
+        int read = readFromCache(bytes, offset, length);
+        if (read == -1) {
+            read = readFromServer(bytes, offset, length);
+        }
+        if (read == -1) {
+            if (bytesRemaining != C.LENGTH_UNSET) {
+                // The file ended before the requested length was read
+                throw new EOFException("End of file " + fileName + " reached, " + bytesRemaining + " bytes are missing");
+            }
+            return C.RESULT_END_OF_INPUT;
+        }
+        position += read;
+        if (bytesRemaining != C.LENGTH_UNSET) {
+            bytesRemaining -= read;
+        }
+        return read;
+    }
 
-        if (!byteBuffer.hasRemaining() && fileSize == -1) {
-            // If we still don't have any data, and we
-            // don't have a known size, then we're done.
+    /**
+     * Reads from the cached chunk at the current position
+     *
+     * @return The number of bytes read or -1 if the chunk is not cached
+     */
+    private int readFromCache(byte[] bytes, int offset, int length) {
+        if (chunkCacheKey == null) {
             return -1;
-
-        } else if (!byteBuffer.hasRemaining()) {
-            // If we don't have data here, something went wrong
-            Timber.d("Failed to read data for %s", fileName);
         }
+        long index = position / HtspFileChunkCache.CHUNK_SIZE;
+        if (index != cachedChunkIndex) {
+            if (index == missedChunkIndex) {
+                return -1;
+            }
+            cachedChunk = chunkCache.get(chunkCacheKey, index);
+            if (cachedChunk == null) {
+                cachedChunkIndex = -1;
+                missedChunkIndex = index;
+                return -1;
+            }
+            cachedChunkIndex = index;
+            // The data is not continued from the server
+            chunkBufferIndex = -1;
+        }
+        int chunkOffset = (int) (position - index * HtspFileChunkCache.CHUNK_SIZE);
+        if (chunkOffset >= cachedChunk.length) {
+            return -1;
+        }
+        int read = Math.min(length, cachedChunk.length - chunkOffset);
+        System.arraycopy(cachedChunk, chunkOffset, bytes, offset, read);
+        return read;
+    }
 
-        int startPos = byteBuffer.position();
+    private int readFromServer(byte[] bytes, int offset, int length) throws IOException {
+        if (inputStream.getPosition() != position) {
+            inputStream.seek(position);
+        }
+        int read = inputStream.read(bytes, offset, length);
+        if (read > 0 && chunkCacheKey != null) {
+            addToChunkBuffer(bytes, offset, read);
+        }
+        return read;
+    }
 
-        byteBuffer.get(bytes, offset, Math.min(readLength, byteBuffer.remaining()));
-        return byteBuffer.position() - startPos;
+    /**
+     * Collects the data that was read from the server in chunks that start at a chunk
+     * boundary. Complete chunks and the last one of the file are stored in the cache.
+     */
+    private void addToChunkBuffer(byte[] bytes, int offset, int length) {
+        long dataPosition = position;
+        long fileSize = inputStream.getFileSize();
+        while (length > 0) {
+            long index = dataPosition / HtspFileChunkCache.CHUNK_SIZE;
+            int chunkOffset = (int) (dataPosition - index * HtspFileChunkCache.CHUNK_SIZE);
+            int count = Math.min(length, HtspFileChunkCache.CHUNK_SIZE - chunkOffset);
+            if (chunkOffset == 0) {
+                if (chunkBuffer == null) {
+                    chunkBuffer = new byte[HtspFileChunkCache.CHUNK_SIZE];
+                }
+                chunkBufferIndex = index;
+                chunkBufferLength = 0;
+            }
+            if (chunkBufferIndex == index && chunkBufferLength == chunkOffset) {
+                System.arraycopy(bytes, offset, chunkBuffer, chunkOffset, count);
+                chunkBufferLength += count;
+                long chunkEnd = index * HtspFileChunkCache.CHUNK_SIZE + chunkBufferLength;
+                if (chunkBufferLength == HtspFileChunkCache.CHUNK_SIZE || chunkEnd == fileSize) {
+                    if (chunkCache.put(chunkCacheKey, index, chunkBuffer, chunkBufferLength)) {
+                        // The cache writes the buffer in the background
+                        chunkBuffer = null;
+                    }
+                    chunkBufferIndex = -1;
+                    if (missedChunkIndex == index) {
+                        missedChunkIndex = -1;
+                    }
+                }
+            }
+            dataPosition += count;
+            offset += count;
+            length -= count;
+        }
     }
 
     @Override
@@ -212,70 +287,25 @@ public class HtspFileInputStreamDataSource implements DataSource, Closeable, Hts
         Timber.d("Closing file input data source " + dataSourceNumber + ")");
     }
 
-    @Override
-    public void onMessage(@NotNull HtspMessage response) {
-
-    }
-
     // HtspDataSource Methods
     private void release() {
         Timber.d("Releasing file input data source " + dataSourceNumber + ")");
 
-        HtspMessage request = new HtspMessage();
-        request.put("method", "fileClose");
-        request.put("id", fileId);
-        htspConnection.sendMessage(request, null);
-        htspConnection.removeMessageListener(this);
+        closeInputStream();
 
         // Watch for memory leaks
         AppWatcher.INSTANCE.getObjectWatcher().watch(this);
     }
 
-    private void sendFileRead(long offset) {
-        Timber.d("Sending message to read file from offset %s", offset);
-        if (byteBuffer != null && byteBuffer.hasRemaining()) {
-            Timber.d("Buffer is not null and has elements remaining");
-            return;
-        }
-
-        long size = 1024000;
-        if (fileSize != -1) {
-            // Make sure we don't overrun the file
-            if (offset + size > fileSize) {
-                size = fileSize - offset;
-            }
+    private void closeInputStream() {
+        if (inputStream != null) {
+            Timber.d("Closing file %s", fileName);
+            inputStream.close();
+            inputStream = null;
         }
-
-        HtspMessage request = new HtspMessage();
-        request.put("method", "fileRead");
-        request.put("id", fileId);
-        request.put("size", size);
-        request.put("offset", offset);
-
-        Timber.d("Fetching " + size + " bytes of file at offset " + offset);
-        htspConnection.sendMessage(request, response -> {
-            if (response.containsKey("error")) {
-                String error = response.getString("error");
-                Timber.d("Error reading file at " + offset + ": " + error);
-
-            } else {
-                final byte[] data = response.getByteArray("data");
-                Timber.d("Fetched " + data.length + " bytes of file at offset " + offset);
-                filePosition += data.length;
-                byteBuffer = ByteBuffer.wrap(data);
-            }
-            synchronized (request) {
-                request.notify();
-            }
-        });
-
-        Timber.d("Waiting for file read request");
-        synchronized (request) {
-            try {
-                request.wait(5000);
-            } catch (InterruptedException e) {
-                Timber.d(e, "Waiting for fileReadRequest message was interrupted.");
-            }
+        if (chunkCacheKey != null) {
+            Timber.d("Closed file " + fileName + ", " + chunkCache);
+            chunkCacheKey = null;
         }
     }
 }
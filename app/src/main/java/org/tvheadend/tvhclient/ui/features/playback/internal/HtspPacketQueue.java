@@ -0,0 +1,273 @@
+package org.tvheadend.tvhclient.ui.features.playback.internal;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded queue between one thread that adds the received packets and messages of a
+ * subscription and one thread that takes them for the extractor. Both sides work without
+ * locks, the writer only moves the write count and the reader only the read count. A reader
+ * that finds the queue empty is parked until the writer added a packet or the input was ended.
+ * <p>
+ * The queue is limited by the number of packets and by the sum of their sizes. Packets that
+ * do not fit are dropped, the writer must not wait because it is the thread that receives
+ * all messages of the subscription. A {@link FillLevelListener} can be used to slow down the
+ * writer before that happens.
+ */
+final class HtspPacketQueue {
+
+    interface FillLevelListener {
+        /**
+         * Called by the writer when the queue was filled up to the high level
+         */
+        void onHighFillLevel();
+
+        /**
+         * Called by the reader when the queue was emptied down to the low level afterwards
+         */
+        void onLowFillLevel();
+    }
+
+    private final Object[] packets;
+    private final int[] sizes;
+    private final int mask;
+    private final long maxByteCount;
+
+    // Total number of packets and bytes that were added and taken, each is only changed by one side
+    private volatile long writeCount;
+    private volatile long readCount;
+    private volatile long writtenByteCount;
+    private volatile long readByteCount;
+    private volatile Thread waitingReader;
+    private volatile boolean isInputEnded;
+
+    private volatile long maxFillLevel;
+    private volatile long underrunCount;
+    private volatile long underrunTime;
+    private volatile long droppedCount;
+    private volatile long droppedByteCount;
+
+    private FillLevelListener fillLevelListener;
+    private float highFillLevel;
+    private float lowFillLevel;
+    private final AtomicBoolean isAboveLowFillLevel = new AtomicBoolean();
+
+    /**
+     * @param capacity     The maximum number of packets, it is rounded up to a power of two
+     * @param maxByteCount The maximum sum of the sizes of all packets
+     */
+    HtspPacketQueue(int capacity, long maxByteCount) {
+        int slots = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.packets = new Object[slots];
+        this.sizes = new int[slots];
+        this.mask = slots - 1;
+        this.maxByteCount = maxByteCount;
+    }
+
+    /**
+     * Sets the listener that is notified when the queue becomes full and empty again.
+     * Must be called before the first packet is added.
+     *
+     * @param highFillLevel The fill ratio at which the listener is told to slow down the writer
+     * @param lowFillLevel  The fill ratio at which the listener is told that the writer may continue
+     */
+    void setFillLevelListener(FillLevelListener listener, float highFillLevel, float lowFillLevel) {
+        this.fillLevelListener = listener;
+        this.highFillLevel = highFillLevel;
+        this.lowFillLevel = lowFillLevel;
+    }
+
+    /**
+     * Adds the packet if there is space for it. Called by the writer only.
+     *
+     * @param size The number of bytes the packet occupies
+     * @return False if the packet was dropped because the queue is full
+     */
+    boolean offer(Object packet, int size) {
+        long written = writeCount;
+        long fillLevel = writtenByteCount - readByteCount;
+        if (written - readCount == packets.length || size > maxByteCount - fillLevel) {
+            droppedCount++;
+            droppedByteCount += size;
+            return false;
+        }
+
+        int index = (int) written & mask;
+        packets[index] = packet;
+        sizes[index] = size;
+        writtenByteCount += size;
+        // Publishes the packet to the reader
+        writeCount = written + 1;
+
+        if (fillLevel + size > maxFillLevel) {
+            maxFillLevel = fillLevel + size;
+        }
+        wakeUpReader();
+
+        if (fillLevelListener != null && getFillRatio() >= highFillLevel
+                && isAboveLowFillLevel.compareAndSet(false, true)) {
+            fillLevelListener.onHighFillLevel();
+        }
+        return true;
+    }
+
+    /**
+     * Takes the next packet. Called by the reader only. If the queue is
+     * empty it waits until a packet was added or the input was ended.
+     *
+     * @return The packet or null if the input was ended and all packets were taken
+     * @throws InterruptedException If the reader was interrupted while it was waiting
+     */
+    Object take() throws InterruptedException {
+        long read = readCount;
+        if (read == writeCount) {
+            if (isInputEnded) {
+                return null;
+            }
+            awaitPacket();
+            if (read == writeCount) {
+                return null;
+            }
+        }
+
+        int index = (int) read & mask;
+        Object packet = packets[index];
+        packets[index] = null;
+        readByteCount += sizes[index];
+        // Releases the slot to the writer
+        readCount = read + 1;
+
+        if (fillLevelListener != null && getFillRatio() <= lowFillLevel
+                && isAboveLowFillLevel.compareAndSet(true, false)) {
+            fillLevelListener.onLowFillLevel();
+        }
+        return packet;
+    }
+
+    private void awaitPacket() throws InterruptedException {
+        underrunCount++;
+        long start = SystemClock.elapsedRealtime();
+        // The reader registers itself before it checks the state again, the writer changes
+        // the state before it looks for a reader, so one of them always sees the other
+        waitingReader = Thread.currentThread();
+        try {
+            while (readCount == writeCount && !isInputEnded) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            waitingReader = null;
+            underrunTime += SystemClock.elapsedRealtime() - start;
+        }
+    }
+
+    private void wakeUpReader() {
+        Thread reader = waitingReader;
+        if (reader != null) {
+            LockSupport.unpark(reader);
+        }
+    }
+
+    /**
+     * Discards all packets that were added so far. Called by the reader only.
+     */
+    void discard() {
+        long read = readCount;
+        long written = writeCount;
+        long byteCount = 0;
+        for (long i = read; i < written; i++) {
+            int index = (int) i & mask;
+            packets[index] = null;
+            byteCount += sizes[index];
+        }
+        readByteCount += byteCount;
+        readCount = written;
+
+        if (fillLevelListener != null && isAboveLowFillLevel.compareAndSet(true, false)) {
+            fillLevelListener.onLowFillLevel();
+        }
+    }
+
+    /**
+     * Lets the reader get null once all packets were taken,
+     * instead of waiting for more. May be called from any thread.
+     */
+    void endInput() {
+        isInputEnded = true;
+        wakeUpReader();
+    }
+
+    /**
+     * Lets the reader wait for more packets again
+     */
+    void resumeInput() {
+        isInputEnded = false;
+    }
+
+    int getCapacity() {
+        return packets.length;
+    }
+
+    long getMaxByteCount() {
+        return maxByteCount;
+    }
+
+    /**
+     * Returns the number of packets that were added but not yet taken
+     */
+    long getSize() {
+        return writeCount - readCount;
+    }
+
+    /**
+     * Returns the number of bytes of the packets that were added but not yet taken
+     */
+    long getFillLevel() {
+        return writtenByteCount - readByteCount;
+    }
+
+    /**
+     * Returns how full the queue is as a value between 0 and 1, whichever
+     * of the number of packets and the number of bytes is closer to its limit
+     */
+    float getFillRatio() {
+        return Math.max((float) getSize() / packets.length, (float) getFillLevel() / maxByteCount);
+    }
+
+    long getMaxFillLevel() {
+        return maxFillLevel;
+    }
+
+    /**
+     * Returns how often the reader had to wait for packets, including the wait for the first one
+     */
+    long getUnderrunCount() {
+        return underrunCount;
+    }
+
+    /**
+     * Returns the time in milliseconds the reader had to wait for packets
+     */
+    long getUnderrunTime() {
+        return underrunTime;
+    }
+
+    long getDroppedCount() {
+        return droppedCount;
+    }
+
+    long getDroppedByteCount() {
+        return droppedByteCount;
+    }
+
+    @Override
+    public String toString() {
+        return "packet queue with " + getSize() + " of " + packets.length + " packets, " + getFillLevel() + " of "
+                + maxByteCount + " bytes, at most " + maxFillLevel + " bytes, " + underrunCount + " underruns for "
+                + underrunTime + " ms, " + droppedCount + " dropped packets with " + droppedByteCount + " bytes";
+    }
+}
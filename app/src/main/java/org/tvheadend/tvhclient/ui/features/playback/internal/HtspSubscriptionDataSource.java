@@ -20,6 +20,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
 
@@ -33,28 +34,90 @@ import org.jetbrains.annotations.NotNull;
 import org.tvheadend.htsp.HtspConnection;
 import org.tvheadend.htsp.HtspMessage;
 import org.tvheadend.htsp.HtspMessageListener;
+import org.tvheadend.htsp.HtspRecord;
+import org.tvheadend.htsp.HtspRecordListener;
 import org.tvheadend.tvhclient.R;
 import org.tvheadend.tvhclient.data.service.HtspService;
+import org.tvheadend.tvhclient.data.service.MuxpktSchema;
 
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.nio.BufferOverflowException;
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
 
 import leakcanary.AppWatcher;
 import timber.log.Timber;
 
-public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMessageListener, HtspDataSourceInterface {
+/**
+ * Subscribes to a channel and passes the received packets to the {@link HtspSubscriptionExtractor}
+ * through a bounded queue, so that they are not encoded into a byte stream and parsed again.
+ * The data source provides a header, which lets ExoPlayer choose the extractor. Afterwards it
+ * only counts the bytes of the packets that the extractor took, so that the position of the
+ * input advances and ExoPlayer asks its LoadControl if it should continue loading.
+ * <p>
+ * Once the player has buffered enough, the extractor is paused and the queue fills up. Then the
+ * server is paused as well, as long as it can keep the packets in its timeshift buffer. Without
+ * timeshift, or if the queue is filled further, the packets are dropped by their frame type. B frames are dropped first, then
+ * P frames and keyframes only if nothing else is left. Audio packets are sent as keyframes.
+ * Once a P frame or a keyframe was dropped, the following frames of the stream cannot be
+ * decoded, so they are dropped as well until the next keyframe arrives.
+ * <p>
+ * With timeshift, the server reports the part of the subscription it keeps in its buffer in
+ * the timeshift status. Seeking sends a skip to the server, which continues at the keyframe
+ * closest to the requested time and confirms this with a skip message. All packets that arrive
+ * in between still belong to the old position and are discarded. A packet that is closer to the
+ * requested time than to the previous packet also ends the skip, in case the confirmation is late,
+ * and after a timeout all packets are accepted again, so that a server that never confirms the
+ * skip does not stop the playback.
+ * <p>
+ * A standby data source subscribes to a channel before it is played, with a low weight and a
+ * small queue on the server. It only keeps the packets since the last keyframe of the video
+ * stream. When it is played, these packets are passed to the extractor first, so that the
+ * player can start without waiting for the server to tune and send the next keyframe, and
+ * the weight of the subscription is raised to the one of a normal subscription.
+ */
+public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMessageListener, HtspRecordListener, HtspDataSourceInterface, HtspPacketQueue.FillLevelListener {
 
     private static final AtomicInteger dataSourceCount = new AtomicInteger();
     private static final AtomicInteger subscriptionCount = new AtomicInteger();
 
+    private static final int QUEUE_CAPACITY = 4096;
     private static final int BUFFER_SIZE = 10 * 1024 * 1024;
+    // Space that a message without payload is assumed to occupy in the queue
+    private static final int MESSAGE_SIZE = 1024;
     static final byte[] HEADER = new byte[]{0, 1, 0, 1, 0, 1, 0, 1};
+    // Lets ExoPlayer check its LoadControl at least every two seconds, even for a radio channel with 128 kbit/s
+    static final int CONTINUE_LOADING_CHECK_INTERVAL_BYTES = 32 * 1024;
+
+    // Fill ratios of the queue at which the server is paused and resumed, and at which frames are
+    // dropped. The queue only fills up while the LoadControl of ExoPlayer pauses the extractor
+    // because enough is buffered, and it fills at the rate of the stream. Pausing the server at
+    // half of the queue leaves room for the packets that are sent until the pause arrives. When
+    // it is resumed at a quarter, the rest of the queue covers the time until the packets arrive
+    // again, while the buffer of ExoPlayer behind the queue still holds at least its minimum.
+    // Frames are only dropped if the server cannot be paused because it has no timeshift.
+    private static final float THROTTLE_FILL_LEVEL = 0.5f;
+    private static final float UNTHROTTLE_FILL_LEVEL = 0.25f;
+    private static final float B_FRAME_DROP_FILL_LEVEL = 0.75f;
+    private static final float P_FRAME_DROP_FILL_LEVEL = 0.9f;
+
+    private static final int FRAME_TYPE_I = 'I';
+    private static final int FRAME_TYPE_P = 'P';
+    private static final int FRAME_TYPE_B = 'B';
+
+    // Standby subscriptions give way to all others and let the server drop packets early. The
+    // queue depth cannot be changed later, HTSP only allows to change the weight of a subscription.
+    private static final int STANDBY_WEIGHT = 10;
+    private static final int STANDBY_QUEUE_DEPTH = 512 * 1024;
+    // The weight that the server gives to subscriptions without a weight
+    private static final int NORMAL_WEIGHT = 150;
+    // The packets since the last keyframe are discarded if they exceed this size
+    private static final int STANDBY_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    // Packets are accepted again if the server did not confirm a skip within this time in milliseconds
+    private static final long SKIP_TIMEOUT = 3000;
 
     private final Context context;
     private final HtspConnection htspConnection;
@@ -62,30 +125,91 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
     private DataSpec dataSpec;
     private final int dataSourceNumber;
     private final int subscriptionId;
-    private ByteBuffer byteBuffer;
+    private final HtspPacketQueue packetQueue;
+    private int headerPosition;
     private int timeshiftPeriod = 0;
-    private final ReentrantLock lock = new ReentrantLock();
-    private boolean subscriptionStarted = false;
+    private volatile int availableTimeshiftPeriod = 0;
     private boolean isSubscribed = false;
+    private volatile boolean isStopped = false;
+
+    // The start message and the packets since the last keyframe while the data source is on standby
+    private volatile boolean isStandby = false;
+    private final List<HtspRecord> standbyPackets = new ArrayList<>();
+    private HtspMessage standbyStartMessage;
+    private int standbyVideoStream = -1;
+    private long standbyByteCount;
+
+    // The speed that was last requested by the player and if the server was paused because the queue is full
+    private volatile int speed = 100;
+    private volatile boolean isThrottled = false;
+
+    // Streams whose frames are dropped until the next keyframe, only used by the thread that receives the packets
+    private final Set<Integer> streamsAwaitingKeyFrame = new HashSet<>();
+    private volatile long droppedKeyFrameCount;
+    private volatile long droppedPFrameCount;
+    private volatile long droppedBFrameCount;
+    private volatile long throttleCount;
+
+    // The last timeshift status, the start and end are the times of the oldest and newest packets in the
+    // buffer of the server and the shift is how far the played packets are behind the newest one
+    private volatile long timeshiftStart = Long.MIN_VALUE;
+    private volatile long timeshiftEnd = Long.MIN_VALUE;
+    private volatile long timeshiftShift = 0;
+    private volatile long timeshiftStatusTime = 0;
+
+    // Skips that were sent to the server and not yet confirmed
+    private final AtomicInteger pendingSkipCount = new AtomicInteger();
+    private volatile long skipRequestTime;
+    private volatile long skipTargetTime;
+    // The time of the last received packet, only used by the thread that receives the packets
+    private long lastPacketTime = Long.MIN_VALUE;
+    private volatile long lastSkipLatency;
+    private volatile long skipCount;
+
+    // Frames the server dropped for this subscription, as reported by the last queue status
+    private volatile long serverDroppedKeyFrameCount;
+    private volatile long serverDroppedPFrameCount;
+    private volatile long serverDroppedBFrameCount;
 
     public static class Factory implements DataSource.Factory {
 
         private final Context context;
         private final HtspConnection htspConnection;
         private final String streamProfile;
-        private HtspSubscriptionDataSource dataSource;
+        private HtspSubscriptionDataSource standbyDataSource;
+        private volatile HtspSubscriptionDataSource dataSource;
 
         Factory(Context context, HtspConnection htspConnection, String streamProfile) {
+            this(context, htspConnection, streamProfile, null);
+        }
+
+        /**
+         * @param standbyDataSource A data source that is already subscribed to the channel that
+         *                          will be played, it is used instead of creating a new one
+         */
+        Factory(Context context, HtspConnection htspConnection, String streamProfile, HtspSubscriptionDataSource standbyDataSource) {
             Timber.d("Initializing subscription data source factory");
             this.context = context;
             this.htspConnection = htspConnection;
             this.streamProfile = streamProfile;
+            this.standbyDataSource = standbyDataSource;
         }
 
         @Override
         public DataSource createDataSource() {
-            Timber.d("Created new data source from factory");
-            dataSource = new HtspSubscriptionDataSource(context, htspConnection, streamProfile);
+            if (standbyDataSource != null && !standbyDataSource.isStopped()) {
+                Timber.d("Using standby data source from factory");
+                dataSource = standbyDataSource;
+                dataSource.activate();
+            } else {
+                if (standbyDataSource != null) {
+                    Timber.d("Standby subscription was stopped by the server");
+                    standbyDataSource.release();
+                }
+                Timber.d("Created new data source from factory");
+                dataSource = new HtspSubscriptionDataSource(context, htspConnection, streamProfile);
+            }
+            standbyDataSource = null;
             return dataSource;
         }
 
@@ -94,6 +218,22 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
             return dataSource;
         }
 
+        /**
+         * Returns the time that the current data source can skip to which is closest to the given time
+         */
+        long getSeekTimeUs(long timeUs) {
+            HtspSubscriptionDataSource currentDataSource = dataSource;
+            return currentDataSource != null ? currentDataSource.getSeekTimeUs(timeUs) : timeUs;
+        }
+
+        /**
+         * Returns the queue with the packets of the current data source for the extractor
+         */
+        HtspPacketQueue getCurrentPacketQueue() {
+            HtspSubscriptionDataSource currentDataSource = dataSource;
+            return currentDataSource != null ? currentDataSource.packetQueue : null;
+        }
+
         void releaseCurrentDataSource() {
             Timber.d("Releasing data source");
             if (dataSource != null) {
@@ -106,7 +246,6 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
         Timber.d("Initializing subscription data source");
         this.context = context;
         this.htspConnection = htspConnection;
-        this.htspConnection.addMessageListener(this);
         this.streamProfile = streamProfile;
 
         SharedPreferences mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
@@ -122,11 +261,8 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
         Timber.d("New subscription data source instantiated (" + dataSourceNumber + ")");
 
         try {
-            // Create the buffer, and place the HtspSubscriptionDataSource header in place.
-            byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-            byteBuffer.limit(HEADER.length);
-            byteBuffer.put(HEADER);
-            byteBuffer.position(0);
+            packetQueue = new HtspPacketQueue(QUEUE_CAPACITY, BUFFER_SIZE);
+            packetQueue.setFillLevelListener(this, THROTTLE_FILL_LEVEL, UNTHROTTLE_FILL_LEVEL);
 
         } catch (OutOfMemoryError e) {
             // Since we're allocating a large buffer here, it's fairly safe to assume we'll have
@@ -135,6 +271,21 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
             // doesn't group things nicely.
             throw new RuntimeException("OutOfMemoryError when allocating subscription data source buffer (" + dataSourceNumber + ")", e);
         }
+
+        // The queue must exist before the first message arrives
+        this.htspConnection.addMessageListener(this);
+        this.htspConnection.addRecordListener(MuxpktSchema.INSTANCE.getSchema(), this, true);
+    }
+
+    /**
+     * Subscribes to the channel in the background, the packets are kept until
+     * the data source is passed to a {@link Factory} that plays the channel
+     */
+    static HtspSubscriptionDataSource createStandbyDataSource(Context context, HtspConnection htspConnection, String streamProfile, int channelId) {
+        HtspSubscriptionDataSource dataSource = new HtspSubscriptionDataSource(context, htspConnection, streamProfile);
+        dataSource.isStandby = true;
+        dataSource.subscribe(channelId);
+        return dataSource;
     }
 
     @Override
@@ -148,37 +299,20 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
     public long open(DataSpec dataSpec) {
         Timber.d("Opening subscription data source " + dataSourceNumber + ")");
         this.dataSpec = dataSpec;
+        // The header is only expected at the start, the extractor was already chosen for other positions
+        headerPosition = dataSpec.position == 0 ? 0 : HEADER.length;
 
         if (!isSubscribed) {
             String path = dataSpec.uri.getPath();
             Timber.d("We are not yet subscribed to path %s", path);
             if (path != null && path.length() > 0) {
-
-                int channelId = Integer.parseInt(path.substring(1));
-                Timber.d("Sending subscription start to service with id " + subscriptionId + " for channel id " + channelId);
-
-                HtspMessage request = new HtspMessage();
-                request.setMethod("subscribe");
-                request.put("subscriptionId", subscriptionId);
-                request.put("channelId", channelId);
-                request.put("timeshiftPeriod", timeshiftPeriod);
-
-                if (!TextUtils.isEmpty(streamProfile)) {
-                    request.put("profile", streamProfile);
-                }
-
-                htspConnection.sendMessage(request, response -> {
-                    Timber.d("Received subscribe response");
-                    int availableTimeshiftPeriod = response.getInteger("timeshiftPeriod", 0);
-                    Timber.d("Available timeshift period in seconds: %s", availableTimeshiftPeriod);
-                });
-                isSubscribed = true;
+                subscribe(Integer.parseInt(path.substring(1)));
             }
         }
 
         Timber.d("Getting seek position");
         long seekPosition = this.dataSpec.position;
-        if (seekPosition > 0 && timeshiftPeriod > 0) {
+        if (seekPosition > 0 && availableTimeshiftPeriod > 0) {
             Timber.d("Sending subscription skip to server with id " + subscriptionId + " with time PTS: " + seekPosition);
 
             HtspMessage request = new HtspMessage();
@@ -187,54 +321,100 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
             request.put("time", seekPosition);
             request.put("absolute", 1);
 
-            htspConnection.sendMessage(request, null);
+            // Packets of the old position are discarded from now on until the server confirms the skip
+            skipRequestTime = SystemClock.elapsedRealtime();
+            skipTargetTime = seekPosition;
+            pendingSkipCount.incrementAndGet();
+            htspConnection.sendMessage(request, response -> {
+                if (response.containsKey("error")) {
+                    Timber.d("Server could not skip to " + seekPosition + ": " + response.getString("error"));
+                    finishSkip();
+                }
+            });
 
-            byteBuffer.clear();
-            byteBuffer.limit(0);
+            packetQueue.discard();
         }
 
-        subscriptionStarted = true;
+        packetQueue.resumeInput();
 
         return C.LENGTH_UNSET;
     }
 
-    @Override
-    public int read(byte[] buffer, int offset, int readLength) {
-        if (readLength == 0) {
-            return 0;
-        }
+    private void subscribe(int channelId) {
+        Timber.d("Sending subscription start to service with id " + subscriptionId + " for channel id " + channelId + (isStandby ? " on standby" : ""));
 
-        // If the buffer is empty, block until we have at least 1 byte
-        while (subscriptionStarted && byteBuffer.remaining() == 0) {
-            try {
-                Timber.v("Blocking for more data (" + dataSourceNumber + ")");
-                Thread.sleep(250);
-            } catch (InterruptedException e) {
-                // Ignore.
-                Timber.w("Caught InterruptedException (" + dataSourceNumber + ")");
-                return 0;
-            }
-        }
+        HtspMessage request = new HtspMessage();
+        request.setMethod("subscribe");
+        request.put("subscriptionId", subscriptionId);
+        request.put("channelId", channelId);
+        request.put("timeshiftPeriod", timeshiftPeriod);
 
-        if (!subscriptionStarted && byteBuffer.remaining() == 0) {
-            Timber.d("End of input buffer");
-            return C.RESULT_END_OF_INPUT;
+        if (!TextUtils.isEmpty(streamProfile)) {
+            request.put("profile", streamProfile);
+        }
+        if (isStandby) {
+            request.put("weight", STANDBY_WEIGHT);
+            request.put("queueDepth", STANDBY_QUEUE_DEPTH);
         }
 
-        int length;
+        htspConnection.sendMessage(request, response -> {
+            Timber.d("Received subscribe response");
+            availableTimeshiftPeriod = response.getInteger("timeshiftPeriod", 0);
+            Timber.d("Available timeshift period in seconds: %s", availableTimeshiftPeriod);
+        });
+        isSubscribed = true;
+    }
 
-        lock.lock();
-        try {
-            int remaining = byteBuffer.remaining();
-            length = remaining >= readLength ? readLength : remaining;
+    /**
+     * Passes the packets that were kept on standby to the extractor, all following ones are
+     * added directly. The server does not change the weight of a subscription by itself, so
+     * it is raised to the normal weight, otherwise any recording could take the tuner away.
+     */
+    private void activate() {
+        HtspMessage request = new HtspMessage();
+        request.setMethod("subscriptionChangeWeight");
+        request.put("subscriptionId", subscriptionId);
+        request.put("weight", NORMAL_WEIGHT);
+        htspConnection.sendMessage(request, null);
 
-            byteBuffer.get(buffer, offset, length);
-            byteBuffer.compact();
-            byteBuffer.flip();
-        } finally {
-            lock.unlock();
+        synchronized (standbyPackets) {
+            Timber.d("Activating standby data source (" + dataSourceNumber + ") with " + standbyPackets.size() + " packets");
+            if (standbyStartMessage != null) {
+                addMessageToQueue(standbyStartMessage);
+            }
+            for (HtspRecord record : standbyPackets) {
+                addPacketToQueue(record);
+            }
+            standbyPackets.clear();
+            standbyStartMessage = null;
+            isStandby = false;
         }
+    }
+
+    /**
+     * Returns true if the server stopped the subscription, for example because no tuner was free
+     */
+    boolean isStopped() {
+        return isStopped;
+    }
 
+    /**
+     * Provides the header that identifies the subscription, the packets are taken by the
+     * extractor from the queue of the data source. Afterwards the extractor skips the size of
+     * each packet it took, which only moves the position of the input without copying data.
+     */
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) {
+        if (readLength == 0) {
+            return 0;
+        }
+        if (headerPosition == HEADER.length) {
+            return readLength;
+        }
+
+        int length = Math.min(readLength, HEADER.length - headerPosition);
+        System.arraycopy(HEADER, headerPosition, buffer, offset, length);
+        headerPosition += length;
         return length;
     }
 
@@ -249,29 +429,54 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
 
     @Override
     public void close() {
-        Timber.d("Closing subscription data source " + dataSourceNumber + ")");
-        subscriptionStarted = false;
+        Timber.d("Closing subscription data source " + dataSourceNumber + "), " + packetQueue);
+        packetQueue.endInput();
     }
 
     @Override
     public void onMessage(@NotNull HtspMessage message) {
+        if (message.getInteger("subscriptionId", subscriptionId) != subscriptionId) {
+            return;
+        }
         String method = message.getMethod();
         switch (method) {
             case "subscriptionStart":
-            case "muxpkt":
-                serializeMessageToBuffer(message);
+                if (isStandby) {
+                    synchronized (standbyPackets) {
+                        if (isStandby) {
+                            setStandbyStartMessage(message);
+                            break;
+                        }
+                    }
+                }
+                addMessageToQueue(message);
                 break;
 
             case "subscriptionStop":
-                subscriptionStarted = false;
+                isStopped = true;
+                packetQueue.endInput();
                 break;
 
-            case "subscriptionStatus":
             case "subscriptionSkip":
-            case "subscriptionSpeed":
+                handleSubscriptionSkip(message);
+                break;
+
+            case "timeshiftStatus":
+                timeshiftStart = message.getLong("start", Long.MIN_VALUE);
+                timeshiftEnd = message.getLong("end", Long.MIN_VALUE);
+                timeshiftShift = message.getLong("shift", 0);
+                timeshiftStatusTime = System.currentTimeMillis();
+                break;
+
             case "queueStatus":
+                serverDroppedKeyFrameCount = message.getLong("Idrops", 0);
+                serverDroppedPFrameCount = message.getLong("Pdrops", 0);
+                serverDroppedBFrameCount = message.getLong("Bdrops", 0);
+                break;
+
+            case "subscriptionStatus":
+            case "subscriptionSpeed":
             case "signalStatus":
-            case "timeshiftStatus":
                 break;
 
             default:
@@ -279,14 +484,83 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
         }
     }
 
-    private void release() {
-        Timber.d("Releasing subscription data source " + dataSourceNumber + ")");
+    /**
+     * Receives the muxpkt messages, which are decoded into records without a map per packet
+     */
+    @Override
+    public void onRecord(@NotNull HtspRecord record) {
+        if (record.getInteger(MuxpktSchema.INSTANCE.getSubscriptionId()) != subscriptionId) {
+            return;
+        }
+        long previousTime = lastPacketTime;
+        lastPacketTime = record.getLong(MuxpktSchema.INSTANCE.getPts(), previousTime);
+        if (pendingSkipCount.get() > 0 && isSentBeforeSkip(record, previousTime)) {
+            return;
+        }
+        if (isStandby) {
+            synchronized (standbyPackets) {
+                if (isStandby) {
+                    addPacketToStandby(record);
+                    return;
+                }
+            }
+        }
+        addPacketToQueue(record);
+    }
+
+    private void handleSubscriptionSkip(@NonNull HtspMessage message) {
+        if (pendingSkipCount.get() == 0) {
+            return;
+        }
+        lastSkipLatency = SystemClock.elapsedRealtime() - skipRequestTime;
+        skipCount++;
+        Timber.d("Server skipped to " + message.getLong("time", Long.MIN_VALUE) + " after " + lastSkipLatency
+                + " ms (" + dataSourceNumber + ")" + (message.containsKey("error") ? ", skip failed" : ""));
+        finishSkip();
+    }
+
+    /**
+     * Returns true if the packet was sent by the server before it skipped to the new position.
+     * The packets of the old position continue from the previous one, the first packet after
+     * the skip is closer to the requested time. Such a packet or the timeout end all pending skips.
+     *
+     * @param previousTime The time of the packet that was received before
+     */
+    private boolean isSentBeforeSkip(@NonNull HtspRecord record, long previousTime) {
+        long time = record.getLong(MuxpktSchema.INSTANCE.getPts(), Long.MIN_VALUE);
+        long elapsedTime = SystemClock.elapsedRealtime() - skipRequestTime;
+        if (elapsedTime > SKIP_TIMEOUT) {
+            Timber.d("Server did not confirm the skip within " + elapsedTime + " ms (" + dataSourceNumber + ")");
+        } else if (time == Long.MIN_VALUE || previousTime == Long.MIN_VALUE
+                || Math.abs(time - skipTargetTime) >= Math.abs(time - previousTime)) {
+            return true;
+        }
+        pendingSkipCount.set(0);
+        return false;
+    }
+
+    /**
+     * Ends the oldest pending skip, if there is still one
+     */
+    private void finishSkip() {
+        int count;
+        do {
+            count = pendingSkipCount.get();
+            if (count == 0) {
+                return;
+            }
+        } while (!pendingSkipCount.compareAndSet(count, count - 1));
+    }
+
+    void release() {
+        Timber.d("Releasing subscription data source " + dataSourceNumber + "), " + packetQueue);
 
         HtspMessage request = new HtspMessage();
         request.put("method", "unsubscribe");
         request.put("subscriptionId", subscriptionId);
         htspConnection.sendMessage(request, null);
         htspConnection.removeMessageListener(this);
+        htspConnection.removeRecordListener(MuxpktSchema.INSTANCE.getSchema(), this);
 
         // Watch for memory leaks
         AppWatcher.INSTANCE.getObjectWatcher().watch(this);
@@ -294,6 +568,8 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
 
     public void pause() {
         Timber.d("Pausing subscription data source " + dataSourceNumber + ")");
+        speed = 0;
+        isThrottled = false;
 
         HtspMessage request = new HtspMessage();
         request.put("method", "subscriptionSpeed");
@@ -302,13 +578,23 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
         htspConnection.sendMessage(request, null);
     }
 
+    /**
+     * Returns how far the played packets are behind the live position as a negative value
+     * in microseconds, or {@link Long#MIN_VALUE} if the server sent no timeshift status
+     */
     @Override
     public long getTimeshiftOffsetPts() {
-        return 0;
+        if (timeshiftStatusTime == 0) {
+            return Long.MIN_VALUE;
+        }
+        return -timeshiftShift;
     }
 
     @Override
     public void setSpeed(int tvhSpeed) {
+        speed = tvhSpeed;
+        isThrottled = false;
+
         HtspMessage request = new HtspMessage();
         request.put("method", "subscriptionSpeed");
         request.put("subscriptionId", subscriptionId);
@@ -316,18 +602,66 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
         htspConnection.sendMessage(request, null);
     }
 
+    /**
+     * Returns the wall clock time in microseconds at which the oldest packet in the
+     * timeshift buffer was live, or {@link Long#MIN_VALUE} if it is not known
+     */
     @Override
     public long getTimeshiftStartTime() {
-        return 0;
+        long start = timeshiftStart;
+        long end = timeshiftEnd;
+        if (start == Long.MIN_VALUE || end == Long.MIN_VALUE) {
+            return Long.MIN_VALUE;
+        }
+        return timeshiftStatusTime * 1000 - (end - start);
     }
 
+    /**
+     * Returns the time of the oldest packet in the timeshift buffer
+     * in microseconds, or {@link Long#MIN_VALUE} if it is not known
+     */
     @Override
     public long getTimeshiftStartPts() {
-        return 0;
+        return timeshiftStart;
+    }
+
+    /**
+     * Returns the time of the newest packet in the timeshift buffer
+     * in microseconds, or {@link Long#MIN_VALUE} if it is not known
+     */
+    public long getTimeshiftEndPts() {
+        return timeshiftEnd;
+    }
+
+    /**
+     * Returns the duration of the timeshift buffer in microseconds, or 0 if it is not known
+     */
+    public long getTimeshiftDuration() {
+        long start = timeshiftStart;
+        long end = timeshiftEnd;
+        if (start == Long.MIN_VALUE || end == Long.MIN_VALUE) {
+            return 0;
+        }
+        return end - start;
+    }
+
+    /**
+     * Limits the time to the part of the subscription that is kept in the timeshift buffer
+     */
+    long getSeekTimeUs(long timeUs) {
+        long start = timeshiftStart;
+        long end = timeshiftEnd;
+        if (start == Long.MIN_VALUE || end == Long.MIN_VALUE) {
+            return timeUs;
+        }
+        return Math.max(start, Math.min(timeUs, end));
     }
 
     public void resume() {
         Timber.d("Resuming subscription data source " + dataSourceNumber + ")");
+        speed = 100;
+        isThrottled = false;
+
         Intent intent = new Intent(context, HtspService.class);
         intent.putExtra("method", "subscriptionSpeed");
         intent.putExtra("subscriptionId", subscriptionId);
@@ -335,29 +669,208 @@ public class HtspSubscriptionDataSource implements DataSource, Closeable, HtspMe
         context.startService(intent);
     }
 
+    /**
+     * Returns the number of received bytes that were not yet taken by the player
+     */
+    public long getBufferFillLevel() {
+        return packetQueue.getFillLevel();
+    }
+
+    public long getBufferCapacity() {
+        return packetQueue.getMaxByteCount();
+    }
+
+    /**
+     * Returns how often the player had to wait for data from the server
+     */
+    public long getUnderrunCount() {
+        return packetQueue.getUnderrunCount();
+    }
+
+    /**
+     * Returns how many packets were dropped because the queue was full
+     */
+    public long getDroppedMessageCount() {
+        return droppedKeyFrameCount + droppedPFrameCount + droppedBFrameCount;
+    }
+
+    /**
+     * Returns how many keyframes and audio packets were dropped because the queue was full
+     */
+    public long getDroppedKeyFrameCount() {
+        return droppedKeyFrameCount;
+    }
+
+    public long getDroppedPFrameCount() {
+        return droppedPFrameCount;
+    }
+
+    public long getDroppedBFrameCount() {
+        return droppedBFrameCount;
+    }
+
+    public long getSkipCount() {
+        return skipCount;
+    }
+
+    /**
+     * Returns the time in milliseconds between sending the last skip and its confirmation by the server
+     */
+    public long getLastSkipLatency() {
+        return lastSkipLatency;
+    }
+
+    /**
+     * Returns how often the server was paused because the queue was filled up
+     */
+    public long getThrottleCount() {
+        return throttleCount;
+    }
+
+    public long getServerDroppedKeyFrameCount() {
+        return serverDroppedKeyFrameCount;
+    }
+
+    public long getServerDroppedPFrameCount() {
+        return serverDroppedPFrameCount;
+    }
+
+    public long getServerDroppedBFrameCount() {
+        return serverDroppedBFrameCount;
+    }
+
+    /**
+     * Pauses the server while the player catches up. This is only
+     * possible if the server keeps the packets in its timeshift buffer.
+     */
+    @Override
+    public void onHighFillLevel() {
+        if (speed == 0 || availableTimeshiftPeriod <= 0) {
+            return;
+        }
+        Timber.d("Queue is filling up, pausing the server (" + dataSourceNumber + "), " + packetQueue);
+        isThrottled = true;
+        throttleCount++;
+        sendSpeed(0);
+    }
+
+    @Override
+    public void onLowFillLevel() {
+        if (!isThrottled) {
+            return;
+        }
+        Timber.d("Queue was emptied, resuming the server (" + dataSourceNumber + "), " + packetQueue);
+        isThrottled = false;
+        sendSpeed(speed);
+    }
+
+    private void sendSpeed(int tvhSpeed) {
+        HtspMessage request = new HtspMessage();
+        request.put("method", "subscriptionSpeed");
+        request.put("subscriptionId", subscriptionId);
+        request.put("speed", tvhSpeed);
+        htspConnection.sendMessage(request, null);
+    }
+
     // Misc Internal Methods
-    private void serializeMessageToBuffer(@NonNull HtspMessage message) {
-        lock.lock();
-        try {
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            ObjectOutputStream objectOutput = new ObjectOutputStream(outputStream);
-            objectOutput.writeUnshared(message);
-            objectOutput.flush();
+    private void addPacketToQueue(@NonNull HtspRecord record) {
+        MuxpktSchema schema = MuxpktSchema.INSTANCE;
+        byte[] payload = record.getByteArray(schema.getPayload());
+        if (payload == null || !record.has(schema.getPts())) {
+            Timber.v("Discarding packet without payload or pts (" + dataSourceNumber + ")");
+            return;
+        }
 
-            byteBuffer.position(byteBuffer.limit());
-            byteBuffer.limit(byteBuffer.capacity());
+        Integer stream = record.getInteger(schema.getStream(), 0);
+        int frameType = record.getInteger(schema.getFrametype(), FRAME_TYPE_I);
+        if (frameType != FRAME_TYPE_I && streamsAwaitingKeyFrame.contains(stream)) {
+            countDroppedFrame(frameType);
+            return;
+        }
 
-            byteBuffer.put(outputStream.toByteArray());
+        float fillRatio = packetQueue.getFillRatio();
+        boolean isAdded;
+        if (frameType == FRAME_TYPE_B) {
+            // B frames are not referenced by other frames, so the stream can be decoded without them
+            isAdded = fillRatio < B_FRAME_DROP_FILL_LEVEL && packetQueue.offer(record, payload.length);
+        } else if (frameType == FRAME_TYPE_P) {
+            isAdded = fillRatio < P_FRAME_DROP_FILL_LEVEL && packetQueue.offer(record, payload.length);
+        } else {
+            isAdded = packetQueue.offer(record, payload.length);
+        }
+
+        if (isAdded) {
+            if (frameType == FRAME_TYPE_I) {
+                streamsAwaitingKeyFrame.remove(stream);
+            }
+            return;
+        }
+
+        countDroppedFrame(frameType);
+        if (frameType != FRAME_TYPE_B) {
+            streamsAwaitingKeyFrame.add(stream);
+        }
+        Timber.w("Queue is full, dropping frame of type " + (char) frameType + " (" + dataSourceNumber + "), " + packetQueue);
+    }
+
+    private void countDroppedFrame(int frameType) {
+        if (frameType == FRAME_TYPE_B) {
+            droppedBFrameCount++;
+        } else if (frameType == FRAME_TYPE_P) {
+            droppedPFrameCount++;
+        } else {
+            droppedKeyFrameCount++;
+        }
+    }
+
+    private void setStandbyStartMessage(@NonNull HtspMessage message) {
+        standbyStartMessage = message;
+        standbyVideoStream = -1;
+        List<?> streams = message.getList("streams");
+        if (streams == null) {
+            return;
+        }
+        for (Object obj : streams) {
+            HtspMessage stream = (HtspMessage) obj;
+            String type = stream.getString("type", "");
+            if (type.equals("H264") || type.equals("HEVC") || type.equals("MPEG2VIDEO")) {
+                standbyVideoStream = stream.getInteger("index");
+                break;
+            }
+        }
+    }
+
+    /**
+     * Keeps the packets since the last keyframe of the video stream. Nothing is kept for
+     * channels without video, their packets can be played as soon as they arrive.
+     */
+    private void addPacketToStandby(@NonNull HtspRecord record) {
+        MuxpktSchema schema = MuxpktSchema.INSTANCE;
+        byte[] payload = record.getByteArray(schema.getPayload());
+        if (standbyVideoStream < 0 || payload == null) {
+            return;
+        }
+        if (record.getInteger(schema.getStream(), 0) == standbyVideoStream
+                && record.getInteger(schema.getFrametype(), FRAME_TYPE_I) == FRAME_TYPE_I) {
+            standbyPackets.clear();
+            standbyByteCount = 0;
+        } else if (standbyPackets.isEmpty()) {
+            return;
+        }
+
+        if (standbyByteCount + payload.length > STANDBY_BUFFER_SIZE) {
+            Timber.d("Discarding standby packets, no keyframe within " + standbyByteCount + " bytes (" + dataSourceNumber + ")");
+            standbyPackets.clear();
+            standbyByteCount = 0;
+            return;
+        }
+        standbyPackets.add(record);
+        standbyByteCount += payload.length;
+    }
 
-            byteBuffer.flip();
-        } catch (IOException e) {
-            // Ignore?
-            Timber.w(e, "Caught IOException, ignoring (" + dataSourceNumber + ")");
-        } catch (BufferOverflowException e) {
-            Timber.w(e, "Caught BufferOverflowException, ignoring (" + dataSourceNumber + ")");
-        } finally {
-            lock.unlock();
-            // Ignore
+    private void addMessageToQueue(@NonNull HtspMessage message) {
+        if (!packetQueue.offer(message, MESSAGE_SIZE)) {
+            Timber.w("Queue is full, dropping message (" + dataSourceNumber + "), " + packetQueue);
         }
     }
-}
+}
\ No newline at end of file
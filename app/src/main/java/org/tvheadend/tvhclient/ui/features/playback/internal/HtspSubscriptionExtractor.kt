@@ -21,20 +21,30 @@ import com.google.android.exoplayer2.C
 import com.google.android.exoplayer2.extractor.*
 import com.google.android.exoplayer2.util.ParsableByteArray
 import org.tvheadend.htsp.HtspMessage
+import org.tvheadend.htsp.HtspRecord
+import org.tvheadend.tvhclient.data.service.MuxpktSchema
 import org.tvheadend.tvhclient.ui.features.playback.internal.reader.StreamReader
 import org.tvheadend.tvhclient.ui.features.playback.internal.reader.StreamReadersFactory
 import timber.log.Timber
-import java.io.ByteArrayInputStream
 import java.io.IOException
-import java.io.ObjectInputStream
 import java.util.*
 
-internal class HtspSubscriptionExtractor : Extractor {
+/**
+ * Passes the packets of a subscription to the stream readers. The packets are taken from the
+ * queue of the current data source of the factory, the input only provides the header. The
+ * size of each packet is skipped in the input, so that its position advances like for a file
+ * and ExoPlayer regularly asks its LoadControl whether it should continue loading.
+ */
+internal class HtspSubscriptionExtractor(private val dataSourceFactory: HtspSubscriptionDataSource.Factory?) : Extractor {
 
     private lateinit var mOutput: ExtractorOutput
     private val mStreamReaders = SparseArray<StreamReader>()
-    private val mRawBytes = ByteArray(1024 * 1024)
 
+    /**
+     * The position of a seek point is the time that the data source asks the server to skip to.
+     * The server continues at the keyframe closest to it. The duration stays unset, the
+     * subscription is live and its timeshift buffer grows while it is played.
+     */
     private inner class HtspSeekMap : SeekMap {
         override fun isSeekable(): Boolean {
             return true
@@ -44,14 +54,18 @@ internal class HtspSubscriptionExtractor : Extractor {
             return C.TIME_UNSET
         }
 
-        override fun getSeekPoints(timeUs: Long): SeekMap.SeekPoints? {
-            return null
+        override fun getSeekPoints(timeUs: Long): SeekMap.SeekPoints {
+            val seekTimeUs = dataSourceFactory?.getSeekTimeUs(timeUs) ?: timeUs
+            return SeekMap.SeekPoints(SeekPoint(seekTimeUs, seekTimeUs))
         }
     }
 
     // Extractor Methods
     @Throws(IOException::class, InterruptedException::class)
     override fun sniff(input: ExtractorInput): Boolean {
+        if (dataSourceFactory == null) {
+            return false
+        }
         val scratch = ParsableByteArray(HtspSubscriptionDataSource.HEADER.size)
         // Find 8 bytes equal to HEADER at the start of the input.
         input.peekFully(scratch.data, 0, HtspSubscriptionDataSource.HEADER.size)
@@ -66,33 +80,16 @@ internal class HtspSubscriptionExtractor : Extractor {
 
     @Throws(IOException::class, InterruptedException::class)
     override fun read(input: ExtractorInput, seekPosition: PositionHolder): Int {
-        val bytesRead = input.read(mRawBytes, 0, mRawBytes.size)
-        Timber.d("Read $bytesRead bytes")
-
-        var objectInput: ObjectInputStream? = null
-        try {
-            ByteArrayInputStream(mRawBytes, 0, bytesRead).use { inputStream ->
-                while (inputStream.available() > 0) {
-                    objectInput = ObjectInputStream(inputStream)
-                    handleMessage(objectInput!!.readUnshared() as HtspMessage)
-                }
-            }
-        } catch (e: IOException) {
-            // TODO: This is a problem, and returning RESULT_CONTINUE is a hack... I think?
-            Timber.w("Caught IOException, returning RESULT_CONTINUE")
-            return Extractor.RESULT_CONTINUE
-        } catch (e: ClassNotFoundException) {
-            Timber.w("Class Not Found")
-        } finally {
-            try {
-                if (objectInput != null) {
-                    objectInput!!.close()
-                }
-            } catch (ex: IOException) {
-                // Ignore
-            }
+        if (input.position == 0L) {
+            input.skipFully(HtspSubscriptionDataSource.HEADER.size)
+        }
 
-        }// N.B. Don't add the objectInput to this bit, it breaks stuff
+        val packet = dataSourceFactory?.currentPacketQueue?.take()
+        when (packet) {
+            null -> return Extractor.RESULT_END_OF_INPUT
+            is HtspRecord -> input.skipFully(handlePacket(packet))
+            is HtspMessage -> handleMessage(packet)
+        }
         return Extractor.RESULT_CONTINUE
     }
 
@@ -111,8 +108,6 @@ internal class HtspSubscriptionExtractor : Extractor {
 
         if (method == "subscriptionStart") {
             handleSubscriptionStart(message)
-        } else if (method == "muxpkt") {
-            handleMuxpkt(message)
         }
     }
 
@@ -139,17 +134,21 @@ internal class HtspSubscriptionExtractor : Extractor {
         mOutput.endTracks()
     }
 
-    private fun handleMuxpkt(message: HtspMessage) {
-        //        subscriptionId     u32   required   Subscription ID.
+    /**
+     * @return The size of the payload of the packet
+     */
+    private fun handlePacket(record: HtspRecord): Int {
         //        frametype          u32   required   Type of frame as ASCII value: 'I', 'P', 'B'
         //        stream             u32   required   Stream index. Corresponds to the streams reported in the subscriptionStart message.
-        //        dts                s64   optional   Decode Time Stamp in µs.
         //        pts                s64   optional   Presentation Time Stamp in µs.
         //        duration           u32   required   Duration of frame in µs.
         //        payload            bin   required   Actual frame data.
 
+        val payload = record.getByteArray(MuxpktSchema.payload)
         // If the stream reader list contains null, then its not a stream we care about, so move on.
-        val streamReader = mStreamReaders.get(message.getInteger("stream")) ?: return
-        streamReader.consume(message)
+        val streamReader = mStreamReaders.get(record.getInteger(MuxpktSchema.stream)) ?: return payload.size
+        streamReader.consume(record.getLong(MuxpktSchema.pts), record.getInteger(MuxpktSchema.duration, 0),
+                record.getInteger(MuxpktSchema.frametype, -1), payload, 0, payload.size)
+        return payload.size
     }
 }
@@ -13,6 +13,7 @@ import android.hardware.SensorEventListener
 import android.hardware.SensorManager
 import android.os.Build
 import android.os.Bundle
+import android.view.KeyEvent
 import android.view.Surface
 import android.view.View
 import androidx.appcompat.app.AppCompatActivity
@@ -237,6 +238,24 @@ class PlaybackActivity : AppCompatActivity(), PlayerControlView.VisibilityListen
         viewModel.loadMediaSource(intent.extras)
     }
 
+    override fun onKeyDown(keyCode: Int, event: KeyEvent): Boolean {
+        val offset = when (keyCode) {
+            KeyEvent.KEYCODE_CHANNEL_UP -> 1
+            KeyEvent.KEYCODE_CHANNEL_DOWN -> -1
+            else -> 0
+        }
+        if (offset != 0) {
+            val channelId = viewModel.getAdjacentChannelId(intent.getIntExtra("channelId", 0), offset)
+            if (channelId > 0) {
+                Timber.d("Switching to channel id $channelId")
+                intent.putExtra("channelId", channelId)
+                viewModel.loadMediaSource(intent.extras)
+                return true
+            }
+        }
+        return super.onKeyDown(keyCode, event)
+    }
+
     override fun onPause() {
         Timber.d("Pausing")
         viewModel.pause()
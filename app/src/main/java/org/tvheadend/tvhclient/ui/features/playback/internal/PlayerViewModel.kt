@@ -4,7 +4,10 @@ import android.app.Application
 import android.net.Uri
 import android.os.Bundle
 import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
 import androidx.lifecycle.MutableLiveData
+import androidx.lifecycle.viewModelScope
 import com.google.android.exoplayer2.*
 import com.google.android.exoplayer2.source.ExtractorMediaSource
 import com.google.android.exoplayer2.source.TrackGroupArray
@@ -14,26 +17,48 @@ import com.google.android.exoplayer2.trackselection.TrackSelectionArray
 import com.google.android.exoplayer2.upstream.DefaultAllocator
 import com.google.android.exoplayer2.upstream.DefaultBandwidthMeter
 import com.google.android.exoplayer2.video.VideoListener
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 import org.tvheadend.htsp.HtspConnection
 import org.tvheadend.htsp.HtspConnectionStateListener
 import org.tvheadend.tvhclient.R
+import org.tvheadend.tvhclient.data.service.HtspConnectionManager
 import org.tvheadend.tvhclient.ui.base.BaseViewModel
 import org.tvheadend.tvhclient.ui.features.playback.internal.utils.Rational
 import timber.log.Timber
 import java.util.*
-import java.util.concurrent.Executors
-import java.util.concurrent.ScheduledExecutorService
 import kotlin.math.max
 
 class PlayerViewModel(application: Application) : BaseViewModel(application), HtspConnectionStateListener, VideoListener, Player.EventListener {
 
     // Connection related
-    private val execService: ScheduledExecutorService = Executors.newScheduledThreadPool(10)
+    private val connectionLease: HtspConnectionManager.Lease
     private val htspConnection: HtspConnection
+        get() = connectionLease.connection
     private var htspSubscriptionDataSourceFactory: HtspSubscriptionDataSource.Factory? = null
     private var htspFileInputStreamDataSourceFactory: HtspFileInputStreamDataSource.Factory? = null
     private var dataSource: HtspDataSourceInterface? = null
 
+    // The connection that the data sources were created with and the details of what is played,
+    // so that the data sources can be recreated when the connection is replaced after it failed
+    private var mediaSourceConnection: HtspConnection? = null
+    private var mediaSourceBundle: Bundle? = null
+    private val mainHandler = Handler(Looper.getMainLooper())
+
+    // Subscriptions to the previous and next channel that are kept on standby, so
+    // that switching to them does not need to wait for the server and a keyframe
+    private val standbyDataSources = HashMap<Int, HtspSubscriptionDataSource>()
+    private val zapLatencyHistogram = ZapLatencyHistogram()
+    private var zapStartTime: Long = 0
+    private var isZapFromStandby = false
+
+    // The previous and next channel of the played one, they are loaded from the database in
+    // the background whenever a channel is played and are 0 until then or if there is none
+    private var adjacentChannelsOfId = 0
+    private var previousChannelId = 0
+    private var nextChannelId = 0
+
     // Player and helpers
     val player: SimpleExoPlayer
     val trackSelector: DefaultTrackSelector
@@ -71,20 +96,8 @@ class PlayerViewModel(application: Application) : BaseViewModel(application), Ht
         playerIsPlaying.postValue(false)
         playerState.postValue(Player.STATE_IDLE)
 
-        Timber.d("Starting connection")
-        val connection = appRepository.connectionData.activeItem
-        val connectionTimeout = Integer.valueOf(sharedPreferences.getString("connection_timeout", application.resources.getString(R.string.pref_default_connection_timeout))!!) * 1000
-        htspConnection = HtspConnection(
-                connection.username ?: "",
-                connection.password ?: "",
-                connection.serverUrl ?: "",
-                connectionTimeout,
-                this, null)
-
-        execService.execute {
-            htspConnection.openConnection()
-            htspConnection.authenticate()
-        }
+        Timber.d("Acquiring connection")
+        connectionLease = htspConnectionManager.acquire("PlayerViewModel", this)
 
         trackSelector = DefaultTrackSelector(AdaptiveTrackSelection.Factory(null))
         if (sharedPreferences.getBoolean("audio_tunneling_enabled", appContext.resources.getBoolean(R.bool.pref_default_audio_tunneling_enabled))) {
@@ -120,6 +133,8 @@ class PlayerViewModel(application: Application) : BaseViewModel(application), Ht
         Timber.d("Loading new media source")
 
         releaseMediaSource()
+        mediaSourceConnection = htspConnection
+        mediaSourceBundle = bundle
         loadMediaSourceForChannel(bundle?.getInt("channelId") ?: 0)
         loadMediaSourceForRecording(bundle?.getInt("dvrId") ?: 0)
 
@@ -140,17 +155,95 @@ class PlayerViewModel(application: Application) : BaseViewModel(application), Ht
             Timber.d("Creating data source")
             val serverStatus = appRepository.serverStatusData.activeItem
             val serverProfile = appRepository.serverProfileData.getItemById(serverStatus.htspPlaybackServerProfileId)
-            htspSubscriptionDataSourceFactory = HtspSubscriptionDataSource.Factory(appContext, htspConnection, serverProfile?.name)
+            val standbyDataSource = standbyDataSources.remove(channelId)
+            zapStartTime = SystemClock.elapsedRealtime()
+            isZapFromStandby = standbyDataSource != null && !standbyDataSource.isStopped
+            htspSubscriptionDataSourceFactory = HtspSubscriptionDataSource.Factory(appContext, htspConnection, serverProfile?.name, standbyDataSource)
             dataSource = htspSubscriptionDataSourceFactory?.currentDataSource
 
             Timber.d("Preparing player with media source")
             player.prepare(ExtractorMediaSource.Factory(htspSubscriptionDataSourceFactory)
-                    .setExtractorsFactory(TvheadendExtractorsFactory())
+                    .setExtractorsFactory(TvheadendExtractorsFactory(htspSubscriptionDataSourceFactory))
+                    .setContinueLoadingCheckIntervalBytes(HtspSubscriptionDataSource.CONTINUE_LOADING_CHECK_INTERVAL_BYTES)
                     .createMediaSource(Uri.parse("htsp://channel/$channelId")))
             player.playWhenReady = true
+
+            loadAdjacentChannelIds(channelId, serverProfile?.name)
+        }
+    }
+
+    /**
+     * Loads the previous and next channel of the played one in the background. Afterwards
+     * the subscriptions that are kept on standby are updated, unless another channel is
+     * played by then or the playback was stopped.
+     */
+    private fun loadAdjacentChannelIds(channelId: Int, streamProfile: String?) {
+        viewModelScope.launch {
+            val channelIds = withContext(Dispatchers.IO) {
+                val defaultChannelSortOrder = appContext.resources.getString(R.string.pref_default_channel_sort_order)
+                val channelSortOrder = Integer.valueOf(sharedPreferences.getString("channel_sort_order", defaultChannelSortOrder) ?: defaultChannelSortOrder)
+                val tagIds = appRepository.channelTagData.getItems().filter { it.isSelected }.map { it.tagId }
+                val channels = appRepository.channelData.getChannels(channelSortOrder, tagIds)
+
+                val index = channels.indexOfFirst { it.id == channelId }
+                if (index < 0 || channels.size < 2) {
+                    Pair(0, 0)
+                } else {
+                    Pair(channels[(index - 1 + channels.size) % channels.size].id, channels[(index + 1) % channels.size].id)
+                }
+            }
+            if (mediaSourceConnection == null || mediaSourceBundle?.getInt("channelId") != channelId) {
+                return@launch
+            }
+            adjacentChannelsOfId = channelId
+            previousChannelId = channelIds.first
+            nextChannelId = channelIds.second
+            updateStandbyDataSources(channelId, streamProfile)
+        }
+    }
+
+    /**
+     * Keeps the previous and next channel subscribed if fast zapping is enabled
+     * and releases the subscriptions to all other channels
+     */
+    private fun updateStandbyDataSources(channelId: Int, streamProfile: String?) {
+        val channelIds = HashSet<Int>()
+        if (sharedPreferences.getBoolean("fast_zapping_enabled", appContext.resources.getBoolean(R.bool.pref_default_fast_zapping_enabled))) {
+            channelIds.add(getAdjacentChannelId(channelId, -1))
+            channelIds.add(getAdjacentChannelId(channelId, 1))
+            channelIds.remove(channelId)
+            channelIds.remove(0)
+        }
+
+        val iterator = standbyDataSources.entries.iterator()
+        while (iterator.hasNext()) {
+            val entry = iterator.next()
+            if (!channelIds.contains(entry.key) || entry.value.isStopped) {
+                Timber.d("Releasing standby subscription to channel id ${entry.key}")
+                entry.value.release()
+                iterator.remove()
+            }
+        }
+        for (id in channelIds) {
+            if (!standbyDataSources.containsKey(id)) {
+                Timber.d("Subscribing to channel id $id on standby")
+                standbyDataSources[id] = HtspSubscriptionDataSource.createStandbyDataSource(appContext, htspConnection, streamProfile, id)
+            }
         }
     }
 
+    /**
+     * Returns the id of the previous channel for a negative offset and the next channel
+     * otherwise, in the current sort order and channel tag selection. It is 0 if there is
+     * no such channel or if the channels of the played one were not loaded yet.
+     */
+    fun getAdjacentChannelId(channelId: Int, offset: Int): Int {
+        if (channelId <= 0 || channelId != adjacentChannelsOfId) {
+            return 0
+        }
+        return if (offset < 0) previousChannelId else nextChannelId
+    }
+
     private fun loadMediaSourceForRecording(recordingId: Int) {
         Timber.d("Loading media source for recording id $recordingId")
         if (recordingId > 0) {
@@ -158,7 +251,10 @@ class PlayerViewModel(application: Application) : BaseViewModel(application), Ht
             playbackInformation = PlaybackInformation(appRepository.recordingData.getItemById(recordingId))
 
             Timber.d("Creating data source")
-            htspFileInputStreamDataSourceFactory = HtspFileInputStreamDataSource.Factory(htspConnection)
+            // Keep the played parts of recordings on the device, a size of zero disables the cache
+            val chunkCache = HtspFileChunkCache.getInstance(appContext)
+            chunkCache.setMaxSize(Integer.valueOf(sharedPreferences.getString("recording_cache_size_mb", appContext.resources.getString(R.string.pref_default_recording_cache_size_mb))!!) * 1024L * 1024L)
+            htspFileInputStreamDataSourceFactory = HtspFileInputStreamDataSource.Factory(htspConnection, chunkCache)
             dataSource = htspFileInputStreamDataSourceFactory?.currentDataSource
 
             Timber.d("Preparing player with media source")
@@ -166,6 +262,8 @@ class PlayerViewModel(application: Application) : BaseViewModel(application), Ht
                     .setExtractorsFactory(TvheadendExtractorsFactory())
                     .createMediaSource(Uri.parse("htsp://dvrfile/$recordingId")))
             player.playWhenReady = true
+
+            updateStandbyDataSources(0, null)
         }
     }
 
@@ -210,6 +308,7 @@ class PlayerViewModel(application: Application) : BaseViewModel(application), Ht
             HtspConnection.AuthenticationState.AUTHENTICATED -> {
                 Timber.d("Authenticated, starting player")
                 isConnected.postValue(true)
+                mainHandler.post { reloadMediaSourceAfterReconnect() }
             }
             else -> {
                 Timber.d("Initializing or authenticating")
@@ -217,6 +316,29 @@ class PlayerViewModel(application: Application) : BaseViewModel(application), Ht
         }
     }
 
+    /**
+     * Recreates the data sources in case they still use a connection that was replaced
+     * after it failed. Recordings continue at the position that was played last.
+     */
+    private fun reloadMediaSourceAfterReconnect() {
+        val previousConnection = mediaSourceConnection ?: return
+        if (previousConnection === htspConnection) {
+            return
+        }
+        Timber.d("Connection was replaced, recreating the data sources")
+        for (standbyDataSource in standbyDataSources.values) {
+            standbyDataSource.release()
+        }
+        standbyDataSources.clear()
+
+        val position = player.currentPosition
+        val isRecording = (mediaSourceBundle?.getInt("dvrId") ?: 0) > 0
+        loadMediaSource(mediaSourceBundle)
+        if (isRecording) {
+            player.seekTo(position)
+        }
+    }
+
     override fun onCleared() {
         super.onCleared()
         Timber.d("Clearing view model")
@@ -225,12 +347,18 @@ class PlayerViewModel(application: Application) : BaseViewModel(application), Ht
 
     fun stopPlaybackAndReleaseMediaSource() {
         Timber.d("Stopping playback, releasing media source ")
+        mediaSourceConnection = null
         releaseMediaSource()
         player.release()
 
-        Timber.d("Closing connection")
-        execService.shutdown()
-        htspConnection.closeConnection()
+        Timber.d("Releasing standby subscriptions")
+        for (standbyDataSource in standbyDataSources.values) {
+            standbyDataSource.release()
+        }
+        standbyDataSources.clear()
+
+        Timber.d("Releasing connection")
+        connectionLease.release()
     }
 
     override fun onVideoSizeChanged(width: Int, height: Int, unappliedRotationDegrees: Int, pixelWidthHeightRatio: Float) {
@@ -239,7 +367,11 @@ class PlayerViewModel(application: Application) : BaseViewModel(application), Ht
     }
 
     override fun onRenderedFirstFrame() {
-        // NOP
+        if (zapStartTime > 0) {
+            zapLatencyHistogram.add(SystemClock.elapsedRealtime() - zapStartTime, isZapFromStandby)
+            Timber.d("First frame shown after ${SystemClock.elapsedRealtime() - zapStartTime} ms, $zapLatencyHistogram")
+            zapStartTime = 0
+        }
     }
 
     override fun onPlaybackParametersChanged(playbackParameters: PlaybackParameters?) {
@@ -327,20 +459,13 @@ class PlayerViewModel(application: Application) : BaseViewModel(application), Ht
     }
 
     private fun getSeekPosition(offset: Int): Long {
-        val timeshiftStartTime = dataSource?.timeshiftStartTime ?: 0
-        val timeshiftStartPts = dataSource?.timeshiftStartPts ?: 0
-        val timeshiftOffsetPts = dataSource?.timeshiftOffsetPts ?: 0
-
-        val startTime = if (timeshiftStartTime != Long.MIN_VALUE)
-            (timeshiftStartTime / 1000) else 0
-        Timber.d("Timeshift start time is $startTime")
-
-        val currentTime = if (timeshiftOffsetPts != Long.MIN_VALUE)
-            System.currentTimeMillis() + timeshiftOffsetPts / 1000 else player.currentPosition
-        Timber.d("Timeshift current time is $currentTime")
-
-        val time = max(currentTime + offset, startTime)
-        val seekPts = time * 1000 - timeshiftStartTime
-        return max(seekPts, timeshiftStartPts) / 1000
+        // The position of the player is the time of the played samples, the extractor limits
+        // it to the end of the timeshift buffer, so only the start needs to be checked here
+        val time = player.currentPosition + offset
+        val timeshiftStartPts = dataSource?.timeshiftStartPts ?: Long.MIN_VALUE
+        Timber.d("Timeshift start pts is $timeshiftStartPts")
+
+        return if (timeshiftStartPts != Long.MIN_VALUE)
+            max(time, timeshiftStartPts / 1000) else max(time, 0L)
     }
 }
@@ -30,11 +30,15 @@ import com.google.android.exoplayer2.extractor.ts.PsExtractor
 import com.google.android.exoplayer2.extractor.ts.TsExtractor
 import com.google.android.exoplayer2.extractor.wav.WavExtractor
 
-internal class TvheadendExtractorsFactory : ExtractorsFactory {
+/**
+ * @param subscriptionDataSourceFactory The factory of the data source whose packets are passed
+ * to the subscription extractor, or null if no subscription is played
+ */
+internal class TvheadendExtractorsFactory(private val subscriptionDataSourceFactory: HtspSubscriptionDataSource.Factory? = null) : ExtractorsFactory {
 
     override fun createExtractors(): Array<Extractor> {
         return arrayOf(
-                HtspSubscriptionExtractor(),
+                HtspSubscriptionExtractor(subscriptionDataSourceFactory),
                 MatroskaExtractor(0),
                 FragmentedMp4Extractor(0),
                 Mp4Extractor(),
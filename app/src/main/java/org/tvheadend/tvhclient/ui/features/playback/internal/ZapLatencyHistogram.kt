@@ -0,0 +1,47 @@
+package org.tvheadend.tvhclient.ui.features.playback.internal
+
+/**
+ * Counts how long it took from switching to a channel until its first frame was shown.
+ * Channels that were subscribed on standby are counted separately from all others.
+ */
+class ZapLatencyHistogram {
+
+    private val standbyCounts = IntArray(BUCKET_LIMITS.size + 1)
+    private val counts = IntArray(BUCKET_LIMITS.size + 1)
+
+    fun add(latency: Long, isStandby: Boolean) {
+        var bucket = 0
+        while (bucket < BUCKET_LIMITS.size && latency >= BUCKET_LIMITS[bucket]) {
+            bucket++
+        }
+        if (isStandby) {
+            standbyCounts[bucket]++
+        } else {
+            counts[bucket]++
+        }
+    }
+
+    override fun toString(): String {
+        return "zap latency from standby ${format(standbyCounts)}, otherwise ${format(counts)}"
+    }
+
+    private fun format(counts: IntArray): String {
+        val builder = StringBuilder()
+        for (i in counts.indices) {
+            if (i > 0) {
+                builder.append(", ")
+            }
+            if (i < BUCKET_LIMITS.size) {
+                builder.append("<").append(BUCKET_LIMITS[i])
+            } else {
+                builder.append(">=").append(BUCKET_LIMITS[i - 1])
+            }
+            builder.append(" ms: ").append(counts[i])
+        }
+        return builder.toString()
+    }
+
+    companion object {
+        private val BUCKET_LIMITS = longArrayOf(250, 500, 1000, 2000, 4000)
+    }
+}
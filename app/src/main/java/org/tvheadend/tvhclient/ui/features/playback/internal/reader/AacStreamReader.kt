@@ -31,6 +31,8 @@ import org.tvheadend.tvhclient.ui.features.playback.internal.utils.TvhMappings
 internal class AacStreamReader : StreamReader {
 
     private var mTrackOutput: TrackOutput? = null
+    // Wraps the payload of each packet, so that no object is created per sample
+    private val mScratch = ParsableByteArray()
 
     override fun createTracks(stream: HtspMessage, output: ExtractorOutput) {
         val streamIndex = stream.getInteger("index")
@@ -38,13 +40,10 @@ internal class AacStreamReader : StreamReader {
         mTrackOutput!!.format(buildFormat(streamIndex, stream))
     }
 
-    override fun consume(message: HtspMessage) {
-        val pts = message.getLong("pts")
-        val payload = message.getByteArray("payload")
-        val pba = ParsableByteArray(payload)
+    override fun consume(pts: Long, duration: Int, frameType: Int, payload: ByteArray, offset: Int, length: Int) {
         val skipLength: Int
 
-        skipLength = if (hasCrc(payload[1])) {
+        skipLength = if (hasCrc(payload[offset + 1])) {
             // Have a CRC
             ADTS_HEADER_SIZE + ADTS_CRC_SIZE
         } else {
@@ -52,13 +51,15 @@ internal class AacStreamReader : StreamReader {
             ADTS_HEADER_SIZE
         }
 
-        pba.skipBytes(skipLength)
+        // The ADTS header is skipped by starting behind it
+        mScratch.reset(payload, offset + length)
+        mScratch.position = offset + skipLength
 
-        val aacFrameLength = payload.size - skipLength
+        val aacFrameLength = length - skipLength
 
         // TODO: Set Buffer Flag key frame based on frametype
         // frametype   u32   required   Type of frame as ASCII value: 'I', 'P', 'B'
-        mTrackOutput!!.sampleData(pba, aacFrameLength)
+        mTrackOutput!!.sampleData(mScratch, aacFrameLength)
         mTrackOutput!!.sampleMetadata(pts, C.BUFFER_FLAG_KEY_FRAME, aacFrameLength, 0, null)
     }
 
@@ -29,6 +29,8 @@ import org.tvheadend.htsp.HtspMessage
  */
 abstract class PlainStreamReader(private val mTrackType: Int) : StreamReader {
     private var mTrackOutput: TrackOutput? = null
+    // Wraps the payload of each packet, so that no object is created per sample
+    private val mScratch = ParsableByteArray()
 
     protected abstract val trackType: Int
 
@@ -38,11 +40,9 @@ abstract class PlainStreamReader(private val mTrackType: Int) : StreamReader {
         mTrackOutput!!.format(buildFormat(streamIndex, stream))
     }
 
-    override fun consume(message: HtspMessage) {
-        val pts = message.getLong("pts")
-        val frameType = message.getInteger("frametype", -1)
-        val payload = message.getByteArray("payload")
-        val pba = ParsableByteArray(payload)
+    override fun consume(pts: Long, duration: Int, frameType: Int, payload: ByteArray, offset: Int, length: Int) {
+        mScratch.reset(payload, offset + length)
+        mScratch.position = offset
 
         var bufferFlags = 0
 
@@ -61,8 +61,8 @@ abstract class PlainStreamReader(private val mTrackType: Int) : StreamReader {
             bufferFlags = bufferFlags or C.BUFFER_FLAG_KEY_FRAME
         }
 
-        mTrackOutput!!.sampleData(pba, payload.size)
-        mTrackOutput!!.sampleMetadata(pts, bufferFlags, payload.size, 0, null)
+        mTrackOutput!!.sampleData(mScratch, length)
+        mTrackOutput!!.sampleMetadata(pts, bufferFlags, length, 0, null)
     }
 
     override fun release() {
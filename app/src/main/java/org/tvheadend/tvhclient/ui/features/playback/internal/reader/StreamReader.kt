@@ -23,7 +23,15 @@ import org.tvheadend.htsp.HtspMessage
 interface StreamReader {
     fun createTracks(stream: HtspMessage, output: ExtractorOutput)
 
-    fun consume(message: HtspMessage)
+    /**
+     * Passes a packet of the stream to the track output. The payload is only valid
+     * during the call, the buffer is reused for the next packet.
+     *
+     * @param pts       Presentation time stamp in µs
+     * @param duration  Duration of the frame in µs
+     * @param frameType Type of frame as ASCII value or -1 if it is unknown
+     */
+    fun consume(pts: Long, duration: Int, frameType: Int, payload: ByteArray, offset: Int, length: Int)
 
     fun release()
 }
\ No newline at end of file
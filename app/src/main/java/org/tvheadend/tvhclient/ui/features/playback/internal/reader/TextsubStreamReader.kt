@@ -23,15 +23,16 @@ import com.google.android.exoplayer2.extractor.ExtractorOutput
 import com.google.android.exoplayer2.extractor.TrackOutput
 import com.google.android.exoplayer2.util.MimeTypes
 import com.google.android.exoplayer2.util.ParsableByteArray
-import com.google.android.exoplayer2.util.Util
 import leakcanary.AppWatcher
 import org.tvheadend.htsp.HtspMessage
-import java.nio.charset.Charset
-import java.util.*
 
 internal class TextsubStreamReader : StreamReader {
 
     private var mTrackOutput: TrackOutput? = null
+    // Reused for every subtitle, so that no objects are created per sample. It starts with
+    // the subrip prefix and only grows when a longer text arrives.
+    private var mSample = SUBRIP_PREFIX.copyOf(SUBRIP_PREFIX.size + 256)
+    private val mScratch = ParsableByteArray()
 
     override fun createTracks(stream: HtspMessage, output: ExtractorOutput) {
         val streamIndex = stream.getInteger("index")
@@ -39,21 +40,29 @@ internal class TextsubStreamReader : StreamReader {
         mTrackOutput!!.format(buildFormat(streamIndex, stream))
     }
 
-    override fun consume(message: HtspMessage) {
+    override fun consume(pts: Long, duration: Int, frameType: Int, payload: ByteArray, offset: Int, length: Int) {
 
-        val pts = message.getLong("pts")
-        val duration = message.getInteger("duration").toLong()
-        val payload = Util.getUtf8Bytes(
-                String(message.getByteArray("payload"), UTF_8).trim { it <= ' ' })
+        // Whitespace and control characters are single bytes in UTF-8, so the text can be trimmed without decoding it
+        var start = offset
+        var end = offset + length
+        while (start < end && isWhitespace(payload[start])) {
+            start++
+        }
+        while (end > start && isWhitespace(payload[end - 1])) {
+            end--
+        }
 
-        val lengthWithPrefix = SUBRIP_PREFIX.size + payload.size
-        val subsipSample = SUBRIP_PREFIX.copyOf(lengthWithPrefix)
+        val lengthWithPrefix = SUBRIP_PREFIX.size + end - start
+        if (mSample.size < lengthWithPrefix) {
+            mSample = SUBRIP_PREFIX.copyOf(lengthWithPrefix)
+        }
 
-        System.arraycopy(payload, 0, subsipSample, SUBRIP_PREFIX.size, payload.size)
+        System.arraycopy(payload, start, mSample, SUBRIP_PREFIX.size, end - start)
 
-        setSubripSampleEndTimecode(subsipSample, duration)
+        setSubripSampleEndTimecode(mSample, duration.toLong())
 
-        mTrackOutput!!.sampleData(ParsableByteArray(subsipSample), lengthWithPrefix)
+        mScratch.reset(mSample, lengthWithPrefix)
+        mTrackOutput!!.sampleData(mScratch, lengthWithPrefix)
         mTrackOutput!!.sampleMetadata(pts, C.BUFFER_FLAG_KEY_FRAME, lengthWithPrefix, 0,
                 null)
     }
@@ -100,28 +109,41 @@ internal class TextsubStreamReader : StreamReader {
          */
         private const val SUBRIP_TIMECODE_LENGTH = 12
 
-        // UTF-8 is the default on Android
-        private val UTF_8 = Charset.defaultCharset()
+        private fun isWhitespace(b: Byte): Boolean {
+            return (b.toInt() and 0xFF) <= 32
+        }
 
         private fun setSubripSampleEndTimecode(subripSample: ByteArray, timeUs: Long) {
-            var time = timeUs
-            val timeCodeData: ByteArray
-            if (time == C.TIME_UNSET || time == 0L) {
-                timeCodeData = SUBRIP_TIMECODE_EMPTY
-            } else {
-                val hours = (time / 3600000000L).toInt()
-                time -= hours * 3600000000L
-                val minutes = (time / 60000000).toInt()
-                time -= (minutes * 60000000).toLong()
-                val seconds = (time / 1000000).toInt()
-                time -= (seconds * 1000000).toLong()
-                val milliseconds = (time / 1000).toInt()
-                timeCodeData = Util.getUtf8Bytes(String.format(Locale.US, "%02d:%02d:%02d,%03d", hours,
-                        minutes, seconds, milliseconds))
+            if (timeUs == C.TIME_UNSET || timeUs == 0L) {
+                System.arraycopy(SUBRIP_TIMECODE_EMPTY, 0, subripSample, SUBRIP_PREFIX_END_TIMECODE_OFFSET,
+                        SUBRIP_TIMECODE_LENGTH)
+                return
             }
 
-            System.arraycopy(timeCodeData, 0, subripSample, SUBRIP_PREFIX_END_TIMECODE_OFFSET,
-                    SUBRIP_TIMECODE_LENGTH)
+            // Writes "hh:mm:ss,mmm" directly into the sample
+            val milliseconds = timeUs / 1000
+            var position = SUBRIP_PREFIX_END_TIMECODE_OFFSET
+            position = putDigits(subripSample, position, milliseconds / 3600000, 2)
+            subripSample[position++] = 58
+            position = putDigits(subripSample, position, milliseconds / 60000 % 60, 2)
+            subripSample[position++] = 58
+            position = putDigits(subripSample, position, milliseconds / 1000 % 60, 2)
+            subripSample[position++] = 44
+            putDigits(subripSample, position, milliseconds % 1000, 3)
+        }
+
+        /**
+         * Writes the lowest digits of the value as ASCII characters, padded with zeros
+         *
+         * @return The position behind the digits
+         */
+        private fun putDigits(target: ByteArray, position: Int, value: Long, count: Int): Int {
+            var remaining = value
+            for (i in count - 1 downTo 0) {
+                target[position + i] = (48 + remaining % 10).toByte()
+                remaining /= 10
+            }
+            return position + count
         }
     }
 }
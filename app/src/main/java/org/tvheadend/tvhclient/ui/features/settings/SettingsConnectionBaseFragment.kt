@@ -13,6 +13,7 @@ import androidx.preference.PreferenceFragmentCompat
 import androidx.preference.SwitchPreference
 import com.afollestad.materialdialogs.MaterialDialog
 import com.google.android.material.snackbar.Snackbar
+import org.tvheadend.htsp.HtspEndpointSelector
 import org.tvheadend.tvhclient.R
 import org.tvheadend.tvhclient.domain.entity.Connection
 import org.tvheadend.tvhclient.ui.common.callbacks.BackPressedInterface
@@ -300,10 +301,16 @@ abstract class SettingsConnectionBaseFragment : PreferenceFragmentCompat(), Back
 
     private fun isConnectionUrlValid(context: Context? = null, value: String?): Boolean {
         // Do not allow an empty serverUrl
-        if (value.isNullOrEmpty()) {
+        val urls = HtspEndpointSelector.parseUrls(value)
+        if (urls.isEmpty()) {
             context?.sendSnackbarMessage("The url must not be empty")
             return false
         }
+        // Several urls of the same server can be separated by commas
+        return urls.all { isSingleConnectionUrlValid(context, it) }
+    }
+
+    private fun isSingleConnectionUrlValid(context: Context?, value: String): Boolean {
 
         val uri = Uri.parse(value)
         if (uri.host.isNullOrEmpty()) {
@@ -0,0 +1,30 @@
+package org.tvheadend.tvhclient.util.extensions
+
+import kotlinx.coroutines.suspendCancellableCoroutine
+import org.tvheadend.htsp.HtspConnection
+import org.tvheadend.htsp.HtspMessage
+import java.util.concurrent.CancellationException
+import java.util.concurrent.ExecutionException
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
+
+/**
+ * Sends the request and suspends until the response has been received. Throws a
+ * TimeoutException if no response arrived within the given time in milliseconds
+ * and an IOException if the connection was closed. Cancelling the coroutine
+ * cancels the request.
+ */
+suspend fun HtspConnection.sendRequest(message: HtspMessage, timeout: Long): HtspMessage =
+        suspendCancellableCoroutine { continuation ->
+            val future = request(message, timeout)
+            future.setCallback {
+                try {
+                    continuation.resume(it.get())
+                } catch (e: ExecutionException) {
+                    continuation.resumeWithException(e.cause ?: e)
+                } catch (e: CancellationException) {
+                    // The request was cancelled together with the coroutine
+                }
+            }
+            continuation.invokeOnCancellation { future.cancel(false) }
+        }
@@ -0,0 +1,157 @@
+package org.tvheadend.tvhclient.ui.features.playback.internal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HtspPacketQueueTest {
+
+    @Test
+    public void capacityIsRoundedUpToPowerOfTwo() {
+        assertEquals(4, new HtspPacketQueue(3, 100).getCapacity());
+        assertEquals(4, new HtspPacketQueue(4, 100).getCapacity());
+        assertEquals(8, new HtspPacketQueue(5, 100).getCapacity());
+    }
+
+    @Test
+    public void packetsAreTakenInOrderAcrossWraparound() throws InterruptedException {
+        HtspPacketQueue queue = new HtspPacketQueue(4, 1000);
+        int next = 0;
+        // Every round moves the start of the queue by three slots, so it wraps around many times
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < 3; i++) {
+                assertTrue(queue.offer(round * 3 + i, 10));
+            }
+            for (int i = 0; i < 3; i++) {
+                assertEquals(next++, queue.take());
+            }
+            assertEquals(0, queue.getSize());
+            assertEquals(0, queue.getFillLevel());
+        }
+        assertEquals(0, queue.getDroppedCount());
+        assertEquals(30, queue.getMaxFillLevel());
+    }
+
+    @Test
+    public void packetsAreDroppedWhenAllSlotsAreUsed() throws InterruptedException {
+        HtspPacketQueue queue = new HtspPacketQueue(4, 1000);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i, 1));
+        }
+        assertFalse(queue.offer(4, 5));
+        assertEquals(1, queue.getDroppedCount());
+        assertEquals(5, queue.getDroppedByteCount());
+
+        assertEquals(0, queue.take());
+        assertTrue(queue.offer(5, 1));
+        assertEquals(1, queue.take());
+        assertEquals(2, queue.take());
+        assertEquals(3, queue.take());
+        assertEquals(5, queue.take());
+    }
+
+    @Test
+    public void packetsAreDroppedWhenTheByteLimitIsReached() throws InterruptedException {
+        HtspPacketQueue queue = new HtspPacketQueue(16, 100);
+        assertTrue(queue.offer("a", 60));
+        assertFalse(queue.offer("b", 41));
+        assertTrue(queue.offer("c", 40));
+        assertEquals(100, queue.getFillLevel());
+        assertEquals(1f, queue.getFillRatio(), 0f);
+
+        assertEquals("a", queue.take());
+        assertEquals(40, queue.getFillLevel());
+        assertTrue(queue.offer("d", 60));
+        assertEquals(1, queue.getDroppedCount());
+        assertEquals(41, queue.getDroppedByteCount());
+        assertEquals(100, queue.getMaxFillLevel());
+    }
+
+    @Test
+    public void discardRemovesAllPackets() throws InterruptedException {
+        HtspPacketQueue queue = new HtspPacketQueue(4, 1000);
+        queue.offer(1, 10);
+        queue.offer(2, 20);
+        queue.discard();
+        assertEquals(0, queue.getSize());
+        assertEquals(0, queue.getFillLevel());
+
+        queue.offer(3, 30);
+        assertEquals(3, queue.take());
+    }
+
+    @Test
+    public void endedInputReturnsNullOnceAllPacketsWereTaken() throws InterruptedException {
+        HtspPacketQueue queue = new HtspPacketQueue(4, 1000);
+        queue.offer(1, 10);
+        queue.endInput();
+        assertEquals(1, queue.take());
+        assertNull(queue.take());
+
+        queue.resumeInput();
+        queue.offer(2, 10);
+        assertEquals(2, queue.take());
+    }
+
+    @Test
+    public void waitingReaderIsWokenUpByWriter() throws InterruptedException {
+        final HtspPacketQueue queue = new HtspPacketQueue(4, 1000);
+        final Object[] taken = new Object[2];
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    taken[0] = queue.take();
+                    taken[1] = queue.take();
+                } catch (InterruptedException e) {
+                    taken[0] = e;
+                }
+            }
+        });
+        reader.start();
+        Thread.sleep(50);
+        queue.offer("packet", 10);
+        Thread.sleep(50);
+        queue.endInput();
+        reader.join(5000);
+
+        assertFalse(reader.isAlive());
+        assertEquals("packet", taken[0]);
+        assertNull(taken[1]);
+        assertTrue(queue.getUnderrunCount() >= 1);
+    }
+
+    @Test
+    public void fillLevelListenerIsCalledOncePerCrossing() throws InterruptedException {
+        HtspPacketQueue queue = new HtspPacketQueue(8, 1000);
+        final int[] calls = new int[2];
+        queue.setFillLevelListener(new HtspPacketQueue.FillLevelListener() {
+            @Override
+            public void onHighFillLevel() {
+                calls[0]++;
+            }
+
+            @Override
+            public void onLowFillLevel() {
+                calls[1]++;
+            }
+        }, 0.75f, 0.25f);
+
+        for (int i = 0; i < 8; i++) {
+            queue.offer(i, 1);
+        }
+        assertEquals(1, calls[0]);
+        assertEquals(0, calls[1]);
+
+        for (int i = 0; i < 6; i++) {
+            queue.take();
+        }
+        assertEquals(1, calls[1]);
+
+        queue.take();
+        assertEquals(1, calls[1]);
+    }
+}
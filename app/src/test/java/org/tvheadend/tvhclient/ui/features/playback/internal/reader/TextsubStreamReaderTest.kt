@@ -0,0 +1,113 @@
+package org.tvheadend.tvhclient.ui.features.playback.internal.reader
+
+import com.google.android.exoplayer2.C
+import com.google.android.exoplayer2.Format
+import com.google.android.exoplayer2.extractor.ExtractorInput
+import com.google.android.exoplayer2.extractor.ExtractorOutput
+import com.google.android.exoplayer2.extractor.SeekMap
+import com.google.android.exoplayer2.extractor.TrackOutput
+import com.google.android.exoplayer2.util.ParsableByteArray
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import org.tvheadend.htsp.HtspMessage
+
+class TextsubStreamReaderTest {
+
+    private val trackOutput = RecordingTrackOutput()
+    private val reader = TextsubStreamReader()
+
+    @Before
+    fun setUp() {
+        val stream = HtspMessage()
+        stream["index"] = 3
+        stream["language"] = "ger"
+        reader.createTracks(stream, object : ExtractorOutput {
+            override fun track(id: Int, type: Int): TrackOutput = trackOutput
+            override fun endTracks() {}
+            override fun seekMap(seekMap: SeekMap) {}
+        })
+    }
+
+    @Test
+    fun durationIsWrittenAsEndTimecode() {
+        consume("Hello", 754567000)
+        consume("Hello", 3000)
+        consume("Hello", 59999000)
+
+        assertEquals("1\n00:00:00,000 --> 00:12:34,567\nHello", trackOutput.samples[0])
+        assertEquals("1\n00:00:00,000 --> 00:00:00,003\nHello", trackOutput.samples[1])
+        assertEquals("1\n00:00:00,000 --> 00:00:59,999\nHello", trackOutput.samples[2])
+    }
+
+    @Test
+    fun missingDurationShowsSubtitleUntilTheNextOne() {
+        consume("Hello", 0)
+
+        assertEquals("1\n00:00:00,000 -->             \nHello", trackOutput.samples[0])
+    }
+
+    @Test
+    fun textIsTrimmed() {
+        consume(" \t\r\nGrüße,\nbis später \n\u0000", 1000000)
+        consume(" \n ", 1000000)
+
+        assertEquals("1\n00:00:00,000 --> 00:00:01,000\nGrüße,\nbis später", trackOutput.samples[0])
+        assertEquals("1\n00:00:00,000 --> 00:00:01,000\n", trackOutput.samples[1])
+    }
+
+    @Test
+    fun onlyTheGivenRangeOfThePayloadIsUsed() {
+        val payload = "xxx Hello xxx".toByteArray(Charsets.UTF_8)
+        reader.consume(5000, 2000000, 0, payload, 3, 7)
+
+        assertEquals("1\n00:00:00,000 --> 00:00:02,000\nHello", trackOutput.samples[0])
+        assertEquals(5000L, trackOutput.times[0])
+        assertEquals(C.BUFFER_FLAG_KEY_FRAME, trackOutput.flags[0])
+    }
+
+    @Test
+    fun longTextsAreNotCutAndDoNotLeakIntoShorterOnes() {
+        val longText = "x".repeat(1000)
+        consume("short", 1000000)
+        consume(longText, 1000000)
+        consume("end", 1000000)
+
+        assertEquals("1\n00:00:00,000 --> 00:00:01,000\nshort", trackOutput.samples[0])
+        assertEquals("1\n00:00:00,000 --> 00:00:01,000\n$longText", trackOutput.samples[1])
+        assertEquals("1\n00:00:00,000 --> 00:00:01,000\nend", trackOutput.samples[2])
+    }
+
+    private fun consume(text: String, duration: Int) {
+        val payload = text.toByteArray(Charsets.UTF_8)
+        reader.consume(0, duration, 0, payload, 0, payload.size)
+    }
+
+    /**
+     * Keeps the data of every sample as a string
+     */
+    private class RecordingTrackOutput : TrackOutput {
+        val samples = ArrayList<String>()
+        val times = ArrayList<Long>()
+        val flags = ArrayList<Int>()
+        private var data = ByteArray(0)
+
+        override fun format(format: Format) {}
+
+        override fun sampleData(input: ExtractorInput, length: Int, allowEndOfInput: Boolean): Int {
+            throw UnsupportedOperationException()
+        }
+
+        override fun sampleData(data: ParsableByteArray, length: Int) {
+            this.data = ByteArray(length)
+            data.readBytes(this.data, 0, length)
+        }
+
+        override fun sampleMetadata(timeUs: Long, flags: Int, size: Int, offset: Int, encryptionData: TrackOutput.CryptoData?) {
+            assertEquals(data.size, size)
+            samples.add(String(data, Charsets.UTF_8))
+            times.add(timeUs)
+            this.flags.add(flags)
+        }
+    }
+}
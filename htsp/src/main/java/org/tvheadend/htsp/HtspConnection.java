@@ -1,7 +1,7 @@
 package org.tvheadend.htsp;
 
 import android.net.Uri;
-import android.util.SparseArray;
+import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -24,12 +24,22 @@ import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.UnresolvedAddressException;
 import java.nio.channels.UnsupportedAddressTypeException;
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -37,33 +47,137 @@ import timber.log.Timber;
 
 public class HtspConnection extends Thread implements HtspConnectionInterface {
 
+    private static final byte[] METHOD_FIELD = "method".getBytes(Charset.forName("UTF-8"));
+    private static final int DEFAULT_INPUT_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+    private static final long INPUT_BUFFER_SHRINK_DELAY = 10000;
+    private static final int WRITE_BATCH_SIZE = 64 * 1024;
+    private static final int BACKGROUND_BATCH_SIZE = 16 * 1024;
+    private static final int DEFAULT_WINDOW_REQUESTS = 8;
+    private static final long DEFAULT_WINDOW_BYTES = 4 * 1024 * 1024;
+    private static final long DEFAULT_HEARTBEAT_INTERVAL = 4000;
+    private static final long DEFAULT_DEAD_PEER_TIMEOUT = 4000;
+
     private final String username;
     private final String password;
     private final String url;
+    private final List<String> urls;
+    private volatile HtspEndpointSelector endpointSelector;
 
     private volatile boolean isRunning;
     private final Lock lock;
     private SocketChannel socketChannel;
-    private final ByteBuffer inputByteBuffer;
-    private int seq;
-
-    private final HtspConnectionStateListener connectionListener;
-    private final Set<HtspMessageListener> messageListeners = new HashSet<>();
-    private final SparseArray<HtspResponseListener> responseHandlers;
-    private final LinkedList<HtspMessage> messageQueue;
+    private ByteBuffer inputByteBuffer;
+    // Last time the input buffer held more data than fits into one of the default size
+    private long inputBufferLargeUseTime;
+    private final HtspMessageWriter messageWriter;
+    private ByteBuffer outputByteBuffer;
+    private final AtomicInteger seq = new AtomicInteger();
+    private final AtomicBoolean wakeupRequested = new AtomicBoolean();
+    private SelectionKey selectionKey;
+    private volatile long sentMessageCount;
+    private volatile long sentByteCount;
+    private volatile long lastReceiveTime;
+    private final AtomicLong heartbeatSendTime = new AtomicLong();
+    private volatile long heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+    private volatile long deadPeerTimeout = DEFAULT_DEAD_PEER_TIMEOUT;
+    private volatile long roundTripTime;
+
+    private final Set<HtspConnectionStateListener> connectionListeners = new CopyOnWriteArraySet<>();
+    private final Set<HtspMessageListener> messageListeners = new CopyOnWriteArraySet<>();
+    private final ConcurrentHashMap<HtspSchema, Set<HtspRecordListener>> recordListeners = new ConcurrentHashMap<>();
+    // Record listeners that receive the messages of the schema instead of the message listeners
+    private final ConcurrentHashMap<HtspSchema, Set<HtspRecordListener>> exclusiveRecordListeners = new ConcurrentHashMap<>();
+    private final HtspDispatcher dispatcher;
+    private final ConcurrentHashMap<Integer, HtspResponseFuture> pendingRequests;
+    private final AtomicLong nextRequestDeadline = new AtomicLong(Long.MAX_VALUE);
+    // Each priority has its own window, so that bulk requests do not hold up the playback
+    private final AtomicReferenceArray<HtspRequestWindow> requestWindows = createRequestWindows();
+    private final HtspSendQueue messageQueue;
     private boolean isConnecting = false;
-    private boolean isAuthenticated = false;
+    private volatile boolean isAuthenticated = false;
+    private volatile HtspMessage serverStatus;
     private Selector selector;
     private final int connectionTimeout;
 
     @Override
     public void addMessageListener(@NonNull HtspMessageListener listener) {
-        messageListeners.add(listener);
+        // The dispatcher must know the listener before the first message is passed to it
+        dispatcher.addListener(listener);
+        if (!messageListeners.add(listener)) {
+            dispatcher.removeListener(listener);
+        }
     }
 
     @Override
     public void removeMessageListener(@NonNull HtspMessageListener listener) {
-        messageListeners.remove(listener);
+        if (messageListeners.remove(listener)) {
+            dispatcher.removeListener(listener);
+        }
+    }
+
+    @Override
+    public void addConnectionStateListener(@NonNull HtspConnectionStateListener listener) {
+        connectionListeners.add(listener);
+    }
+
+    @Override
+    public void removeConnectionStateListener(@NonNull HtspConnectionStateListener listener) {
+        connectionListeners.remove(listener);
+    }
+
+    @Override
+    public void addRecordListener(@NonNull HtspSchema schema, @NonNull HtspRecordListener listener) {
+        addRecordListener(schema, listener, false);
+    }
+
+    @Override
+    public void addRecordListener(@NonNull HtspSchema schema, @NonNull HtspRecordListener listener, boolean exclusive) {
+        lock.lock();
+        try {
+            dispatcher.addListener(listener);
+            if (!addListener(recordListeners, schema, listener)) {
+                dispatcher.removeListener(listener);
+            }
+            if (exclusive) {
+                addListener(exclusiveRecordListeners, schema, listener);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void removeRecordListener(@NonNull HtspSchema schema, @NonNull HtspRecordListener listener) {
+        lock.lock();
+        try {
+            if (removeListener(recordListeners, schema, listener)) {
+                dispatcher.removeListener(listener);
+            }
+            removeListener(exclusiveRecordListeners, schema, listener);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean addListener(Map<HtspSchema, Set<HtspRecordListener>> map, HtspSchema schema, HtspRecordListener listener) {
+        Set<HtspRecordListener> listeners = map.get(schema);
+        if (listeners == null) {
+            listeners = new CopyOnWriteArraySet<>();
+            map.put(schema, listeners);
+        }
+        return listeners.add(listener);
+    }
+
+    private static boolean removeListener(Map<HtspSchema, Set<HtspRecordListener>> map, HtspSchema schema, HtspRecordListener listener) {
+        Set<HtspRecordListener> listeners = map.get(schema);
+        if (listeners == null || !listeners.remove(listener)) {
+            return false;
+        }
+        if (listeners.isEmpty()) {
+            map.remove(schema);
+        }
+        return true;
     }
 
     public enum AuthenticationState {
@@ -87,6 +201,17 @@ public class HtspConnection extends Thread implements HtspConnectionInterface {
         FAILED_EXCEPTION_OPENING_SOCKET
     }
 
+    /**
+     * Order in which queued messages are sent to the server. Interactive and streaming control
+     * messages are always sent first, bulk sync and background file messages share the rest.
+     */
+    public enum Priority {
+        INTERACTIVE,
+        STREAMING_CONTROL,
+        BULK_SYNC,
+        BACKGROUND_FILE
+    }
+
     public HtspConnection(@Nullable String username,
                           @Nullable String password,
                           @Nullable String url,
@@ -98,18 +223,20 @@ public class HtspConnection extends Thread implements HtspConnectionInterface {
         this.username = username != null ? username : "";
         this.password = password != null ? password : "";
         this.url = url != null ? url : "";
+        this.urls = HtspEndpointSelector.parseUrls(this.url);
         this.connectionTimeout = connectionTimeout;
 
         this.isRunning = false;
         this.lock = new ReentrantLock();
-        this.inputByteBuffer = ByteBuffer.allocateDirect(2048 * 2048);
-        this.inputByteBuffer.limit(4);
-        this.responseHandlers = new SparseArray<>();
-        this.messageQueue = new LinkedList<>();
-        this.connectionListener = connectionListener;
+        this.inputByteBuffer = ByteBuffer.allocateDirect(DEFAULT_INPUT_BUFFER_SIZE);
+        this.messageWriter = new HtspMessageWriter();
+        this.pendingRequests = new ConcurrentHashMap<>();
+        this.messageQueue = new HtspSendQueue();
+        this.connectionListeners.add(connectionListener);
+        this.dispatcher = new HtspDispatcher("HtspDispatcher " + this.url);
 
         if (messageListener != null) {
-            this.messageListeners.add(messageListener);
+            addMessageListener(messageListener);
         }
     }
 
@@ -117,7 +244,7 @@ public class HtspConnection extends Thread implements HtspConnectionInterface {
     @Override
     public void openConnection() {
         Timber.i("Opening HTSP Connection");
-        connectionListener.onConnectionStateChange(ConnectionState.CONNECTING);
+        notifyConnectionStateChange(ConnectionState.CONNECTING);
 
         if (isRunning) {
             return;
@@ -128,6 +255,23 @@ public class HtspConnection extends Thread implements HtspConnectionInterface {
 
         final Object signal = new Object();
 
+        // Probing the endpoints and resolving the address may take a while, so this
+        // is done before the lock is taken that other threads need to send messages
+        InetSocketAddress inetSocketAddress;
+        try {
+            HtspEndpointSelector.Endpoint endpoint = endpointSelector != null ? endpointSelector.select(urls, connectionTimeout) : null;
+            if (endpoint != null) {
+                Timber.d("Connecting via socket to selected endpoint '" + endpoint.getAddress() + "' of url " + endpoint.getUrl());
+                inetSocketAddress = endpoint.getAddress();
+            } else {
+                inetSocketAddress = getSocketAddress(urls.isEmpty() ? url : urls.get(0));
+            }
+        } catch (UnknownHostException e) {
+            Timber.d(e, "Unknown host exception while opening HTSP connection");
+            notifyConnectionStateChange(ConnectionState.FAILED_UNRESOLVED_ADDRESS);
+            return;
+        }
+
         lock.lock();
         try {
             Timber.d("Opening socket to server");
@@ -136,26 +280,7 @@ public class HtspConnection extends Thread implements HtspConnectionInterface {
             socketChannel.configureBlocking(false);
             socketChannel.socket().setKeepAlive(true);
             socketChannel.socket().setSoTimeout(connectionTimeout);
-            socketChannel.register(selector, SelectionKey.OP_CONNECT, signal);
-
-            Timber.d("Parsing url " + url + " to get required host and port information");
-            Uri uri = Uri.parse(url);
-            InetSocketAddress inetSocketAddress = new InetSocketAddress(uri.getHost(), uri.getPort());
-
-            InetAddress inetAddress = inetSocketAddress.getAddress();
-            if (inetAddress instanceof Inet4Address) {
-                Timber.d("Connecting via socket to ipv4 address '" + inetAddress.getHostName() + "' and port '" + inetSocketAddress.getPort() + "'");
-
-            } else if (inetAddress instanceof Inet6Address) {
-                Inet6Address inet6Address = (Inet6Address) inetAddress;
-                if (inet6Address.getScopeId() != 0) {
-                    Timber.d("Connecting via socket to ipv6 address '" + inetAddress.getHostName() + "' and port '" + inetSocketAddress.getPort() + "'");
-                    inetSocketAddress = new InetSocketAddress(InetAddress.getByAddress(inet6Address.getAddress()), inetSocketAddress.getPort());
-                } else {
-                    Timber.d("Scope id of ipv6 address '" + inetAddress.getHostName() + "', is 0");
-                    inetSocketAddress = null;
-                }
-            }
+            selectionKey = socketChannel.register(selector, SelectionKey.OP_CONNECT, signal);
 
             if (!socketChannel.connect(inetSocketAddress)) {
                 Timber.d("Socket did not yet finish connecting, calling finishConnect()");
@@ -166,25 +291,21 @@ public class HtspConnection extends Thread implements HtspConnectionInterface {
             isRunning = true;
             start();
 
-        } catch (UnknownHostException e) {
-            Timber.d(e, "Unknown host exception while opening HTSP connection");
-            connectionListener.onConnectionStateChange(ConnectionState.FAILED_UNRESOLVED_ADDRESS);
-
         } catch (ClosedByInterruptException e) {
             Timber.d(e, "Failed to open HTSP connection, interrupted");
-            connectionListener.onConnectionStateChange(ConnectionState.FAILED_INTERRUPTED);
+            notifyConnectionStateChange(ConnectionState.FAILED_INTERRUPTED);
 
         } catch (UnresolvedAddressException e) {
             Timber.d(e, "Failed to resolve HTSP server address");
-            connectionListener.onConnectionStateChange(ConnectionState.FAILED_UNRESOLVED_ADDRESS);
+            notifyConnectionStateChange(ConnectionState.FAILED_UNRESOLVED_ADDRESS);
 
         } catch (UnsupportedAddressTypeException e) {
             Timber.d(e, "Type of HTSP server address is not supported");
-            connectionListener.onConnectionStateChange(ConnectionState.FAILED_UNRESOLVED_ADDRESS);
+            notifyConnectionStateChange(ConnectionState.FAILED_UNRESOLVED_ADDRESS);
 
         } catch (IOException e) {
             Timber.d(e, "Caught IOException while opening SocketChannel");
-            connectionListener.onConnectionStateChange(ConnectionState.FAILED_EXCEPTION_OPENING_SOCKET);
+            notifyConnectionStateChange(ConnectionState.FAILED_EXCEPTION_OPENING_SOCKET);
 
         } finally {
             lock.unlock();
@@ -196,7 +317,7 @@ public class HtspConnection extends Thread implements HtspConnectionInterface {
                     signal.wait(connectionTimeout);
                     if (socketChannel.isConnectionPending()) {
                         Timber.d("Timeout while waiting to connect to server");
-                        connectionListener.onConnectionStateChange(ConnectionState.FAILED);
+                        notifyConnectionStateChange(ConnectionState.FAILED);
                         closeConnection();
                     }
                 } catch (InterruptedException e) {
@@ -207,6 +328,28 @@ public class HtspConnection extends Thread implements HtspConnectionInterface {
         Timber.d("Opened HTSP Connection");
     }
 
+    private static InetSocketAddress getSocketAddress(String url) throws UnknownHostException {
+        Timber.d("Parsing url " + url + " to get required host and port information");
+        Uri uri = Uri.parse(url);
+        InetSocketAddress inetSocketAddress = new InetSocketAddress(uri.getHost(), uri.getPort());
+
+        InetAddress inetAddress = inetSocketAddress.getAddress();
+        if (inetAddress instanceof Inet4Address) {
+            Timber.d("Connecting via socket to ipv4 address '" + inetAddress.getHostName() + "' and port '" + inetSocketAddress.getPort() + "'");
+
+        } else if (inetAddress instanceof Inet6Address) {
+            Inet6Address inet6Address = (Inet6Address) inetAddress;
+            if (inet6Address.getScopeId() != 0) {
+                Timber.d("Connecting via socket to ipv6 address '" + inetAddress.getHostName() + "' and port '" + inetSocketAddress.getPort() + "'");
+                inetSocketAddress = new InetSocketAddress(InetAddress.getByAddress(inet6Address.getAddress()), inetSocketAddress.getPort());
+            } else {
+                Timber.d("Scope id of ipv6 address '" + inetAddress.getHostName() + "', is 0");
+                inetSocketAddress = null;
+            }
+        }
+        return inetSocketAddress;
+    }
+
     public boolean isConnecting() {
         return isConnecting;
     }
@@ -235,25 +378,6 @@ public class HtspConnection extends Thread implements HtspConnectionInterface {
 
         isAuthenticated = false;
 
-        final HtspMessage authMessage = new HtspMessage();
-        authMessage.setMethod("authenticate");
-        authMessage.put("username", username);
-
-        final HtspResponseListener authHandler = response -> {
-            isAuthenticated = response.getInteger("noaccess", 0) != 1;
-            Timber.d("Authentication was successful: %s", isAuthenticated);
-            if (!isAuthenticated) {
-                connectionListener.onAuthenticationStateChange(AuthenticationState.FAILED_BAD_CREDENTIALS);
-            } else {
-                connectionListener.onAuthenticationStateChange(AuthenticationState.AUTHENTICATED);
-            }
-            synchronized (authMessage) {
-                authMessage.notify();
-            }
-            Timber.d("Connection to server is complete");
-            isConnecting = false;
-        };
-
         Timber.d("Sending initial message to server");
         HtspMessage helloMessage = new HtspMessage();
         helloMessage.setMethod("hello");
@@ -262,37 +386,75 @@ public class HtspConnection extends Thread implements HtspConnectionInterface {
         helloMessage.put("htspversion", HtspMessage.HTSP_VERSION);
         helloMessage.put("username", username);
 
-        sendMessage(helloMessage, response -> {
+        try {
+            HtspMessage response = request(helloMessage, connectionTimeout).get();
 
             response.setMethod("serverStatus");
-            for (HtspMessageListener listener : messageListeners) {
-                listener.onMessage(response);
-            }
+            serverStatus = response;
+            dispatcher.dispatchMessage(response, messageListeners);
 
-            MessageDigest md;
-            try {
-                md = MessageDigest.getInstance("SHA1");
-                md.update(password.getBytes());
-                md.update(response.getByteArray("challenge"));
-
-                Timber.d("Sending authentication message");
-                authMessage.put("digest", md.digest());
-                sendMessage(authMessage, authHandler);
-            } catch (NoSuchAlgorithmException e) {
-                Timber.d(e, "Could not sent authentication message.");
-            }
-        });
+            MessageDigest md = MessageDigest.getInstance("SHA1");
+            md.update(password.getBytes());
+            md.update(response.getByteArray("challenge"));
 
-        synchronized (authMessage) {
-            try {
-                authMessage.wait(connectionTimeout);
-                if (!isAuthenticated) {
-                    Timber.d("Timeout while waiting for authentication response");
-                    connectionListener.onAuthenticationStateChange(AuthenticationState.FAILED);
-                }
-            } catch (InterruptedException e) {
-                Timber.d(e, "Waiting for authentication message was interrupted.");
+            Timber.d("Sending authentication message");
+            HtspMessage authMessage = new HtspMessage();
+            authMessage.setMethod("authenticate");
+            authMessage.put("username", username);
+            authMessage.put("digest", md.digest());
+            response = request(authMessage, connectionTimeout).get();
+
+            isAuthenticated = response.getInteger("noaccess", 0) != 1;
+            Timber.d("Authentication was successful: %s", isAuthenticated);
+            if (!isAuthenticated) {
+                notifyAuthenticationStateChange(AuthenticationState.FAILED_BAD_CREDENTIALS);
+            } else {
+                // Let the connection thread schedule the heartbeat
+                selector.wakeup();
+                notifyAuthenticationStateChange(AuthenticationState.AUTHENTICATED);
             }
+            Timber.d("Connection to server is complete");
+            isConnecting = false;
+
+        } catch (NoSuchAlgorithmException e) {
+            Timber.d(e, "Could not sent authentication message.");
+        } catch (ExecutionException e) {
+            Timber.d(e.getCause(), "Did not receive a response while authenticating");
+            notifyAuthenticationStateChange(AuthenticationState.FAILED);
+        } catch (IOException e) {
+            Timber.d(e, "Could not pass the server status to the listeners");
+            notifyAuthenticationStateChange(AuthenticationState.FAILED);
+        } catch (InterruptedException e) {
+            Timber.d(e, "Waiting for authentication message was interrupted.");
+        }
+    }
+
+    /**
+     * Returns the response to the hello message that was sent while authenticating,
+     * or null if it was not yet received
+     */
+    @Nullable
+    public HtspMessage getServerStatus() {
+        return serverStatus;
+    }
+
+    private void notifyConnectionStateChange(ConnectionState state) {
+        HtspEndpointSelector selector = endpointSelector;
+        if (selector != null && (state == ConnectionState.FAILED
+                || state == ConnectionState.FAILED_CONNECTING_TO_SERVER
+                || state == ConnectionState.FAILED_UNRESOLVED_ADDRESS
+                || state == ConnectionState.FAILED_EXCEPTION_OPENING_SOCKET)) {
+            // The next connection shall probe the endpoints again
+            selector.invalidate(urls);
+        }
+        for (HtspConnectionStateListener listener : connectionListeners) {
+            listener.onConnectionStateChange(state);
+        }
+    }
+
+    private void notifyAuthenticationStateChange(AuthenticationState state) {
+        for (HtspConnectionStateListener listener : connectionListeners) {
+            listener.onAuthenticationStateChange(state);
         }
     }
 
@@ -303,6 +465,11 @@ public class HtspConnection extends Thread implements HtspConnectionInterface {
 
     @Override
     public void sendMessage(@NonNull HtspMessage message, @Nullable HtspResponseListener listener) {
+        sendMessage(message, listener, HtspSendQueue.getDefaultPriority(message.getMethod()));
+    }
+
+    @Override
+    public void sendMessage(@NonNull HtspMessage message, @Nullable HtspResponseListener listener, @NonNull Priority priority) {
         if (isNotConnected()) {
             Timber.d("Not sending message, not connected to server");
 
@@ -315,28 +482,281 @@ public class HtspConnection extends Thread implements HtspConnectionInterface {
 
             return;
         }
-        lock.lock();
-        try {
-            seq++;
-            message.put("seq", seq);
-            responseHandlers.put(seq, listener);
-            socketChannel.register(selector, SelectionKey.OP_WRITE | SelectionKey.OP_READ | SelectionKey.OP_CONNECT);
-            messageQueue.add(message);
-            selector.wakeup();
-
-        } catch (Exception e) {
-            Timber.d(e, "Could not send message.");
-        } finally {
-            lock.unlock();
+        int messageSeq = seq.incrementAndGet();
+        message.put("seq", messageSeq);
+        if (listener != null) {
+            pendingRequests.put(messageSeq, new HtspResponseFuture(messageSeq, 0, listener, dispatcher.getResponseExecutor()));
+        }
+        queueMessage(message, priority);
+    }
+
+    @NonNull
+    @Override
+    public HtspResponseFuture request(@NonNull HtspMessage message, long timeout) {
+        return request(message, timeout, HtspSendQueue.getDefaultPriority(message.getMethod()));
+    }
+
+    @NonNull
+    @Override
+    public HtspResponseFuture request(@NonNull HtspMessage message, long timeout, @NonNull Priority priority) {
+        return request(message, timeout, priority, null, 0);
+    }
+
+    @NonNull
+    @Override
+    public HtspResponseFuture requestInWindow(@NonNull HtspMessage message, long timeout, long responseSize) throws InterruptedException {
+        return requestInWindow(message, timeout, responseSize, HtspSendQueue.getDefaultPriority(message.getMethod()));
+    }
+
+    @NonNull
+    @Override
+    public HtspResponseFuture requestInWindow(@NonNull HtspMessage message, long timeout, long responseSize, @NonNull Priority priority) throws InterruptedException {
+        HtspRequestWindow window = requestWindows.get(priority.ordinal());
+        if (!window.acquire(responseSize, timeout)) {
+            HtspResponseFuture future = new HtspResponseFuture(0, 0, null, dispatcher.getResponseExecutor());
+            future.fail(new TimeoutException("No space in the request window for " + message.getMethod()));
+            return future;
+        }
+        return request(message, timeout, priority, window, responseSize);
+    }
+
+    private HtspResponseFuture request(HtspMessage message, long timeout, Priority priority,
+                                       HtspRequestWindow window, long responseSize) {
+        int messageSeq = seq.incrementAndGet();
+        long deadline = timeout > 0 ? SystemClock.elapsedRealtime() + timeout : 0;
+        HtspResponseFuture future = new HtspResponseFuture(messageSeq, deadline, null, dispatcher.getResponseExecutor());
+        if (window != null) {
+            future.setWindow(window, responseSize);
+        }
+
+        if (isNotConnected()) {
+            Timber.d("Not sending request, not connected to server");
+            future.fail(new IOException("Could not send message, not connected to server"));
+            return future;
+        }
+
+        message.put("seq", messageSeq);
+        pendingRequests.put(messageSeq, future);
+        if (deadline > 0) {
+            updateNextRequestDeadline(deadline);
+        }
+        queueMessage(message, priority);
+        return future;
+    }
+
+    private void queueMessage(HtspMessage message, Priority priority) {
+        messageQueue.add(message, priority);
+
+        // The connection thread enables writing for the queued messages once it wakes
+        // up. Only wake it up once for all messages that are queued in the meantime.
+        if (wakeupRequested.compareAndSet(false, true)) {
+            try {
+                selector.wakeup();
+            } catch (Exception e) {
+                Timber.d(e, "Could not send message.");
+            }
+        }
+    }
+
+    private void updateNextRequestDeadline(long deadline) {
+        long next = nextRequestDeadline.get();
+        while (deadline < next && !nextRequestDeadline.compareAndSet(next, deadline)) {
+            next = nextRequestDeadline.get();
+        }
+    }
+
+    /**
+     * Fails all requests whose deadline has passed and determines the next deadline
+     */
+    private void expireRequests() {
+        long now = SystemClock.elapsedRealtime();
+        if (now < nextRequestDeadline.get()) {
+            return;
+        }
+        nextRequestDeadline.set(Long.MAX_VALUE);
+        for (HtspResponseFuture future : pendingRequests.values()) {
+            long deadline = future.getDeadline();
+            if (deadline == 0) {
+                continue;
+            }
+            if (deadline <= now) {
+                pendingRequests.remove(future.getSeq());
+                future.fail(new TimeoutException("No response received for request " + future.getSeq()));
+            } else {
+                updateNextRequestDeadline(deadline);
+            }
+        }
+    }
+
+    /**
+     * Returns how long the connection thread may wait for network events
+     * so that it wakes up in time for the next request deadline
+     */
+    private long getSelectTimeout() {
+        long now = SystemClock.elapsedRealtime();
+        long timeout = Math.min(5000, nextRequestDeadline.get() - now);
+        if (isAuthenticated && heartbeatInterval > 0) {
+            long sendTime = heartbeatSendTime.get();
+            long receiveTime = lastReceiveTime;
+            long heartbeatTime = receiveTime + heartbeatInterval;
+            if (sendTime > receiveTime) {
+                heartbeatTime = sendTime + deadPeerTimeout;
+            } else if (sendTime > 0) {
+                heartbeatTime = Math.max(heartbeatTime, sendTime + deadPeerTimeout);
+            }
+            timeout = Math.min(timeout, heartbeatTime - now);
+        }
+        return Math.max(1, timeout);
+    }
+
+    /**
+     * Sends a heartbeat when nothing was received from the server for the heartbeat interval.
+     * While data is received no heartbeat is needed. The connection is considered broken when
+     * nothing at all was received within the dead peer timeout after the heartbeat was sent.
+     * If anything was received, the heartbeat is finished even if its response is still
+     * queued behind other data, so that the next one is sent after the heartbeat interval.
+     */
+    private void checkHeartbeat() {
+        if (!isAuthenticated || heartbeatInterval <= 0) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        long sendTime = heartbeatSendTime.get();
+        if (sendTime > 0) {
+            if (now - sendTime < deadPeerTimeout) {
+                return;
+            }
+            if (lastReceiveTime < sendTime) {
+                Timber.d("Nothing received within " + deadPeerTimeout + " ms after the heartbeat, server is not responding");
+                notifyConnectionStateChange(ConnectionState.FAILED);
+                isRunning = false;
+                return;
+            }
+            heartbeatSendTime.compareAndSet(sendTime, 0);
+        }
+        if (now - lastReceiveTime < heartbeatInterval) {
+            return;
+        }
+
+        final long heartbeatTime = now;
+        heartbeatSendTime.set(heartbeatTime);
+        HtspMessage message = new HtspMessage();
+        message.setMethod("getSysTime");
+        request(message, deadPeerTimeout, Priority.INTERACTIVE).setCallback(new HtspResponseFuture.Callback() {
+            @Override
+            public void onComplete(@NonNull HtspResponseFuture future) {
+                try {
+                    future.get();
+                } catch (ExecutionException | InterruptedException | CancellationException e) {
+                    // The server is still reachable if anything was received since
+                    // the heartbeat, otherwise the connection thread fails the connection
+                    if (lastReceiveTime >= heartbeatTime) {
+                        heartbeatSendTime.compareAndSet(heartbeatTime, 0);
+                    }
+                    return;
+                }
+                if (!heartbeatSendTime.compareAndSet(heartbeatTime, 0)) {
+                    return;
+                }
+                long rtt = SystemClock.elapsedRealtime() - heartbeatTime;
+                // Smooth the round trip time like TCP does
+                roundTripTime = roundTripTime == 0 ? rtt : (7 * roundTripTime + rtt) / 8;
+            }
+        });
+    }
+
+    /**
+     * Sets how long the connection may be idle before a heartbeat is sent to the server and
+     * how long to wait for data after the heartbeat before the connection is considered broken.
+     * A heartbeat interval of zero disables the heartbeat.
+     */
+    public void setHeartbeat(long heartbeatInterval, long deadPeerTimeout) {
+        this.heartbeatInterval = heartbeatInterval;
+        this.deadPeerTimeout = deadPeerTimeout;
+    }
+
+    /**
+     * Returns the smoothed round trip time in milliseconds of the heartbeats
+     * or zero if no heartbeat was answered yet
+     */
+    public long getRoundTripTime() {
+        return roundTripTime;
+    }
+
+    /**
+     * Returns the number of messages that were written to the server
+     */
+    public long getSentMessageCount() {
+        return sentMessageCount;
+    }
+
+    /**
+     * Returns the number of bytes that were written to the server
+     */
+    public long getSentByteCount() {
+        return sentByteCount;
+    }
+
+    /**
+     * Sets the selector that chooses the endpoint to connect to in case the url contains
+     * several urls of the server separated by commas. Without a selector, the first url is used.
+     */
+    public void setEndpointSelector(@Nullable HtspEndpointSelector selector) {
+        endpointSelector = selector;
+    }
+
+    /**
+     * Replaces the window that limits the requests of the given priority that are in flight.
+     * Requests that already took a place in the previous window free it there.
+     */
+    public void setRequestWindow(@NonNull Priority priority, @NonNull HtspRequestWindow window) {
+        requestWindows.set(priority.ordinal(), window);
+    }
+
+    @NonNull
+    public HtspRequestWindow getRequestWindow(@NonNull Priority priority) {
+        return requestWindows.get(priority.ordinal());
+    }
+
+    private static AtomicReferenceArray<HtspRequestWindow> createRequestWindows() {
+        Priority[] priorities = Priority.values();
+        AtomicReferenceArray<HtspRequestWindow> windows = new AtomicReferenceArray<>(priorities.length);
+        for (Priority priority : priorities) {
+            windows.set(priority.ordinal(), new HtspRequestWindow(DEFAULT_WINDOW_REQUESTS, DEFAULT_WINDOW_BYTES));
         }
+        return windows;
+    }
+
+    /**
+     * Returns the average time in milliseconds that the sent messages
+     * of the given priority had to wait in the queue
+     */
+    public long getQueueWaitTime(@NonNull Priority priority) {
+        return messageQueue.getAverageWaitTime(priority);
+    }
+
+    /**
+     * Returns the longest time in milliseconds that a sent message
+     * of the given priority had to wait in the queue
+     */
+    public long getMaxQueueWaitTime(@NonNull Priority priority) {
+        return messageQueue.getMaxWaitTime(priority);
     }
 
     @Override
     public void closeConnection() {
-        Timber.d("Closing HTSP connection");
+        Timber.d("Closing HTSP connection, sent " + sentMessageCount + " messages with " + sentByteCount + " bytes");
+        for (Priority priority : Priority.values()) {
+            Timber.d("Sent " + messageQueue.getSentCount(priority) + " " + priority + " messages, waited "
+                    + messageQueue.getAverageWaitTime(priority) + " ms on average and "
+                    + messageQueue.getMaxWaitTime(priority) + " ms at most");
+        }
         lock.lock();
         try {
-            responseHandlers.clear();
+            for (HtspResponseFuture future : pendingRequests.values()) {
+                future.fail(new IOException("Connection closed"));
+            }
+            pendingRequests.clear();
             messageQueue.clear();
             isAuthenticated = false;
             isConnecting = false;
@@ -366,22 +786,26 @@ public class HtspConnection extends Thread implements HtspConnectionInterface {
     @Override
     public void run() {
         Timber.d("Starting HTSP connection thread");
-        connectionListener.onConnectionStateChange(ConnectionState.CONNECTED);
+        notifyConnectionStateChange(ConnectionState.CONNECTED);
+        lastReceiveTime = SystemClock.elapsedRealtime();
 
         while (isRunning) {
             try {
-                selector.select(5000);
+                selector.select(getSelectTimeout());
             } catch (IOException e) {
                 Timber.d(e, "Failed to select from socket channel, I/O error occurred");
-                connectionListener.onConnectionStateChange(ConnectionState.FAILED);
+                notifyConnectionStateChange(ConnectionState.FAILED);
                 isRunning = false;
             } catch (ClosedSelectorException e) {
                 Timber.d(e, "Failed to select from socket channel, selector is already closed");
-                connectionListener.onConnectionStateChange(ConnectionState.FAILED);
+                notifyConnectionStateChange(ConnectionState.FAILED);
                 isRunning = false;
             }
 
-            lock.lock();
+            wakeupRequested.set(false);
+            expireRequests();
+            checkHeartbeat();
+
             try {
                 Iterator<SelectionKey> it = selector.selectedKeys().iterator();
                 while (it.hasNext()) {
@@ -389,12 +813,16 @@ public class HtspConnection extends Thread implements HtspConnectionInterface {
                     it.remove();
                     processTcpSelectionKey(selKey);
                 }
+                shrinkInputBuffer();
                 int ops = SelectionKey.OP_READ;
-                if (!messageQueue.isEmpty()) {
+                if (!messageQueue.isEmpty() || (outputByteBuffer != null && outputByteBuffer.hasRemaining())) {
                     ops |= SelectionKey.OP_WRITE;
                 }
-                if (socketChannel.isOpen()) {
-                    socketChannel.register(selector, ops);
+                if (socketChannel.isConnectionPending()) {
+                    ops |= SelectionKey.OP_CONNECT;
+                }
+                if (selectionKey.isValid() && selectionKey.interestOps() != ops) {
+                    selectionKey.interestOps(ops);
                 }
 
             } catch (NullPointerException e) {
@@ -417,13 +845,13 @@ public class HtspConnection extends Thread implements HtspConnectionInterface {
                 isRunning = false;
             } catch (IOException e) {
                 Timber.d(e, "Exception while processing tcp selection key");
+                notifyConnectionStateChange(ConnectionState.FAILED);
                 isRunning = false;
-            } finally {
-                lock.unlock();
             }
         }
 
         closeConnection();
+        dispatcher.stop();
         Timber.d("HTSP connection thread stopped");
     }
 
@@ -437,47 +865,202 @@ public class HtspConnection extends Thread implements HtspConnectionInterface {
             synchronized (signal) {
                 signal.notify();
             }
-            sChannel.register(selector, SelectionKey.OP_READ);
+            selKey.interestOps(SelectionKey.OP_READ);
         }
         if (selKey.isReadable() && selKey.isValid()) {
             SocketChannel sChannel = (SocketChannel) selKey.channel();
-            int len = sChannel.read(inputByteBuffer);
-            if (len < 0) {
-                connectionListener.onConnectionStateChange(ConnectionState.FAILED);
-                Timber.d("Could not read data from server");
-                throw new IOException();
-            }
-
-            HtspMessage msg = HtspMessage.parse(inputByteBuffer);
-            if (msg != null) {
-                handleMessage(msg);
+            // Keep reading as long as the reads fill the whole buffer, more data is likely waiting
+            boolean bufferFilled = true;
+            while (bufferFilled) {
+                int len = sChannel.read(inputByteBuffer);
+                if (len < 0) {
+                    Timber.d("Could not read data from server");
+                    throw new IOException("Server closed the connection");
+                }
+                if (len > 0) {
+                    lastReceiveTime = SystemClock.elapsedRealtime();
+                    if (inputByteBuffer.position() > DEFAULT_INPUT_BUFFER_SIZE) {
+                        inputBufferLargeUseTime = lastReceiveTime;
+                    }
+                }
+                bufferFilled = !inputByteBuffer.hasRemaining();
+                handleReceivedMessages();
             }
         }
         if (selKey.isWritable() && selKey.isValid()) {
             SocketChannel sChannel = (SocketChannel) selKey.channel();
-            HtspMessage msg = messageQueue.poll();
-            if (msg != null) {
-                msg.transmit(sChannel);
+            // Keep writing as long as the socket accepts all data and more messages are queued
+            while (true) {
+                // Only encode the next messages when the previous ones were completely sent
+                if (outputByteBuffer == null || !outputByteBuffer.hasRemaining()) {
+                    outputByteBuffer = encodeQueuedMessages();
+                }
+                if (outputByteBuffer == null) {
+                    break;
+                }
+                int len = sChannel.write(outputByteBuffer);
+                if (len < 0) {
+                    throw new IOException("Server went down");
+                }
+                sentByteCount += len;
+                if (outputByteBuffer.hasRemaining()) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Encodes the queued messages one after another into the buffer of the message writer
+     * until it contains at least WRITE_BATCH_SIZE bytes, so that they are sent with a
+     * single write. Messages that can't be encoded are dropped.
+     * Bulk sync and background file messages only take up to BACKGROUND_BATCH_SIZE
+     * bytes of a batch. A message with a higher priority that is queued while a batch
+     * is being written therefore only waits for this many bytes of background messages.
+     *
+     * @return The buffer with the encoded messages or null if no message was queued
+     */
+    private ByteBuffer encodeQueuedMessages() {
+        messageWriter.clear();
+        int count = 0;
+        int backgroundSize = 0;
+        HtspSendQueue.Entry entry;
+        while (messageWriter.size() < WRITE_BATCH_SIZE
+                && (entry = messageQueue.poll(backgroundSize < BACKGROUND_BATCH_SIZE)) != null) {
+            int size = messageWriter.size();
+            try {
+                messageWriter.append(entry.message);
+                count++;
+            } catch (IOException e) {
+                Timber.d(e, "Could not serialize message " + entry.message.getMethod() + ", dropping it");
+            }
+            if (entry.priority == Priority.BULK_SYNC || entry.priority == Priority.BACKGROUND_FILE) {
+                backgroundSize += messageWriter.size() - size;
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+        sentMessageCount += count;
+        return messageWriter.flip();
+    }
+
+    /**
+     * Handles all messages that were completely received. The bytes of an incomplete
+     * message are moved to the beginning of the buffer, which is enlarged in case
+     * the message would not fit into it.
+     */
+    private void handleReceivedMessages() throws IOException {
+        int end = inputByteBuffer.position();
+        int offset = 0;
+
+        while (end - offset >= 4) {
+            long length = inputByteBuffer.getInt(offset) & 0xFFFFFFFFL;
+            if (length > MAX_MESSAGE_SIZE) {
+                throw new IOException("Message is to long, length " + length + ", maximum " + MAX_MESSAGE_SIZE);
             }
+            // Message not yet fully read
+            if (end - offset - 4 < length) {
+                break;
+            }
+            handleReceivedMessage(inputByteBuffer, offset + 4, (int) length);
+            offset += 4 + (int) length;
+        }
+
+        if (offset > 0) {
+            inputByteBuffer.limit(end);
+            inputByteBuffer.position(offset);
+            inputByteBuffer.compact();
+        }
+
+        if (inputByteBuffer.position() >= 4) {
+            int required = 4 + inputByteBuffer.getInt(0);
+            if (required > inputByteBuffer.capacity()) {
+                growInputBuffer(required);
+            }
+        }
+    }
+
+    private void handleReceivedMessage(ByteBuffer buf, int offset, int length) throws IOException {
+        HtspRecord record = parseRecord(buf, offset, offset + length);
+        if (record != null) {
+            handleRecord(record);
+            // Only decode the message as well if no listener took the method exclusively
+            if (exclusiveRecordListeners.containsKey(record.getSchema())) {
+                return;
+            }
+        }
+        handleMessage(HtspMessage.parse(buf, offset, length, true));
+    }
+
+    private void growInputBuffer(int required) {
+        int capacity = Math.max(required, Math.min(inputByteBuffer.capacity() * 2, MAX_MESSAGE_SIZE + 4));
+        Timber.d("Increasing size of the input buffer to " + capacity + " bytes for a message of " + required + " bytes");
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+        inputByteBuffer.flip();
+        buffer.put(inputByteBuffer);
+        inputByteBuffer = buffer;
+        inputBufferLargeUseTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Replaces an enlarged input buffer by one with the default size in case the
+     * additional space was not used for the shrink delay and no data is pending.
+     */
+    private void shrinkInputBuffer() {
+        if (inputByteBuffer.capacity() > DEFAULT_INPUT_BUFFER_SIZE
+                && inputByteBuffer.position() == 0
+                && SystemClock.elapsedRealtime() - inputBufferLargeUseTime > INPUT_BUFFER_SHRINK_DELAY) {
+            Timber.d("Decreasing size of the input buffer to " + DEFAULT_INPUT_BUFFER_SIZE + " bytes");
+            inputByteBuffer = ByteBuffer.allocateDirect(DEFAULT_INPUT_BUFFER_SIZE);
         }
     }
 
-    private void handleMessage(HtspMessage msg) {
+    /**
+     * Decodes the received message into a record in case a record listener
+     * was registered with a schema that covers the method of the message.
+     */
+    private HtspRecord parseRecord(ByteBuffer buf, int offset, int limit) throws IOException {
+        if (recordListeners.isEmpty()) {
+            return null;
+        }
+        int position = HtspMessage.findField(buf, offset, limit, METHOD_FIELD);
+        if (position < 0 || buf.get(position) != HtspMessage.HMF_STR) {
+            return null;
+        }
+        int methodOffset = position + 6 + METHOD_FIELD.length;
+        int methodLength = HtspMessage.getFieldLength(buf, position, limit);
+
+        for (HtspSchema schema : recordListeners.keySet()) {
+            String method = schema.matchMethod(buf, methodOffset, methodLength);
+            if (method != null) {
+                return HtspRecord.deserialize(schema, method, buf, offset, limit);
+            }
+        }
+        return null;
+    }
+
+    private void handleRecord(HtspRecord record) throws IOException {
+        Set<HtspRecordListener> listeners = recordListeners.get(record.getSchema());
+        if (listeners == null) {
+            return;
+        }
+        dispatcher.dispatchRecord(record, listeners);
+    }
+
+    private void handleMessage(HtspMessage msg) throws IOException {
         if (msg.containsKey("seq")) {
             int respSeq = msg.getInteger("seq");
-            HtspResponseListener handler = responseHandlers.get(respSeq);
-            responseHandlers.remove(respSeq);
+            HtspResponseFuture future = pendingRequests.remove(respSeq);
 
-            if (handler != null) {
-                synchronized (handler) {
-                    handler.handleResponse(msg);
-                }
+            if (future != null) {
+                // The response of a cancelled request is dropped by the future
+                future.complete(msg);
                 return;
             }
         }
 
-        for (HtspMessageListener listener : messageListeners) {
-            listener.onMessage(msg);
-        }
+        dispatcher.dispatchMessage(msg, messageListeners);
     }
 }
@@ -8,6 +8,18 @@ interface HtspConnectionInterface {
 
     void removeMessageListener(@NonNull HtspMessageListener listener);
 
+    void addConnectionStateListener(@NonNull HtspConnectionStateListener listener);
+
+    void removeConnectionStateListener(@NonNull HtspConnectionStateListener listener);
+
+    // messages with a method of the schema are passed to the record and the message listeners
+    void addRecordListener(@NonNull HtspSchema schema, @NonNull HtspRecordListener listener);
+
+    // an exclusive listener takes the methods of the schema, they are no longer passed to the message listeners
+    void addRecordListener(@NonNull HtspSchema schema, @NonNull HtspRecordListener listener, boolean exclusive);
+
+    void removeRecordListener(@NonNull HtspSchema schema, @NonNull HtspRecordListener listener);
+
     // synchronized, non blocking connect
     void openConnection();
 
@@ -22,5 +34,22 @@ interface HtspConnectionInterface {
 
     void sendMessage(@NonNull HtspMessage message, @Nullable HtspResponseListener listener);
 
+    // the priority overrides the one that is derived from the method of the message
+    void sendMessage(@NonNull HtspMessage message, @Nullable HtspResponseListener listener, @NonNull HtspConnection.Priority priority);
+
+    // non blocking, the future fails if no response arrives within the timeout in milliseconds
+    @NonNull
+    HtspResponseFuture request(@NonNull HtspMessage message, long timeout);
+
+    @NonNull
+    HtspResponseFuture request(@NonNull HtspMessage message, long timeout, @NonNull HtspConnection.Priority priority);
+
+    // blocks until the request window of the priority has space for the request and the expected size of its response
+    @NonNull
+    HtspResponseFuture requestInWindow(@NonNull HtspMessage message, long timeout, long responseSize) throws InterruptedException;
+
+    @NonNull
+    HtspResponseFuture requestInWindow(@NonNull HtspMessage message, long timeout, long responseSize, @NonNull HtspConnection.Priority priority) throws InterruptedException;
+
     void closeConnection();
 }
@@ -0,0 +1,335 @@
+package org.tvheadend.htsp;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+/**
+ * Passes received messages, records and responses to the listeners on dispatch threads,
+ * so that the connection thread only needs to do the network I/O and framing.
+ * <p>
+ * Every listener has its own bounded queue and thread, so one slow listener does not delay
+ * the others. Subscription messages are passed through a separate queue of the listener that
+ * is not held up by other messages. When a queue is full, the connection thread waits for a
+ * limited time until there is space again, which also stops reading from the server. If the
+ * listener does not catch up in time the dispatch fails, which closes the connection. While
+ * the listener waits for a response the queue may exceed its size instead, as the response
+ * can only be received if the connection thread is not waiting. No message is dropped here,
+ * subscriptions decide themselves which packets they can drop.
+ * <p>
+ * Threads are only started for listeners that are registered with the dispatcher. The connection
+ * may still pass a message to a listener that was just removed, it is discarded then, so that no
+ * thread is started again for it.
+ * <p>
+ * The listeners and callbacks of responses are called on the thread of the listener that sent
+ * the request, after the messages it received before. Requests from any other thread get
+ * them called on a shared pool of threads, so a callback that waits cannot block others.
+ */
+final class HtspDispatcher {
+
+    private static final int QUEUE_CAPACITY = 1000;
+    private static final int SUBSCRIPTION_QUEUE_CAPACITY = 500;
+    // Time the connection thread waits for space in the queue of a listener before it gives up
+    private static final long QUEUE_WAIT_TIMEOUT = 5000;
+
+    private static final Set<String> SUBSCRIPTION_METHODS = new HashSet<>();
+    // The lane whose listener is called on the current thread
+    private static final ThreadLocal<Lane> CURRENT_LANE = new ThreadLocal<>();
+
+    static {
+        SUBSCRIPTION_METHODS.add("muxpkt");
+        SUBSCRIPTION_METHODS.add("subscriptionStart");
+        SUBSCRIPTION_METHODS.add("subscriptionStop");
+        SUBSCRIPTION_METHODS.add("subscriptionSkip");
+        SUBSCRIPTION_METHODS.add("subscriptionSpeed");
+        SUBSCRIPTION_METHODS.add("subscriptionStatus");
+        SUBSCRIPTION_METHODS.add("subscriptionGrace");
+        SUBSCRIPTION_METHODS.add("queueStatus");
+        SUBSCRIPTION_METHODS.add("signalStatus");
+        SUBSCRIPTION_METHODS.add("timeshiftStatus");
+    }
+
+    private final String name;
+    private final Map<Object, Lane> lanes = new HashMap<>();
+    private final Map<Object, Lane> subscriptionLanes = new HashMap<>();
+    // Number of times each listener was registered, e.g. for messages and for records
+    private final Map<Object, Integer> registrations = new HashMap<>();
+    private final ExecutorService callbackExecutor;
+    private boolean stopped;
+
+    private final AtomicLong blockedCount = new AtomicLong();
+
+    HtspDispatcher(String name) {
+        this.name = name;
+        this.callbackExecutor = Executors.newCachedThreadPool();
+    }
+
+    void dispatchMessage(final HtspMessage message, Collection<HtspMessageListener> listeners) throws IOException {
+        boolean subscriptionMessage = SUBSCRIPTION_METHODS.contains(message.getMethod());
+
+        for (final HtspMessageListener listener : listeners) {
+            Lane lane = subscriptionMessage ? getSubscriptionLane(listener) : getLane(listener);
+            if (lane == null) {
+                continue;
+            }
+            lane.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onMessage(message);
+                }
+            });
+        }
+    }
+
+    void dispatchRecord(final HtspRecord record, Collection<HtspRecordListener> listeners) throws IOException {
+        boolean subscriptionMessage = SUBSCRIPTION_METHODS.contains(record.getMethod());
+
+        for (final HtspRecordListener listener : listeners) {
+            Lane lane = subscriptionMessage ? getSubscriptionLane(listener) : getLane(listener);
+            if (lane == null) {
+                continue;
+            }
+            lane.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onRecord(record);
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the executor that calls the listener and callback of a response to a
+     * request that is sent from the current thread. This is the thread of the listener
+     * that sends it, so that it handles the response after the messages it received
+     * before, or else a thread of the shared pool. It never blocks the caller.
+     */
+    Executor getResponseExecutor() {
+        final Lane lane = CURRENT_LANE.get();
+        if (lane == null) {
+            return callbackExecutor;
+        }
+        return new Executor() {
+            @Override
+            public void execute(@NonNull Runnable task) {
+                if (!lane.offer(task)) {
+                    callbackExecutor.execute(task);
+                }
+            }
+        };
+    }
+
+    /**
+     * Marks if the listener that is called on the current thread waits for a response
+     */
+    static void setWaitingForResponse(boolean waiting) {
+        Lane lane = CURRENT_LANE.get();
+        if (lane != null) {
+            lane.setWaitingForResponse(waiting);
+        }
+    }
+
+    /**
+     * Registers the listener, it must be called before the listener is added to the connection
+     */
+    synchronized void addListener(Object listener) {
+        Integer count = registrations.get(listener);
+        registrations.put(listener, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Removes one registration of the listener. When the last one is removed, the threads of
+     * the listener are stopped once all messages that are already queued were passed to it.
+     */
+    synchronized void removeListener(Object listener) {
+        Integer count = registrations.get(listener);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            registrations.put(listener, count - 1);
+            return;
+        }
+        registrations.remove(listener);
+        Lane lane = lanes.remove(listener);
+        if (lane != null) {
+            lane.stop();
+        }
+        lane = subscriptionLanes.remove(listener);
+        if (lane != null) {
+            lane.stop();
+        }
+    }
+
+    /**
+     * Stops all threads once the messages that are already queued were passed on.
+     * Messages that are dispatched afterwards are discarded.
+     */
+    synchronized void stop() {
+        stopped = true;
+        Timber.d("Stopping dispatcher " + name + ", waited " + blockedCount.get() + " times for full queues");
+        for (Iterator<Lane> it = lanes.values().iterator(); it.hasNext(); ) {
+            it.next().stop();
+            it.remove();
+        }
+        for (Iterator<Lane> it = subscriptionLanes.values().iterator(); it.hasNext(); ) {
+            it.next().stop();
+            it.remove();
+        }
+        // The pool is not shut down, late failures of requests are still passed on by it
+    }
+
+    /**
+     * Returns how often a message had to wait until there was space in the queue of a listener
+     */
+    long getBlockedCount() {
+        return blockedCount.get();
+    }
+
+    private synchronized Lane getLane(Object listener) {
+        Lane lane = lanes.get(listener);
+        if (lane == null && !stopped && registrations.containsKey(listener)) {
+            lane = new Lane(name + " " + listener.getClass().getSimpleName(), QUEUE_CAPACITY);
+            lanes.put(listener, lane);
+        }
+        return lane;
+    }
+
+    private synchronized Lane getSubscriptionLane(Object listener) {
+        Lane lane = subscriptionLanes.get(listener);
+        if (lane == null && !stopped && registrations.containsKey(listener)) {
+            lane = new Lane(name + " " + listener.getClass().getSimpleName() + " subscription", SUBSCRIPTION_QUEUE_CAPACITY);
+            subscriptionLanes.put(listener, lane);
+        }
+        return lane;
+    }
+
+    /**
+     * Queue of tasks that are run one after another on an own thread. Messages are only
+     * added up to the capacity, unless the listener waits for a response. Responses are
+     * always added, their number is limited by the requests the listener sent.
+     */
+    private final class Lane implements Runnable {
+
+        private final Runnable stopTask = new Runnable() {
+            @Override
+            public void run() {
+                // Only marks the end of the queue
+            }
+        };
+
+        private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+        private final int capacity;
+        private final Thread thread;
+        private volatile boolean stopping;
+        private volatile boolean waitingForResponse;
+        private volatile boolean posterWaiting;
+
+        Lane(String name, int capacity) {
+            this.capacity = capacity;
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        /**
+         * Adds the message task, the connection thread waits for a limited time if the queue is full
+         */
+        void post(Runnable task) throws IOException {
+            if (queue.size() >= capacity && !waitingForResponse) {
+                awaitSpace();
+            }
+            queue.add(task);
+        }
+
+        private void awaitSpace() throws IOException {
+            blockedCount.incrementAndGet();
+            long deadline = SystemClock.elapsedRealtime() + QUEUE_WAIT_TIMEOUT;
+            synchronized (this) {
+                posterWaiting = true;
+                try {
+                    while (queue.size() >= capacity && !waitingForResponse) {
+                        long remaining = deadline - SystemClock.elapsedRealtime();
+                        if (remaining <= 0) {
+                            throw new IOException("Listener of " + thread.getName() + " did not take any message for " + QUEUE_WAIT_TIMEOUT + " ms");
+                        }
+                        wait(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    Timber.d(e, "Interrupted while waiting for space in dispatch queue " + thread.getName());
+                    Thread.currentThread().interrupt();
+                } finally {
+                    posterWaiting = false;
+                }
+            }
+        }
+
+        private void signalPoster() {
+            if (posterWaiting) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Adds the response task regardless of the capacity, unless the lane was stopped
+         */
+        boolean offer(Runnable task) {
+            if (stopping) {
+                return false;
+            }
+            queue.add(task);
+            return true;
+        }
+
+        void setWaitingForResponse(boolean waiting) {
+            waitingForResponse = waiting;
+            if (waiting) {
+                signalPoster();
+            }
+        }
+
+        void stop() {
+            stopping = true;
+            queue.add(stopTask);
+        }
+
+        @Override
+        public void run() {
+            CURRENT_LANE.set(this);
+            try {
+                while (true) {
+                    Runnable task = queue.take();
+                    signalPoster();
+                    if (task == stopTask) {
+                        break;
+                    }
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        Timber.e(e, "Listener failed to handle message in " + thread.getName());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Timber.d("Dispatch thread " + thread.getName() + " was interrupted");
+            }
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package org.tvheadend.htsp;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import timber.log.Timber;
+
+/**
+ * Chooses the endpoint with the lowest latency from a list of server urls, for example
+ * the address of the server in the local network and the one that is reachable via VPN.
+ * <p>
+ * All urls are resolved in parallel and a TCP connection is opened to every IPv4 and IPv6
+ * address of them at the same time. The first address that accepted the connection wins,
+ * all other attempts are aborted. The winner is cached per network and list of urls, so
+ * that probing is only required again after the network was changed, the cached endpoint
+ * failed or the cache timeout passed.
+ * <p>
+ * The probes are done on own threads, so the selection may also be called from a thread
+ * that must not do network operations, as long as it may wait for the timeout.
+ */
+public final class HtspEndpointSelector {
+
+    private static final long CACHE_TIMEOUT = 10 * 60 * 1000;
+
+    private final Map<String, Endpoint> cachedEndpoints = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, "HtspEndpointProbe");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private volatile String networkId = "";
+
+    /**
+     * Address of the server that was chosen for one of the urls
+     */
+    public static final class Endpoint {
+        private final String url;
+        private final InetSocketAddress address;
+        private final long latency;
+        private final long selectTime;
+
+        Endpoint(String url, InetSocketAddress address, long latency) {
+            this.url = url;
+            this.address = address;
+            this.latency = latency;
+            this.selectTime = SystemClock.elapsedRealtime();
+        }
+
+        /**
+         * Returns the url as it was given, including the path
+         */
+        @NonNull
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * Returns the resolved address that answered first
+         */
+        @NonNull
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        /**
+         * Returns the time in milliseconds that was required to open the connection
+         */
+        public long getLatency() {
+            return latency;
+        }
+    }
+
+    /**
+     * Splits a list of urls that are separated by commas or whitespace
+     */
+    @NonNull
+    public static List<String> parseUrls(@Nullable String urls) {
+        List<String> list = new ArrayList<>();
+        if (urls != null) {
+            for (String url : urls.split("[,\\s]+")) {
+                if (!url.isEmpty()) {
+                    list.add(url);
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Sets the identifier of the network the device is currently connected to.
+     * Endpoints that were chosen in other networks are not used.
+     */
+    public void setNetworkId(@Nullable String networkId) {
+        String id = networkId != null ? networkId : "";
+        if (!id.equals(this.networkId)) {
+            Timber.d("Network changed from '" + this.networkId + "' to '" + id + "'");
+            this.networkId = id;
+        }
+    }
+
+    /**
+     * Returns the cached endpoint for the urls in the current network,
+     * or probes all urls and returns the one that was reachable first.
+     *
+     * @param urls    The urls of the same server
+     * @param timeout The time in milliseconds to wait at most for a connection
+     * @return The endpoint or null if none of the urls was reachable
+     */
+    @Nullable
+    public Endpoint select(@NonNull List<String> urls, int timeout) {
+        if (urls.isEmpty()) {
+            return null;
+        }
+        String key = getCacheKey(urls);
+        Endpoint endpoint = getCachedEndpoint(key);
+        if (endpoint != null) {
+            Timber.d("Using cached endpoint " + endpoint.address + " of " + endpoint.url);
+            return endpoint;
+        }
+
+        endpoint = new Probe(urls, timeout).run();
+        if (endpoint != null) {
+            Timber.d("Selected endpoint " + endpoint.address + " of " + endpoint.url + " with a latency of " + endpoint.latency + " ms");
+            cachedEndpoints.put(key, endpoint);
+        } else {
+            Timber.d("None of the endpoints " + urls + " was reachable within " + timeout + " ms");
+            cachedEndpoints.remove(key);
+        }
+        return endpoint;
+    }
+
+    /**
+     * Returns the cached endpoint for the urls in the current network without probing them,
+     * so that it may be called from the main thread
+     *
+     * @return The endpoint or null if none was selected yet or the cached one expired
+     */
+    @Nullable
+    public Endpoint getCached(@NonNull List<String> urls) {
+        return getCachedEndpoint(getCacheKey(urls));
+    }
+
+    private Endpoint getCachedEndpoint(String key) {
+        Endpoint endpoint = cachedEndpoints.get(key);
+        if (endpoint != null && SystemClock.elapsedRealtime() - endpoint.selectTime < CACHE_TIMEOUT) {
+            return endpoint;
+        }
+        return null;
+    }
+
+    /**
+     * Removes the cached endpoint of the urls, for example because the connection to it failed
+     */
+    public void invalidate(@NonNull List<String> urls) {
+        cachedEndpoints.remove(getCacheKey(urls));
+    }
+
+    private String getCacheKey(List<String> urls) {
+        return networkId + "|" + urls;
+    }
+
+    /**
+     * Resolves the urls and connects to all addresses at once until one connection succeeded,
+     * all connections failed or the timeout passed
+     */
+    private final class Probe {
+
+        private final List<String> urls;
+        private final int timeout;
+        private final List<Socket> sockets = new ArrayList<>();
+        private final long startTime = SystemClock.elapsedRealtime();
+        private int runningCount;
+        private boolean isFinished;
+        private Endpoint winner;
+
+        Probe(List<String> urls, int timeout) {
+            this.urls = urls;
+            this.timeout = timeout;
+        }
+
+        Endpoint run() {
+            synchronized (this) {
+                for (final String url : urls) {
+                    runningCount++;
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            resolve(url);
+                        }
+                    });
+                }
+                try {
+                    long remaining = timeout;
+                    while (winner == null && runningCount > 0 && remaining > 0) {
+                        wait(remaining);
+                        remaining = startTime + timeout - SystemClock.elapsedRealtime();
+                    }
+                } catch (InterruptedException e) {
+                    Timber.d(e, "Interrupted while probing endpoints");
+                    Thread.currentThread().interrupt();
+                }
+                isFinished = true;
+                // Abort the connections that are still pending
+                for (Socket socket : sockets) {
+                    closeQuietly(socket);
+                }
+                return winner;
+            }
+        }
+
+        private void resolve(String url) {
+            try {
+                Uri uri = Uri.parse(url);
+                if (uri.getHost() == null || uri.getHost().isEmpty()) {
+                    Timber.d("Endpoint " + url + " has no hostname");
+                    return;
+                }
+                int port = uri.getPort();
+                if (port == -1) {
+                    port = "https".equals(uri.getScheme()) ? 443 : 80;
+                }
+                InetAddress[] addresses = InetAddress.getAllByName(uri.getHost());
+                synchronized (this) {
+                    for (InetAddress address : addresses) {
+                        if (isFinished) {
+                            break;
+                        }
+                        final InetSocketAddress socketAddress = new InetSocketAddress(address, port);
+                        final Socket socket = new Socket();
+                        sockets.add(socket);
+                        runningCount++;
+                        final String endpointUrl = url;
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                connect(endpointUrl, socketAddress, socket);
+                            }
+                        });
+                    }
+                }
+            } catch (UnknownHostException | IllegalArgumentException | SecurityException e) {
+                Timber.d("Could not resolve endpoint " + url + ": " + e.getMessage());
+            } finally {
+                finishTask();
+            }
+        }
+
+        private void connect(String url, InetSocketAddress address, Socket socket) {
+            try {
+                socket.connect(address, timeout);
+                long latency = SystemClock.elapsedRealtime() - startTime;
+                synchronized (this) {
+                    if (winner == null && !isFinished) {
+                        winner = new Endpoint(url, address, latency);
+                    }
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                Timber.d("Could not connect to endpoint " + address + " of " + url + ": " + e.getMessage());
+            } finally {
+                closeQuietly(socket);
+                finishTask();
+            }
+        }
+
+        private synchronized void finishTask() {
+            runningCount--;
+            notifyAll();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing to do, the probe is finished
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.tvheadend.htsp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Maps the raw bytes of field names in received messages to canonical String instances.
+ * The server only uses a few hundred different field names, so after the first messages
+ * have been received every name is found in the table without allocating a new String.
+ * <p>
+ * The table is an open addressed hash table keyed on the name bytes. Lookups do not lock,
+ * new names are added under a lock until the table reaches its maximum number of entries.
+ */
+public final class HtspFieldNameTable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Must be a power of two, the table is kept at most half full
+    private static final int TABLE_SIZE = 4096;
+    private static final int MAX_ENTRIES = TABLE_SIZE / 2;
+
+    private static final Entry[] table = new Entry[TABLE_SIZE];
+    private static int entryCount = 0;
+
+    // Only used for statistics, the hits are counted without synchronization because every
+    // decoded field is looked up. Increments from different threads may get lost.
+    private static long hitCount;
+    private static long missCount;
+
+    private static final class Entry {
+        final int hash;
+        final byte[] name;
+        final String value;
+
+        Entry(int hash, byte[] name, String value) {
+            this.hash = hash;
+            this.name = name;
+            this.value = value;
+        }
+    }
+
+    private HtspFieldNameTable() {
+        throw new IllegalAccessError("Utility class");
+    }
+
+    /**
+     * Returns the canonical string for the name that is stored
+     * in the given number of bytes starting at the absolute offset
+     */
+    static String intern(ByteBuffer buf, int offset, int length) {
+        int hash = hash(buf, offset, length);
+        int index = hash & (TABLE_SIZE - 1);
+
+        Entry entry;
+        while ((entry = table[index]) != null) {
+            if (entry.hash == hash && matches(entry.name, buf, offset, length)) {
+                hitCount++;
+                return entry.value;
+            }
+            index = (index + 1) & (TABLE_SIZE - 1);
+        }
+
+        return insert(buf, offset, length, hash);
+    }
+
+    private static synchronized String insert(ByteBuffer buf, int offset, int length, int hash) {
+        missCount++;
+        // Another thread could have added the name in the meantime
+        int index = hash & (TABLE_SIZE - 1);
+        Entry entry;
+        while ((entry = table[index]) != null) {
+            if (entry.hash == hash && matches(entry.name, buf, offset, length)) {
+                return entry.value;
+            }
+            index = (index + 1) & (TABLE_SIZE - 1);
+        }
+
+        byte[] name = new byte[length];
+        for (int i = 0; i < length; i++) {
+            name[i] = buf.get(offset + i);
+        }
+        String value = new String(name, UTF_8);
+
+        // When the table is full the name is still returned, it is just not cached
+        if (entryCount < MAX_ENTRIES) {
+            table[index] = new Entry(hash, name, value);
+            entryCount++;
+        }
+        return value;
+    }
+
+    // FNV-1a hash of the name bytes
+    private static int hash(ByteBuffer buf, int offset, int length) {
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < length; i++) {
+            hash ^= buf.get(offset + i) & 0xFF;
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+    private static boolean matches(byte[] name, ByteBuffer buf, int offset, int length) {
+        if (name.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (name[i] != buf.get(offset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns about how many field names were found in the table since the application was started
+     */
+    public static long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns how many field names were not yet in the table and had to be decoded
+     */
+    public static synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns how many different field names are stored in the table
+     */
+    public static synchronized int getEntryCount() {
+        return entryCount;
+    }
+}
@@ -0,0 +1,26 @@
+package org.tvheadend.htsp;
+
+import java.util.List;
+
+/**
+ * Access to the fields of a received message by their name. It is implemented by the
+ * {@link HtspMessage} and the {@link HtspRecord}, so that both can be converted by the same code.
+ */
+public interface HtspFields {
+
+    boolean containsKey(Object key);
+
+    String getString(String key);
+
+    String getString(String key, String fallback);
+
+    int getInteger(String key);
+
+    int getInteger(String key, int fallback);
+
+    long getLong(String key);
+
+    long getLong(String key, long fallback);
+
+    List<Integer> getIntegerList(String key);
+}
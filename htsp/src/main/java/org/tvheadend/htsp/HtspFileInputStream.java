@@ -1,99 +1,141 @@
 package org.tvheadend.htsp;
 
-import androidx.annotation.NonNull;
+import android.os.SystemClock;
 
-import org.jetbrains.annotations.NotNull;
+import androidx.annotation.NonNull;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 
 import timber.log.Timber;
 
+/**
+ * Reads a file from the server. Several fileRead requests are kept in flight ahead of the
+ * current position, so that the throughput is not limited to one chunk per round trip.
+ * The size of the chunks follows the measured throughput and round trip time, so that the
+ * requests in flight cover about twice the bandwidth delay product of the connection.
+ */
 public class HtspFileInputStream extends InputStream {
+
+    private static final long REQUEST_TIMEOUT = 30000;
+    private static final int READ_AHEAD_REQUESTS = 4;
+    private static final int MIN_CHUNK_SIZE = 64 * 1024;
+    private static final int INITIAL_CHUNK_SIZE = 256 * 1024;
+    // Keeps all requests of a stream within the default request window of the connection
+    private static final int MAX_CHUNK_SIZE = 1024 * 1024;
+    private static final int CHUNK_SIZE_STEP = 16 * 1024;
+    private static final byte[] EMPTY_BUFFER = new byte[0];
+
     private final HtspConnection connection;
     private final String path;
+    private final HtspConnection.Priority priority;
 
-    private long fileId;
+    private volatile long fileId;
     private long fileSize;
+    private long modificationTime;
 
     private byte[] buf;
     private int bufPos;
-    private long offset;
+    private long position;
+    private long nextRequestOffset;
+    private boolean isEndOfFile;
+    private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+
+    private int chunkSize = INITIAL_CHUNK_SIZE;
+    private double throughput;
+    private long lastCompleteTime;
+    private long minLatency = Long.MAX_VALUE;
+
+    private final long openTime;
+    private long readByteCount;
+    private long stallCount;
+    private long stallTime;
+    private long seekCount;
+
+    /**
+     * A fileRead request that is in flight or whose response was not yet consumed
+     */
+    private static final class Chunk implements HtspResponseFuture.Callback {
+        final long offset;
+        final int size;
+        final long sendTime = SystemClock.elapsedRealtime();
+        final HtspResponseFuture future;
+        volatile long completeTime;
+
+        Chunk(long offset, int size, HtspResponseFuture future) {
+            this.offset = offset;
+            this.size = size;
+            this.future = future;
+        }
+
+        @Override
+        public void onComplete(@NonNull HtspResponseFuture future) {
+            completeTime = SystemClock.elapsedRealtime();
+        }
+    }
 
     public HtspFileInputStream(HtspConnection conn, String path)
             throws IOException {
+        this(conn, path, HtspConnection.Priority.BACKGROUND_FILE);
+    }
+
+    /**
+     * @param priority The priority of the file requests, for example to read a recording
+     *                 that is played back before the files of background tasks
+     */
+    public HtspFileInputStream(HtspConnection conn, String path, HtspConnection.Priority priority)
+            throws IOException {
         this.connection = conn;
         this.path = path;
+        this.priority = priority;
 
         this.fileId = -1;
         this.fileSize = -1;
+        this.buf = EMPTY_BUFFER;
+        this.openTime = SystemClock.elapsedRealtime();
 
-        this.reset();
         this.open();
     }
 
+    /**
+     * Returns the number of bytes that can be read without waiting for the server
+     */
     public int available() {
-        return this.buf.length;
+        return buf.length - bufPos;
     }
 
     public boolean markSupported() {
         return false;
     }
 
+    /**
+     * Starts reading from the beginning of the file again
+     */
     public void reset() {
-        buf = new byte[0];
+        cancelChunks();
+        buf = EMPTY_BUFFER;
         bufPos = 0;
-        offset = 0;
-    }
-
-    class FileOpenResponse implements HtspResponseListener {
-        int id;
-        long size;
-        long mtime;
-
-        @Override
-        public void handleResponse(@NotNull HtspMessage response) {
-            id = response.getInteger("id", 0);
-            size = response.getLong("size", 0);
-            mtime = response.getLong("mtime", 0);
-            notifyAll();
-        }
-    }
-
-    class FileReadResponse implements HtspResponseListener {
-        byte[] data;
-
-        @Override
-        public void handleResponse(@NotNull HtspMessage response) {
-            data = response.getByteArray("data");
-            notifyAll();
-        }
-    }
-
-    class FileCloseResponse implements HtspResponseListener {
-
-        @Override
-        public void handleResponse(@NotNull HtspMessage response) {
-            notifyAll();
-        }
+        position = 0;
+        nextRequestOffset = 0;
+        isEndOfFile = false;
     }
 
     private void open() throws IOException {
         HtspMessage request = new HtspMessage();
-        FileOpenResponse response = new FileOpenResponse();
-
         request.setMethod("fileOpen");
         request.put("file", path);
 
-        synchronized (response) {
-            try {
-                connection.sendMessage(request, response);
-                response.wait();
-                fileId = response.id;
-                fileSize = response.size;
-            } catch (Throwable e) {
-                Timber.e(e, "Timeout waiting for fileOpen");
-            }
+        try {
+            HtspMessage response = connection.request(request, REQUEST_TIMEOUT, priority).get();
+            fileId = response.getInteger("id", 0);
+            fileSize = response.getLong("size", 0);
+            modificationTime = response.getLong("mtime", 0);
+        } catch (ExecutionException | InterruptedException e) {
+            Timber.e(e, "Timeout waiting for fileOpen");
         }
 
         if (fileId < 0) {
@@ -103,73 +145,309 @@ public class HtspFileInputStream extends InputStream {
         }
     }
 
+    /**
+     * Closes the file without waiting for the server. It may be called from another thread
+     * to abort reading, the read that waits for data fails then with an IOException.
+     */
     public void close() {
-        HtspMessage request = new HtspMessage();
-        FileCloseResponse response = new FileCloseResponse();
+        if (fileId < 0) {
+            return;
+        }
+        cancelChunks();
+        long duration = SystemClock.elapsedRealtime() - openTime;
+        Timber.d("Closing file " + path + ", read " + readByteCount + " bytes in " + duration + " ms with "
+                + getBytesPerSecond() + " bytes/s, stalled " + stallCount + " times for " + stallTime + " ms, "
+                + seekCount + " seeks, last chunk size " + chunkSize);
 
+        HtspMessage request = new HtspMessage();
         request.setMethod("fileClose");
         request.put("id", fileId);
+        connection.sendMessage(request, null, priority);
+        fileId = -1;
+        fileSize = -1;
+    }
 
-        synchronized (response) {
-            try {
-                connection.sendMessage(request, response);
-                response.wait();
-                fileId = -1;
-                fileSize = -1;
-            } catch (Throwable e) {
-                Timber.e(e, "Timeout waiting for fileClose");
-            }
+    public int read(@NonNull byte[] outBuf, int outOffset, int outLength) throws IOException {
+        if (outLength == 0) {
+            return 0;
+        }
+        if (!fillBuffer()) {
+            return -1;
         }
-    }
 
-    public int read(@NonNull byte[] outBuf, int outOffset, int outLength) {
-        fillBuffer();
+        int ret = Math.min(buf.length - bufPos, outLength);
+        System.arraycopy(buf, bufPos, outBuf, outOffset, ret);
+        bufPos += ret;
+        position += ret;
+        readByteCount += ret;
+        return ret;
+    }
 
-        int ret = Math.min(buf.length - bufPos, outLength - outOffset);
-        if(ret > 0) {
-            System.arraycopy(buf, bufPos, outBuf, outOffset, ret);
-            bufPos += ret;
-            return ret;
+    @Override
+    public int read() throws IOException {
+        if (!fillBuffer()) {
+            return -1;
         }
 
-        return -1;
+        position++;
+        readByteCount++;
+        return buf[bufPos++] & 0xff;
     }
 
+    /**
+     * Skips within the received data or the requests in flight if possible. Otherwise the
+     * requests in flight are discarded and the next request reads from the new position.
+     * The position is not moved beyond the end of the file.
+     */
     @Override
-    public int read() {
-        fillBuffer();
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        long target = position + n;
+        if (fileSize > 0 && target > fileSize) {
+            target = Math.max(position, fileSize);
+        }
+        long skipped = target - position;
+
+        if (skipped <= buf.length - bufPos) {
+            bufPos += skipped;
+            position = target;
+            return skipped;
+        }
+
+        buf = EMPTY_BUFFER;
+        bufPos = 0;
+        boolean isTargetRequested;
+        synchronized (chunks) {
+            while (!chunks.isEmpty() && chunks.peek().offset + chunks.peek().size <= target) {
+                chunks.poll().future.cancel(true);
+            }
+            isTargetRequested = !chunks.isEmpty();
+        }
+        if (!isTargetRequested) {
+            moveRequestOffset(target);
+        }
+        position = target;
+        return skipped;
+    }
 
-        if (bufPos < buf.length) {
-            return buf[bufPos++] & 0xff;
+    /**
+     * Moves to the given position in the file. Data that was already received or requested
+     * for the new position is kept, otherwise the next request reads from the new position.
+     */
+    public void seek(long newPosition) throws IOException {
+        if (newPosition >= position) {
+            skip(newPosition - position);
+        } else if (position - newPosition <= bufPos) {
+            bufPos -= (int) (position - newPosition);
+            position = newPosition;
+        } else {
+            cancelChunks();
+            buf = EMPTY_BUFFER;
+            bufPos = 0;
+            moveRequestOffset(newPosition);
+            position = newPosition;
         }
+    }
 
-        return -1;
+    /**
+     * Every fileRead request contains its offset, so the server does not need to seek
+     */
+    private void moveRequestOffset(long offset) {
+        seekCount++;
+        nextRequestOffset = offset;
+        isEndOfFile = false;
     }
 
-    private void fillBuffer() {
-        if(bufPos < buf.length) {
-            return;
+    /**
+     * Makes sure that the buffer contains data at the current position
+     *
+     * @return False if the end of the file was reached
+     */
+    private boolean fillBuffer() throws IOException {
+        while (bufPos >= buf.length) {
+            if (isEndOfFile) {
+                return false;
+            }
+            requestChunks();
+            Chunk chunk;
+            synchronized (chunks) {
+                chunk = chunks.poll();
+            }
+            if (chunk == null) {
+                throw new IOException("File " + path + " was closed");
+            }
+            byte[] data = waitForData(chunk);
+
+            if (data.length < chunk.size) {
+                // The file ended or the server returned less, the requests ahead do not continue the data
+                cancelChunks();
+                nextRequestOffset = Math.max(position, chunk.offset + data.length);
+                isEndOfFile = data.length == 0;
+            }
+            buf = data;
+            bufPos = (int) Math.min(data.length, position - chunk.offset);
         }
+        return true;
+    }
 
-        HtspMessage request = new HtspMessage();
-        FileReadResponse response = new FileReadResponse();
+    /**
+     * Sends fileRead requests until the read ahead window is full. Beyond the known
+     * size of the file only a single request is sent, in case the file has grown.
+     */
+    private void requestChunks() throws IOException {
+        while (chunks.size() < READ_AHEAD_REQUESTS) {
+            if (fileId < 0) {
+                throw new IOException("File " + path + " was closed");
+            }
+            if (fileSize > 0 && nextRequestOffset >= fileSize && !chunks.isEmpty()) {
+                return;
+            }
+            int size = chunkSize;
+            if (fileSize > 0 && nextRequestOffset < fileSize) {
+                size = (int) Math.min(size, fileSize - nextRequestOffset);
+            }
 
-        request.setMethod("fileRead");
-        request.put("id", fileId);
-        request.put("size", Math.min(fileSize, 1024 * 1024 * 8));
-        request.put("offset", offset);
+            HtspMessage request = new HtspMessage();
+            request.setMethod("fileRead");
+            request.put("id", fileId);
+            request.put("size", size);
+            request.put("offset", nextRequestOffset);
 
-        synchronized (response) {
             try {
-                connection.sendMessage(request, response);
-                response.wait();
-
-                offset += buf.length;
-                buf = response.data;
-                bufPos = 0;
-            } catch (Throwable e) {
-                Timber.e(e, "Timeout waiting for fileRead");
+                // Many files may be read at the same time, e.g. when all channel icons are loaded
+                HtspResponseFuture future = connection.requestInWindow(request, REQUEST_TIMEOUT, size, priority);
+                Chunk chunk = new Chunk(nextRequestOffset, size, future);
+                future.setCallback(chunk);
+                synchronized (chunks) {
+                    chunks.add(chunk);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while requesting file data");
             }
+            nextRequestOffset += size;
+        }
+    }
+
+    private byte[] waitForData(Chunk chunk) throws IOException {
+        boolean stalled = !chunk.future.isDone();
+        long start = SystemClock.elapsedRealtime();
+        HtspMessage response;
+        try {
+            response = chunk.future.get();
+        } catch (ExecutionException e) {
+            cancelChunks();
+            throw new IOException("Failed to read file at offset " + chunk.offset, e.getCause());
+        } catch (CancellationException e) {
+            cancelChunks();
+            throw new IOException("Reading file at offset " + chunk.offset + " was cancelled");
+        } catch (InterruptedException e) {
+            cancelChunks();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading file at offset " + chunk.offset);
+        }
+        if (stalled) {
+            stallCount++;
+            stallTime += SystemClock.elapsedRealtime() - start;
+        }
+
+        byte[] data = response.getByteArray("data");
+        if (data == null) {
+            cancelChunks();
+            throw new IOException("Error reading file at offset " + chunk.offset + ": " + response.getString("error"));
         }
+        updateChunkSize(chunk, data.length, stalled);
+        return data;
+    }
+
+    /**
+     * Adapts the chunk size to the throughput and the round trip time. The chunk size grows
+     * at once when the reader had to wait for data and shrinks slowly otherwise.
+     */
+    private void updateChunkSize(Chunk chunk, int length, boolean stalled) {
+        long completeTime = chunk.completeTime > 0 ? chunk.completeTime : SystemClock.elapsedRealtime();
+        long latency = completeTime - chunk.sendTime;
+        minLatency = Math.min(minLatency, Math.max(1, latency));
+
+        // The chunk was transferred after the previous one or after it was sent, whatever was later
+        long transferTime = Math.max(1, completeTime - Math.max(chunk.sendTime, lastCompleteTime));
+        lastCompleteTime = completeTime;
+        double sample = (double) length / transferTime;
+        throughput = throughput > 0 ? (7 * throughput + sample) / 8 : sample;
+
+        long rtt = connection.getRoundTripTime() > 0 ? connection.getRoundTripTime() : minLatency;
+        long target = (long) (2 * throughput * rtt / (READ_AHEAD_REQUESTS - 1));
+        if (stalled) {
+            target = Math.max(target, 2L * chunkSize);
+        } else if (target < chunkSize) {
+            target = Math.max(target, chunkSize - chunkSize / 4);
+        }
+        target = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, target));
+        chunkSize = (int) (target / CHUNK_SIZE_STEP * CHUNK_SIZE_STEP);
+    }
+
+    private void cancelChunks() {
+        synchronized (chunks) {
+            Chunk chunk;
+            while ((chunk = chunks.poll()) != null) {
+                chunk.future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Returns the size of the file when it was opened, or zero if the server did not know it
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * Returns the modification time of the file in seconds since the epoch, or zero if unknown
+     */
+    public long getModificationTime() {
+        return modificationTime;
+    }
+
+    /**
+     * Returns the offset in the file of the next byte that is read
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns the number of bytes that were read per second since the file was opened
+     */
+    public long getBytesPerSecond() {
+        long duration = SystemClock.elapsedRealtime() - openTime;
+        return duration > 0 ? readByteCount * 1000 / duration : 0;
+    }
+
+    /**
+     * Returns the estimated throughput of the connection in bytes per second
+     */
+    public long getThroughput() {
+        return (long) (throughput * 1000);
+    }
+
+    /**
+     * Returns how often reading had to wait for a response of the server
+     */
+    public long getStallCount() {
+        return stallCount;
+    }
+
+    /**
+     * Returns the time in milliseconds reading had to wait for responses of the server
+     */
+    public long getStallTime() {
+        return stallTime;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
     }
 }
@@ -1,26 +1,35 @@
 package org.tvheadend.htsp;
 
 import java.io.IOException;
-import java.math.BigInteger;
+import java.io.ObjectStreamException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
-public class HtspMessage extends HashMap<String, Object> {
+public class HtspMessage extends HashMap<String, Object> implements HtspFields {
 
     private static final long serialVersionUID = 1L;
 
     static final long HTSP_VERSION = 32;
-    private static final byte HMF_MAP = 1;
-    private static final byte HMF_S64 = 2;
-    private static final byte HMF_STR = 3;
-    private static final byte HMF_BIN = 4;
-    private static final byte HMF_LIST = 5;
-    private ByteBuffer buf;
+    static final byte HMF_MAP = 1;
+    static final byte HMF_S64 = 2;
+    static final byte HMF_STR = 3;
+    static final byte HMF_BIN = 4;
+    static final byte HMF_LIST = 5;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final ThreadLocal<byte[]> scratchBytes = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[256];
+        }
+    };
+
+    // Set if any value is still a placeholder of a lazily decoded map or list
+    private transient volatile boolean hasLazyValues;
 
     public void setMethod(String name) {
         put("method", name);
@@ -59,8 +68,8 @@ public class HtspMessage extends HashMap<String, Object> {
         if (obj == null) {
             throw new RuntimeException("Attempted to getInteger(" + key + ") on non-existent key");
         }
-        if (obj instanceof BigInteger) {
-            return ((BigInteger) obj).intValue();
+        if (obj instanceof Number) {
+            return ((Number) obj).intValue();
         }
 
         return (int) obj;
@@ -80,8 +89,8 @@ public class HtspMessage extends HashMap<String, Object> {
             throw new RuntimeException("Attempted to getLong(" + key + ") on non-existent key");
         }
 
-        if (obj instanceof BigInteger) {
-            return ((BigInteger) obj).longValue();
+        if (obj instanceof Number) {
+            return ((Number) obj).longValue();
         }
 
         return (long) obj;
@@ -109,8 +118,8 @@ public class HtspMessage extends HashMap<String, Object> {
             return list;
         }
         for (Object obj : getList(name)) {
-            if (obj instanceof BigInteger) {
-                list.add(((BigInteger) obj).intValue());
+            if (obj instanceof Number) {
+                list.add(((Number) obj).intValue());
             }
         }
         return list;
@@ -128,48 +137,24 @@ public class HtspMessage extends HashMap<String, Object> {
         return (byte[]) value;
     }
 
-    void transmit(SocketChannel ch) throws IOException {
-        if (buf == null) {
-            byte[] data = serializeBinary(this);
-            int len = data.length;
-            buf = ByteBuffer.allocateDirect(len + 4);
-
-            buf.put((byte) ((len >> 24) & 0xFF));
-            buf.put((byte) ((len >> 16) & 0xFF));
-            buf.put((byte) ((len >> 8) & 0xFF));
-            buf.put((byte) ((len) & 0xFF));
-            buf.put(data);
-            buf.flip();
-        }
-
-        if (ch.write(buf) < 0) {
-            throw new IOException("Server went down");
-        }
-
-        if (!buf.hasRemaining()) {
-            buf.flip();
-        }
+    /**
+     * Returns the number of bytes that are required to store the given value as a S64 field.
+     * The value is stored in little endian order without any trailing zero bytes, so zero
+     * requires no bytes at all and negative values always require all eight bytes.
+     */
+    static int getS64Length(long value) {
+        return (Long.SIZE - Long.numberOfLeadingZeros(value) + 7) / 8;
     }
 
-    private static byte[] toByteArray(BigInteger big) {
-        byte[] b = big.toByteArray();
-        byte b1[] = new byte[b.length];
-
-        for (int i = 0; i < b.length; i++) {
-            b1[i] = b[b.length - 1 - i];
+    static long decodeS64(ByteBuffer buf, int offset, int length) throws IOException {
+        if (length > 8) {
+            throw new IOException("S64 value is too long, length " + length);
         }
-
-        return b1;
-    }
-
-    private static BigInteger toBigInteger(byte b[]) {
-        byte b1[] = new byte[b.length + 1];
-
-        for (int i = 0; i < b.length; i++) {
-            b1[i + 1] = b[b.length - 1 - i];
+        long value = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            value = (value << 8) | (buf.get(offset + i) & 0xFF);
         }
-
-        return new BigInteger(b1);
+        return value;
     }
 
     private static long uIntToLong(byte b1, byte b2, byte b3, byte b4) {
@@ -185,11 +170,117 @@ public class HtspMessage extends HashMap<String, Object> {
         return i;
     }
 
+    @Override
+    public Object get(Object key) {
+        return resolve(super.get(key));
+    }
+
+    /*
+     * All other methods that return values decode the placeholders of lazily parsed maps
+     * and lists first, so that they never leave the message. The default methods of Map
+     * that were added in API level 24, like getOrDefault or compute, are not available
+     * on all supported devices and must not be used on messages.
+     */
+
+    @Override
+    public Object put(String key, Object value) {
+        return resolve(super.put(key, value));
+    }
+
+    @Override
+    public Object remove(Object key) {
+        return resolve(super.remove(key));
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        resolveAll();
+        return super.containsValue(value);
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        resolveAll();
+        return super.entrySet();
+    }
+
+    @Override
+    public Collection<Object> values() {
+        resolveAll();
+        return super.values();
+    }
+
+    /**
+     * Replaces the placeholders of all lazily parsed maps and lists by their decoded values.
+     * Only existing entries are changed, so readers on other threads see either the
+     * placeholder, which they resolve themselves, or the decoded value.
+     */
+    private void resolveAll() {
+        if (!hasLazyValues) {
+            return;
+        }
+        for (Entry<String, Object> entry : super.entrySet()) {
+            if (entry.getValue() instanceof LazyValue) {
+                entry.setValue(((LazyValue) entry.getValue()).getValue());
+            }
+        }
+        hasLazyValues = false;
+    }
+
+    /**
+     * Nested maps and lists of lazily parsed messages are replaced by their decoded
+     * values so that the serialized message does not depend on the received bytes.
+     */
+    protected Object writeReplace() throws ObjectStreamException {
+        resolveAll();
+        return this;
+    }
+
+    /**
+     * Returns the decoded value in case the given value is a placeholder of a lazily parsed message
+     */
+    static Object resolve(Object value) {
+        if (value instanceof LazyValue) {
+            return ((LazyValue) value).getValue();
+        }
+        return value;
+    }
+
     public static HtspMessage parse(ByteBuffer buf) throws IOException {
+        return parse(buf, false);
+    }
+
+    /**
+     * Parses the message in the buffer once it has been received completely. In lazy mode
+     * nested maps and lists are only decoded when they are accessed for the first time.
+     * Their bytes are taken from a single copy of the received message, which is only made
+     * if the message contains any maps or lists. All other values are decoded right away.
+     */
+    public static HtspMessage parse(ByteBuffer buf, boolean lazy) throws IOException {
+        int limit = getMessageLimit(buf);
+        if (limit < 0) {
+            return null;
+        }
+
+        buf.flip();
+        HtspMessage msg = parse(buf, 4, limit - 4, lazy);
+
+        buf.limit(4);
+        buf.position(0);
+        return msg;
+    }
+
+    /**
+     * Checks if the buffer that is being filled contains a complete message.
+     * The limit of the buffer is set to the end of the message once its length is known.
+     *
+     * @return The absolute offset where the message ends or -1 if it was not fully read yet
+     */
+    private static int getMessageLimit(ByteBuffer buf) throws IOException {
         long len;
 
         if (buf.position() < 4) {
-            return null;
+            return -1;
         }
 
         len = uIntToLong(buf.get(0), buf.get(1), buf.get(2), buf.get(3));
@@ -204,167 +295,259 @@ public class HtspMessage extends HashMap<String, Object> {
 
         // Message not yet fully read
         if (buf.position() < len + 4) {
-            return null;
+            return -1;
         }
-
-        buf.flip();
-        buf.getInt(); // drops 4 bytes
-        HtspMessage msg = deserializeBinary(buf);
-
-        buf.limit(4);
-        buf.position(0);
-        return msg;
+        return (int) (4 + len);
     }
 
-    @SuppressWarnings("unchecked")
-    private static byte[] serializeBinary(String name, Object value) throws IOException {
-        byte[] bName = name.getBytes();
-        byte[] bData;
-        byte type;
-
-        if (value instanceof String) {
-            type = HtspMessage.HMF_STR;
-            bData = ((String) value).getBytes();
-        } else if (value instanceof BigInteger) {
-            type = HtspMessage.HMF_S64;
-            bData = toByteArray((BigInteger) value);
-        } else if (value instanceof Integer) {
-            type = HtspMessage.HMF_S64;
-            bData = toByteArray(BigInteger.valueOf((Integer) value));
-        } else if (value instanceof Long) {
-            type = HtspMessage.HMF_S64;
-            bData = toByteArray(BigInteger.valueOf((Long) value));
-        } else if (value instanceof byte[]) {
-            type = HtspMessage.HMF_BIN;
-            bData = (byte[]) value;
-        } else if (value instanceof Map) {
-            type = HtspMessage.HMF_MAP;
-
-            bData = serializeBinary((Map<String, Object>) value);
-        } else if (value instanceof Collection) {
-            type = HtspMessage.HMF_LIST;
-            bData = serializeBinary((Collection<?>) value);
-        } else if (value == null) {
-            throw new IOException("HTSP doesn't support null values");
-        } else {
-            throw new IOException("Unhandled class for " + name + ": " + value
-                    + " (" + value.getClass().getSimpleName() + ")");
-        }
-
-        byte[] buf = new byte[1 + 1 + 4 + bName.length + bData.length];
-        buf[0] = type;
-        buf[1] = (byte) (bName.length & 0xFF);
-        buf[2] = (byte) ((bData.length >> 24) & 0xFF);
-        buf[3] = (byte) ((bData.length >> 16) & 0xFF);
-        buf[4] = (byte) ((bData.length >> 8) & 0xFF);
-        buf[5] = (byte) ((bData.length) & 0xFF);
-
-        System.arraycopy(bName, 0, buf, 6, bName.length);
-        System.arraycopy(bData, 0, buf, 6 + bName.length, bData.length);
-
-        return buf;
-    }
-
-    private static byte[] serializeBinary(Collection<?> list) throws IOException {
-        ByteBuffer buf = ByteBuffer.allocate(Short.MAX_VALUE);
-
-        for (Object value : list) {
-            byte[] sub = serializeBinary("", value);
-            buf.put(sub);
-        }
-
-        byte[] bBuf = new byte[buf.position()];
-        buf.flip();
-        buf.get(bBuf);
-
-        return bBuf;
+    /**
+     * Decodes the message body with the given length that starts at the absolute offset
+     * of the buffer, the four byte length prefix is not part of it. The position and limit
+     * of the buffer are not changed and the buffer can be reused once this method returns.
+     */
+    public static HtspMessage parse(ByteBuffer buf, int offset, int length, boolean lazy) throws IOException {
+        int limit = offset + length;
+        if (lazy && validate(buf, offset, limit)) {
+            // The buffer is reused for the next message, so the
+            // nested values are decoded from a copy of this message
+            byte[] bytes = new byte[length];
+            copyBytes(buf, offset, bytes, length);
+            return deserializeBinary(ByteBuffer.wrap(bytes), 0, length, true);
+        }
+        return deserializeBinary(buf, offset, limit, false);
     }
 
-    private static byte[] serializeBinary(Map<String, Object> map) throws IOException {
-        ByteBuffer buf = ByteBuffer.allocate(Short.MAX_VALUE);
+    /**
+     * Returns the absolute offset of the header of the first field with the given name
+     * between the offsets or -1 if there is no such field. Nothing is decoded or copied.
+     */
+    static int findField(ByteBuffer buf, int offset, int limit, byte[] name) throws IOException {
+        int position = offset;
+
+        while (position < limit) {
+            int namelen = buf.get(position + 1) & 0xFF;
+            int length = getFieldLength(buf, position, limit);
+
+            if (namelen == name.length) {
+                int i = 0;
+                while (i < namelen && buf.get(position + 6 + i) == name[i]) {
+                    i++;
+                }
+                if (i == namelen) {
+                    return position;
+                }
+            }
+            position += 6 + namelen + length;
+        }
+        return -1;
+    }
 
-        for (Object key : map.keySet()) {
-            //noinspection SuspiciousMethodCalls
-            Object value = map.get(key);
-            byte[] sub = serializeBinary(key.toString(), value);
-            buf.put(sub);
+    /**
+     * Returns the data length of the field whose header starts at the given absolute
+     * offset and checks that the header, the name and the data end before the limit.
+     */
+    static int getFieldLength(ByteBuffer buf, int position, int limit) throws IOException {
+        if (limit - position < 6) {
+            throw new IOException("Field header exceeds buffer limit, position " + position + ", limit " + limit);
         }
 
-        byte[] bBuf = new byte[buf.position()];
-        buf.flip();
-        buf.get(bBuf);
+        int namelen = buf.get(position + 1) & 0xFF;
+        long datalen = uIntToLong(buf.get(position + 2), buf.get(position + 3), buf.get(position + 4), buf.get(position + 5));
 
-        return bBuf;
+        if (datalen > Integer.MAX_VALUE) {
+            throw new IOException("Would get precision losses, datalen " + datalen + ", max int " + Integer.MAX_VALUE);
+        }
+        if (position + 6 + namelen + datalen > limit) {
+            throw new IOException("Buffer limit exceeded, limit " + limit + ", namelen " + namelen + ", datalen " + datalen);
+        }
+        return (int) datalen;
     }
 
-    private static HtspMessage deserializeBinary(ByteBuffer buf) throws IOException {
-        byte type, namelen;
-        long datalen;
+    /**
+     * Checks the structure of all fields between the given absolute offsets, including
+     * the fields of nested maps and lists, without decoding any values. Lazily decoded
+     * values can then be accessed later on without any errors.
+     *
+     * @return True if any of the fields is a map or a list
+     */
+    private static boolean validate(ByteBuffer buf, int offset, int limit) throws IOException {
+        boolean containers = false;
+        int position = offset;
+
+        while (position < limit) {
+            byte type = buf.get(position);
+            int namelen = buf.get(position + 1) & 0xFF;
+            int length = getFieldLength(buf, position, limit);
+            position += 6 + namelen;
+
+            switch (type) {
+                case HMF_STR:
+                case HMF_BIN:
+                    break;
+                case HMF_S64:
+                    if (length > 8) {
+                        throw new IOException("S64 value is too long, length " + length);
+                    }
+                    break;
+                case HMF_MAP:
+                case HMF_LIST:
+                    validate(buf, position, position + length);
+                    containers = true;
+                    break;
+                default:
+                    throw new IOException("Unknown data type " + type);
+            }
+            position += length;
+        }
+        return containers;
+    }
 
+    /**
+     * Decodes the fields that are stored between the given absolute offsets of the buffer.
+     * The buffer is only read, its position and limit are not changed. Nested maps and lists
+     * are decoded from the same buffer using their offsets, so bytes are only copied when a
+     * value like a string or a binary is actually taken out of the buffer. In lazy mode the
+     * nested maps and lists are stored as placeholders that are decoded on first access.
+     */
+    private static HtspMessage deserializeBinary(ByteBuffer buf, int offset, int limit, boolean lazy) throws IOException {
         HtspMessage msg = new HtspMessage();
         int cnt = 0;
+        int position = offset;
 
-        while (buf.hasRemaining()) {
-            type = buf.get();
-            namelen = buf.get();
-            datalen = uIntToLong(buf.get(), buf.get(), buf.get(), buf.get());
-
-            if (datalen > Integer.MAX_VALUE) {
-                throw new IOException("Would get precision losses, datalen " + datalen + ", max int " + Integer.MAX_VALUE);
-            }
-            if (buf.limit() < namelen + datalen) {
-                throw new IOException("Buffer limit exceeded, limit " + buf.limit() + ", namelen " + namelen + ", datalen " + datalen);
-            }
+        while (position < limit) {
+            byte type = buf.get(position);
+            int namelen = buf.get(position + 1) & 0xFF;
+            int length = getFieldLength(buf, position, limit);
+            position += 6;
 
             // Get the key for the map (the name)
             String name;
             if (namelen == 0) {
                 name = Integer.toString(cnt++);
-            } else if (namelen > 0) {
-                byte[] bName = new byte[namelen];
-                buf.get(bName);
-                name = new String(bName);
             } else {
-                throw new IOException("Buffer position is negative, namelen " + namelen);
+                name = HtspFieldNameTable.intern(buf, position, namelen);
+                position += namelen;
             }
 
             // Get the actual content
             Object obj;
-            byte[] bData = new byte[(int) datalen]; // Should be long?
-            buf.get(bData);
-
-            switch (type) {
-                case HtspMessage.HMF_STR: {
-                    obj = new String(bData);
-                    break;
-                }
-                case HMF_BIN: {
-                    obj = bData;
-                    break;
-                }
-                case HMF_S64: {
-                    obj = toBigInteger(bData);
-                    break;
-                }
-                case HMF_MAP: {
-                    ByteBuffer sub = ByteBuffer.allocateDirect((int) datalen);
-                    sub.put(bData);
-                    sub.flip();
-                    obj = deserializeBinary(sub);
-                    break;
-                }
-                case HMF_LIST: {
-                    ByteBuffer sub = ByteBuffer.allocateDirect((int) datalen);
-                    sub.put(bData);
-                    sub.flip();
-                    obj = new ArrayList<>(deserializeBinary(sub).values());
-                    break;
-                }
-                default:
-                    throw new IOException("Unknown data type " + type);
+            if (lazy && (type == HMF_MAP || type == HMF_LIST)) {
+                obj = new LazyValue(buf, type, position, length);
+                msg.hasLazyValues = true;
+            } else {
+                obj = deserializeValue(buf, type, position, length, lazy);
             }
+            position += length;
             msg.put(name, obj);
         }
         return msg;
     }
+
+    /**
+     * Decodes the fields of a list in their order, the names of the fields are ignored.
+     * Maps and lists within the list are decoded right away, in lazy mode their own
+     * nested maps and lists are decoded on first access.
+     */
+    private static ArrayList<Object> deserializeList(ByteBuffer buf, int offset, int limit, boolean lazy) throws IOException {
+        ArrayList<Object> list = new ArrayList<>();
+        int position = offset;
+
+        while (position < limit) {
+            byte type = buf.get(position);
+            int namelen = buf.get(position + 1) & 0xFF;
+            int length = getFieldLength(buf, position, limit);
+            position += 6 + namelen;
+
+            list.add(deserializeValue(buf, type, position, length, lazy));
+            position += length;
+        }
+        return list;
+    }
+
+    static Object deserializeValue(ByteBuffer buf, byte type, int position, int length, boolean lazy) throws IOException {
+        switch (type) {
+            case HMF_STR:
+                return decodeString(buf, position, length);
+            case HMF_BIN: {
+                byte[] bData = new byte[length];
+                copyBytes(buf, position, bData, length);
+                return bData;
+            }
+            case HMF_S64:
+                // Small values are served from the Long cache without allocating
+                return decodeS64(buf, position, length);
+            case HMF_MAP:
+                return deserializeBinary(buf, position, position + length, lazy);
+            case HMF_LIST:
+                return deserializeList(buf, position, position + length, lazy);
+            default:
+                throw new IOException("Unknown data type " + type);
+        }
+    }
+
+    /**
+     * Placeholder for a nested map or list of a lazily parsed message. The buffer contains
+     * a copy of the received message that has already been validated, the offset and length
+     * point to the data of the field. The value is decoded once and then kept.
+     */
+    private static final class LazyValue {
+        private final ByteBuffer buf;
+        private final byte type;
+        private final int offset;
+        private final int length;
+        private Object value;
+
+        LazyValue(ByteBuffer buf, byte type, int offset, int length) {
+            this.buf = buf;
+            this.type = type;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        synchronized Object getValue() {
+            if (value == null) {
+                try {
+                    value = deserializeValue(buf, type, offset, length, true);
+                } catch (IOException e) {
+                    // The message was validated when it was parsed
+                    throw new IllegalStateException("Could not decode lazy value", e);
+                }
+            }
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(getValue());
+        }
+    }
+
+    static String decodeString(ByteBuffer buf, int offset, int length) {
+        if (length == 0) {
+            return "";
+        }
+        if (buf.hasArray()) {
+            return new String(buf.array(), buf.arrayOffset() + offset, length, UTF_8);
+        }
+        // Direct buffers have no accessible array, reuse a
+        // scratch array instead of allocating one per string
+        byte[] bytes = scratchBytes.get();
+        if (bytes.length < length) {
+            bytes = new byte[Math.max(length, bytes.length * 2)];
+            scratchBytes.set(bytes);
+        }
+        copyBytes(buf, offset, bytes, length);
+        return new String(bytes, 0, length, UTF_8);
+    }
+
+    static void copyBytes(ByteBuffer buf, int offset, byte[] dst, int length) {
+        if (buf.hasArray()) {
+            System.arraycopy(buf.array(), buf.arrayOffset() + offset, dst, 0, length);
+            return;
+        }
+        int position = buf.position();
+        buf.position(offset);
+        buf.get(dst, 0, length);
+        buf.position(position);
+    }
 }
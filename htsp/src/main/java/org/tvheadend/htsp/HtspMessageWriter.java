@@ -0,0 +1,245 @@
+package org.tvheadend.htsp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Serializes messages into the HTSP binary format. The encoded size of the message and
+ * of every nested map and list is computed in a first pass, afterwards the fields are
+ * written straight into a direct buffer that is reused for all messages of a connection.
+ * Maps and lists have no size limit other than the maximum length of a single message.
+ * Several messages can be appended to the buffer so that they are sent with one write.
+ */
+final class HtspMessageWriter {
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
+
+    // Body lengths of the nested maps and lists in the order they are visited
+    private int[] containerLengths = new int[32];
+    private int containerCount;
+    private int containerIndex;
+
+    /**
+     * Encodes the given message including its four byte length prefix. The returned buffer
+     * is ready to be written to the channel and stays valid until this method is called again.
+     */
+    ByteBuffer write(HtspMessage message) throws IOException {
+        clear();
+        append(message);
+        return flip();
+    }
+
+    /**
+     * Removes all messages that were appended to the buffer
+     */
+    void clear() {
+        buffer.clear();
+    }
+
+    /**
+     * Encodes the given message including its four byte length prefix behind the messages
+     * that were already appended. Nothing is added to the buffer if the message can't be encoded.
+     */
+    void append(HtspMessage message) throws IOException {
+        containerCount = 0;
+        long length = measureBody(message);
+        if (length > Integer.MAX_VALUE - 4 - buffer.position()) {
+            throw new IOException("Message is too long, length " + length);
+        }
+
+        ensureCapacity(buffer.position() + 4 + (int) length);
+        buffer.putInt((int) length);
+
+        containerIndex = 0;
+        writeBody(message);
+    }
+
+    /**
+     * Returns the number of bytes of all appended messages
+     */
+    int size() {
+        return buffer.position();
+    }
+
+    /**
+     * Returns the buffer with the appended messages, ready to be written to the channel.
+     * It stays valid until the writer is cleared or another message is appended.
+     */
+    ByteBuffer flip() {
+        buffer.flip();
+        return buffer;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (buffer.capacity() < capacity) {
+            ByteBuffer newBuffer = ByteBuffer.allocateDirect(Math.max(capacity, buffer.capacity() * 2));
+            buffer.flip();
+            newBuffer.put(buffer);
+            buffer = newBuffer;
+        }
+    }
+
+    private long measureBody(Map<?, ?> map) throws IOException {
+        long length = 0;
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            length += measureField(entry.getKey().toString(), HtspMessage.resolve(entry.getValue()));
+        }
+        return length;
+    }
+
+    private long measureBody(Collection<?> list) throws IOException {
+        long length = 0;
+        for (Object value : list) {
+            length += measureField("", value);
+        }
+        return length;
+    }
+
+    private long measureField(String name, Object value) throws IOException {
+        int nameLength = getUtf8Length(name);
+        if (nameLength > 0xFF) {
+            throw new IOException("Field name " + name + " is too long, length " + nameLength);
+        }
+
+        long dataLength;
+        if (value instanceof String) {
+            dataLength = getUtf8Length((String) value);
+        } else if (value instanceof Integer || value instanceof Long) {
+            dataLength = HtspMessage.getS64Length(((Number) value).longValue());
+        } else if (value instanceof byte[]) {
+            dataLength = ((byte[]) value).length;
+        } else if (value instanceof Map) {
+            int index = reserveContainerLength();
+            dataLength = measureBody((Map<?, ?>) value);
+            containerLengths[index] = checkContainerLength(name, dataLength);
+        } else if (value instanceof Collection) {
+            int index = reserveContainerLength();
+            dataLength = measureBody((Collection<?>) value);
+            containerLengths[index] = checkContainerLength(name, dataLength);
+        } else if (value == null) {
+            throw new IOException("HTSP doesn't support null values");
+        } else {
+            throw new IOException("Unhandled class for " + name + ": " + value
+                    + " (" + value.getClass().getSimpleName() + ")");
+        }
+        return 1 + 1 + 4 + nameLength + dataLength;
+    }
+
+    private int reserveContainerLength() {
+        if (containerCount == containerLengths.length) {
+            int[] lengths = new int[containerLengths.length * 2];
+            System.arraycopy(containerLengths, 0, lengths, 0, containerCount);
+            containerLengths = lengths;
+        }
+        return containerCount++;
+    }
+
+    private static int checkContainerLength(String name, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Field " + name + " is too long, length " + length);
+        }
+        return (int) length;
+    }
+
+    private void writeBody(Map<?, ?> map) {
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            writeField(entry.getKey().toString(), HtspMessage.resolve(entry.getValue()));
+        }
+    }
+
+    private void writeBody(Collection<?> list) {
+        for (Object value : list) {
+            writeField("", value);
+        }
+    }
+
+    // The types have already been checked while measuring the message
+    private void writeField(String name, Object value) {
+        if (value instanceof String) {
+            String string = (String) value;
+            writeHeader(HtspMessage.HMF_STR, name, getUtf8Length(string));
+            putUtf8(string);
+        } else if (value instanceof Integer || value instanceof Long) {
+            long s64 = ((Number) value).longValue();
+            int length = HtspMessage.getS64Length(s64);
+            writeHeader(HtspMessage.HMF_S64, name, length);
+            for (int i = 0; i < length; i++) {
+                buffer.put((byte) s64);
+                s64 >>>= 8;
+            }
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            writeHeader(HtspMessage.HMF_BIN, name, bytes.length);
+            buffer.put(bytes);
+        } else if (value instanceof Map) {
+            writeHeader(HtspMessage.HMF_MAP, name, containerLengths[containerIndex++]);
+            writeBody((Map<?, ?>) value);
+        } else {
+            writeHeader(HtspMessage.HMF_LIST, name, containerLengths[containerIndex++]);
+            writeBody((Collection<?>) value);
+        }
+    }
+
+    private void writeHeader(byte type, String name, int dataLength) {
+        buffer.put(type);
+        buffer.put((byte) getUtf8Length(name));
+        buffer.putInt(dataLength);
+        putUtf8(name);
+    }
+
+    /**
+     * Returns the number of bytes of the UTF-8 representation of the string.
+     * Unpaired surrogates are replaced by a question mark like String.getBytes() does.
+     */
+    private static int getUtf8Length(String string) {
+        int length = 0;
+        for (int i = 0, n = string.length(); i < n; i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(string.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                } else {
+                    length++;
+                }
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private void putUtf8(String string) {
+        for (int i = 0, n = string.length(); i < n; i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(string.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                    buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                    buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                    buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                    buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+                } else {
+                    buffer.put((byte) '?');
+                }
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
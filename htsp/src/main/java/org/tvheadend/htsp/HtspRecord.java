@@ -0,0 +1,210 @@
+package org.tvheadend.htsp;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Typed view of a received message whose fields are described by a {@link HtspSchema}.
+ * The message is decoded in a single pass, numeric fields are stored as primitives
+ * and all other values by reference, each in the slot that the schema assigned to it.
+ * Fields that are not part of the schema are skipped without being decoded.
+ * The fields can also be accessed by their name, which requires a lookup of the slot.
+ */
+public final class HtspRecord implements HtspFields {
+
+    private final HtspSchema schema;
+    private final String method;
+    private final long[] values;
+    private final Object[] refs;
+    private long presentFields;
+
+    private HtspRecord(HtspSchema schema, String method) {
+        this.schema = schema;
+        this.method = method;
+        this.values = new long[schema.getFieldCount()];
+        this.refs = new Object[schema.getFieldCount()];
+    }
+
+    @NonNull
+    public String getMethod() {
+        return method;
+    }
+
+    @NonNull
+    public HtspSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * Returns true if the message contained the field of the given slot
+     */
+    public boolean has(int slot) {
+        return (presentFields & (1L << slot)) != 0;
+    }
+
+    /**
+     * Returns the numeric value of the given slot or zero
+     * if the field was missing or did not contain a number
+     */
+    public long getLong(int slot) {
+        return values[slot];
+    }
+
+    public long getLong(int slot, long fallback) {
+        return has(slot) ? values[slot] : fallback;
+    }
+
+    public int getInteger(int slot) {
+        return (int) values[slot];
+    }
+
+    public int getInteger(int slot, int fallback) {
+        return has(slot) ? (int) values[slot] : fallback;
+    }
+
+    public boolean getBoolean(int slot, boolean fallback) {
+        return has(slot) ? values[slot] == 1 : fallback;
+    }
+
+    public String getString(int slot) {
+        Object obj = refs[slot];
+        if (obj == null) {
+            return has(slot) ? Long.toString(values[slot]) : null;
+        }
+        return obj.toString();
+    }
+
+    public String getString(int slot, String fallback) {
+        return has(slot) ? getString(slot) : fallback;
+    }
+
+    public byte[] getByteArray(int slot) {
+        return (byte[]) refs[slot];
+    }
+
+    public List<?> getList(int slot) {
+        return (List<?>) refs[slot];
+    }
+
+    public List<Integer> getIntegerList(int slot) {
+        ArrayList<Integer> list = new ArrayList<>();
+        if (!(refs[slot] instanceof List)) {
+            return list;
+        }
+        for (Object obj : (List<?>) refs[slot]) {
+            if (obj instanceof Number) {
+                list.add(((Number) obj).intValue());
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Decodes the fields of the message between the given absolute offsets of the buffer
+     * into a new record. The buffer is only read, its position and limit are not changed.
+     */
+    static HtspRecord deserialize(HtspSchema schema, String method, ByteBuffer buf, int offset, int limit) throws IOException {
+        HtspRecord record = new HtspRecord(schema, method);
+        int position = offset;
+
+        while (position < limit) {
+            byte type = buf.get(position);
+            int namelen = buf.get(position + 1) & 0xFF;
+            int length = HtspMessage.getFieldLength(buf, position, limit);
+            position += 6;
+
+            int slot = -1;
+            if (namelen > 0) {
+                slot = schema.getSlot(HtspFieldNameTable.intern(buf, position, namelen));
+                position += namelen;
+            }
+
+            if (slot >= 0) {
+                if (type == HtspMessage.HMF_S64) {
+                    record.values[slot] = HtspMessage.decodeS64(buf, position, length);
+                } else {
+                    record.refs[slot] = HtspMessage.deserializeValue(buf, type, position, length, false);
+                }
+                record.presentFields |= 1L << slot;
+            }
+            position += length;
+        }
+        return record;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && getPresentSlot((String) key) >= 0;
+    }
+
+    @Override
+    public String getString(String key) {
+        int slot = getPresentSlot(key);
+        return slot >= 0 ? getString(slot) : null;
+    }
+
+    @Override
+    public String getString(String key, String fallback) {
+        int slot = getPresentSlot(key);
+        return slot >= 0 ? getString(slot) : fallback;
+    }
+
+    @Override
+    public int getInteger(String key) {
+        return (int) getLong(key);
+    }
+
+    @Override
+    public int getInteger(String key, int fallback) {
+        int slot = getPresentSlot(key);
+        return slot >= 0 ? (int) values[slot] : fallback;
+    }
+
+    @Override
+    public long getLong(String key) {
+        int slot = getPresentSlot(key);
+        if (slot < 0) {
+            throw new RuntimeException("Attempted to getLong(" + key + ") on non-existent key");
+        }
+        return values[slot];
+    }
+
+    @Override
+    public long getLong(String key, long fallback) {
+        int slot = getPresentSlot(key);
+        return slot >= 0 ? values[slot] : fallback;
+    }
+
+    @Override
+    public List<Integer> getIntegerList(String key) {
+        int slot = getPresentSlot(key);
+        return slot >= 0 ? getIntegerList(slot) : new ArrayList<Integer>();
+    }
+
+    /**
+     * Returns the slot of the field with the given name or -1 if it is
+     * not part of the schema or was not contained in the message
+     */
+    private int getPresentSlot(String key) {
+        int slot = schema.getSlot(key);
+        return slot >= 0 && has(slot) ? slot : -1;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(method).append(" {");
+        String separator = "";
+        for (int slot = 0; slot < values.length; slot++) {
+            if (has(slot)) {
+                sb.append(separator).append(schema.getFieldName(slot)).append('=');
+                sb.append(refs[slot] != null ? refs[slot] : values[slot]);
+                separator = ", ";
+            }
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,6 @@
+package org.tvheadend.htsp
+
+interface HtspRecordListener {
+
+    fun onRecord(record: HtspRecord)
+}
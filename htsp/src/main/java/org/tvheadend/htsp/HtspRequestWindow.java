@@ -0,0 +1,112 @@
+package org.tvheadend.htsp;
+
+import android.os.SystemClock;
+
+/**
+ * Limits the number of requests that were sent but whose responses were not yet handled,
+ * and the sum of the response sizes that are expected for them. Bulk operations take a
+ * place in the window before each request, so they keep a limited number of requests
+ * in flight instead of sending all at once or one after another.
+ */
+public final class HtspRequestWindow {
+
+    private final int maxRequests;
+    private final long maxBytes;
+
+    private int requestCount;
+    private long byteCount;
+    private long waitCount;
+    private long waitTime;
+
+    /**
+     * @param maxRequests The number of requests that may be in flight
+     * @param maxBytes    The sum of the expected response sizes that may be in flight
+     */
+    public HtspRequestWindow(int maxRequests, long maxBytes) {
+        this.maxRequests = Math.max(1, maxRequests);
+        this.maxBytes = Math.max(1, maxBytes);
+    }
+
+    /**
+     * Waits until the window has space for another request with the given expected
+     * response size. A request that is larger than the whole window is admitted when
+     * no other request is in flight.
+     *
+     * @param size    The expected response size in bytes
+     * @param timeout The time in milliseconds to wait at most, zero waits without limit
+     * @return True if the request was admitted, false if the timeout passed before
+     */
+    synchronized boolean acquire(long size, long timeout) throws InterruptedException {
+        if (fits(size)) {
+            add(size);
+            return true;
+        }
+        long start = SystemClock.elapsedRealtime();
+        waitCount++;
+        try {
+            while (!fits(size)) {
+                if (timeout > 0) {
+                    long remaining = start + timeout - SystemClock.elapsedRealtime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    wait(remaining);
+                } else {
+                    wait();
+                }
+            }
+        } finally {
+            waitTime += SystemClock.elapsedRealtime() - start;
+        }
+        add(size);
+        return true;
+    }
+
+    synchronized void release(long size) {
+        requestCount--;
+        byteCount -= size;
+        notifyAll();
+    }
+
+    private boolean fits(long size) {
+        if (requestCount == 0) {
+            return true;
+        }
+        return requestCount < maxRequests && byteCount + size <= maxBytes;
+    }
+
+    private void add(long size) {
+        requestCount++;
+        byteCount += size;
+    }
+
+    public int getMaxRequests() {
+        return maxRequests;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized int getRequestCount() {
+        return requestCount;
+    }
+
+    public synchronized long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * Returns how often a request had to wait for space in the window
+     */
+    public synchronized long getWaitCount() {
+        return waitCount;
+    }
+
+    /**
+     * Returns the time in milliseconds that requests waited for space in the window
+     */
+    public synchronized long getWaitTime() {
+        return waitTime;
+    }
+}
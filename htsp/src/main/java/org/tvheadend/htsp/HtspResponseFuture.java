@@ -0,0 +1,242 @@
+package org.tvheadend.htsp;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Pending response of a request that was sent to the server. The future is completed by
+ * the connection thread when the response arrives, which wakes up waiting threads right
+ * away. The listener and callback are called by the executor that was given for the request.
+ * The future fails with a {@link TimeoutException} as cause when the deadline of the request
+ * passes, or with an {@link IOException} when the connection is closed before. Cancelling
+ * the future discards the response. A cancelled request stays pending and keeps its place in
+ * the window until the response arrives or the deadline passes, because the server still sends
+ * the response and the connection drops it then.
+ */
+public final class HtspResponseFuture implements Future<HtspMessage> {
+
+    /**
+     * Called once the future is done, either from the executor of the request or
+     * the thread that cancelled it. Use {@link #get()} to obtain the result.
+     */
+    public interface Callback {
+        void onComplete(@NonNull HtspResponseFuture future);
+    }
+
+    private final int seq;
+    private final long deadline;
+    private final HtspResponseListener listener;
+    private final Executor executor;
+
+    private Callback callback;
+    private HtspRequestWindow window;
+    private long windowSize;
+    private boolean done;
+    private boolean cancelled;
+    private HtspMessage response;
+    private Throwable failure;
+
+    /**
+     * @param deadline        The time based on {@link SystemClock#elapsedRealtime()} when the request
+     *                        fails if no response was received, or zero if the request never expires
+     * @param listener        Optional listener that is only informed about the response
+     * @param executor        Calls the listener and the callback, it must not block
+     */
+    HtspResponseFuture(int seq, long deadline, @Nullable HtspResponseListener listener, @NonNull Executor executor) {
+        this.seq = seq;
+        this.deadline = deadline;
+        this.listener = listener;
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the window the request took a place in. The place is freed once the future is done
+     * and the listener and callback were called, or when a cancelled request is finished.
+     */
+    void setWindow(@NonNull HtspRequestWindow window, long size) {
+        this.window = window;
+        this.windowSize = size;
+    }
+
+    int getSeq() {
+        return seq;
+    }
+
+    long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Sets the callback that is called once the future is done. In case it is already
+     * done the callback is called right away from the current thread.
+     */
+    public void setCallback(@NonNull Callback callback) {
+        synchronized (this) {
+            if (!done) {
+                this.callback = callback;
+                return;
+            }
+        }
+        callback.onComplete(this);
+    }
+
+    void complete(@NonNull HtspMessage response) {
+        Callback completeCallback;
+        synchronized (this) {
+            if (done) {
+                if (cancelled) {
+                    // The response of a cancelled request arrived or it expired
+                    releaseWindow();
+                }
+                return;
+            }
+            this.response = response;
+            done = true;
+            completeCallback = callback;
+            notifyAll();
+        }
+        notifyDone(response, completeCallback);
+    }
+
+    void fail(@NonNull Throwable failure) {
+        Callback completeCallback;
+        synchronized (this) {
+            if (done) {
+                if (cancelled) {
+                    // The response of a cancelled request arrived or it expired
+                    releaseWindow();
+                }
+                return;
+            }
+            this.failure = failure;
+            done = true;
+            completeCallback = callback;
+            notifyAll();
+        }
+        notifyDone(null, completeCallback);
+    }
+
+    /**
+     * Calls the listener with the response, if there is one, and the callback on the executor
+     */
+    private void notifyDone(@Nullable final HtspMessage response, @Nullable final Callback completeCallback) {
+        final HtspResponseListener responseListener = response != null ? listener : null;
+        if (responseListener == null && completeCallback == null) {
+            releaseWindow();
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (responseListener != null) {
+                        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+                        synchronized (responseListener) {
+                            responseListener.handleResponse(response);
+                        }
+                    }
+                    if (completeCallback != null) {
+                        completeCallback.onComplete(HtspResponseFuture.this);
+                    }
+                } finally {
+                    releaseWindow();
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        Callback completeCallback;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            cancelled = true;
+            done = true;
+            completeCallback = callback;
+            notifyAll();
+        }
+        if (completeCallback != null) {
+            completeCallback.onComplete(this);
+        }
+        return true;
+    }
+
+    private void releaseWindow() {
+        HtspRequestWindow releasedWindow;
+        synchronized (this) {
+            releasedWindow = window;
+            window = null;
+        }
+        if (releasedWindow != null) {
+            releasedWindow.release(windowSize);
+        }
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized HtspMessage get() throws InterruptedException, ExecutionException {
+        if (!done) {
+            // A listener that waits must not hold up the connection thread that receives the response
+            HtspDispatcher.setWaitingForResponse(true);
+            try {
+                while (!done) {
+                    wait();
+                }
+            } finally {
+                HtspDispatcher.setWaitingForResponse(false);
+            }
+        }
+        return getResult();
+    }
+
+    @Override
+    public synchronized HtspMessage get(long timeout, @NonNull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long end = SystemClock.elapsedRealtime() + unit.toMillis(timeout);
+        if (!done) {
+            HtspDispatcher.setWaitingForResponse(true);
+            try {
+                while (!done) {
+                    long remaining = end - SystemClock.elapsedRealtime();
+                    if (remaining <= 0) {
+                        throw new TimeoutException("No response received for request " + seq);
+                    }
+                    wait(remaining);
+                }
+            } finally {
+                HtspDispatcher.setWaitingForResponse(false);
+            }
+        }
+        return getResult();
+    }
+
+    private HtspMessage getResult() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException("Request " + seq + " was cancelled");
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return response;
+    }
+}
@@ -0,0 +1,104 @@
+package org.tvheadend.htsp;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Describes the fields of one or more server methods that shall be decoded into a
+ * {@link HtspRecord} instead of a {@link HtspMessage}. Each field that is added gets a
+ * fixed slot in the record, all other fields of the received messages are skipped.
+ * All fields must be added before the schema is registered at the connection.
+ */
+public final class HtspSchema {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // The fields that are present in a record are stored as bits of a long
+    static final int MAX_FIELDS = Long.SIZE;
+
+    private final String[] methods;
+    private final byte[][] methodBytes;
+    private final ArrayList<String> fieldNames = new ArrayList<>();
+    private final HashMap<String, Integer> fieldSlots = new HashMap<>();
+
+    public HtspSchema(@NonNull String... methods) {
+        this.methods = methods;
+        this.methodBytes = new byte[methods.length][];
+        for (int i = 0; i < methods.length; i++) {
+            methodBytes[i] = methods[i].getBytes(UTF_8);
+        }
+    }
+
+    /**
+     * Adds the field with the given name to the schema
+     *
+     * @return The slot that is used to get the value of the field from a record
+     */
+    public int addField(@NonNull String name) {
+        if (fieldSlots.containsKey(name)) {
+            throw new IllegalArgumentException("Field " + name + " was already added");
+        }
+        if (fieldNames.size() == MAX_FIELDS) {
+            throw new IllegalStateException("Schema can not contain more than " + MAX_FIELDS + " fields");
+        }
+        int slot = fieldNames.size();
+        fieldNames.add(name);
+        fieldSlots.put(name, slot);
+        return slot;
+    }
+
+    /**
+     * Adds the fields with the given names to the schema in case
+     * their values are only accessed by the name of the field
+     */
+    @NonNull
+    public HtspSchema addFields(@NonNull String... names) {
+        for (String name : names) {
+            addField(name);
+        }
+        return this;
+    }
+
+    int getFieldCount() {
+        return fieldNames.size();
+    }
+
+    String getFieldName(int slot) {
+        return fieldNames.get(slot);
+    }
+
+    /**
+     * Returns the slot of the field with the given name or -1 if the field is not part of the schema
+     */
+    int getSlot(String name) {
+        Integer slot = fieldSlots.get(name);
+        return slot != null ? slot : -1;
+    }
+
+    /**
+     * Compares the method name that is stored in the given bytes of the buffer
+     * with the methods of the schema without decoding it.
+     *
+     * @return The method name of the schema or null if the schema does not cover the method
+     */
+    String matchMethod(ByteBuffer buf, int offset, int length) {
+        for (int m = 0; m < methodBytes.length; m++) {
+            byte[] bytes = methodBytes[m];
+            if (bytes.length != length) {
+                continue;
+            }
+            int i = 0;
+            while (i < length && buf.get(offset + i) == bytes[i]) {
+                i++;
+            }
+            if (i == length) {
+                return methods[m];
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,156 @@
+package org.tvheadend.htsp;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Queue of the messages that shall be sent to the server with one queue per priority.
+ * Interactive and streaming control messages are always sent first, in this order.
+ * The remaining capacity is shared between bulk sync and background file messages
+ * by weighted round robin, so that none of both can starve the other.
+ * <p>
+ * Messages may be added from any thread, they are only taken by the connection thread.
+ */
+final class HtspSendQueue {
+
+    private static final int BULK_SYNC_WEIGHT = 3;
+    private static final int BACKGROUND_FILE_WEIGHT = 1;
+
+    private static final Map<String, HtspConnection.Priority> METHOD_PRIORITIES = new HashMap<>();
+
+    static {
+        METHOD_PRIORITIES.put("subscribe", HtspConnection.Priority.STREAMING_CONTROL);
+        METHOD_PRIORITIES.put("unsubscribe", HtspConnection.Priority.STREAMING_CONTROL);
+        METHOD_PRIORITIES.put("subscriptionChangeWeight", HtspConnection.Priority.STREAMING_CONTROL);
+        METHOD_PRIORITIES.put("subscriptionSkip", HtspConnection.Priority.STREAMING_CONTROL);
+        METHOD_PRIORITIES.put("subscriptionSeek", HtspConnection.Priority.STREAMING_CONTROL);
+        METHOD_PRIORITIES.put("subscriptionSpeed", HtspConnection.Priority.STREAMING_CONTROL);
+        METHOD_PRIORITIES.put("subscriptionLive", HtspConnection.Priority.STREAMING_CONTROL);
+        METHOD_PRIORITIES.put("subscriptionFilterStream", HtspConnection.Priority.STREAMING_CONTROL);
+        METHOD_PRIORITIES.put("enableAsyncMetadata", HtspConnection.Priority.BULK_SYNC);
+        METHOD_PRIORITIES.put("getEvents", HtspConnection.Priority.BULK_SYNC);
+        METHOD_PRIORITIES.put("epgQuery", HtspConnection.Priority.BULK_SYNC);
+        METHOD_PRIORITIES.put("fileOpen", HtspConnection.Priority.BACKGROUND_FILE);
+        METHOD_PRIORITIES.put("fileRead", HtspConnection.Priority.BACKGROUND_FILE);
+        METHOD_PRIORITIES.put("fileSeek", HtspConnection.Priority.BACKGROUND_FILE);
+        METHOD_PRIORITIES.put("fileStat", HtspConnection.Priority.BACKGROUND_FILE);
+        METHOD_PRIORITIES.put("fileClose", HtspConnection.Priority.BACKGROUND_FILE);
+    }
+
+    static final class Entry {
+        final HtspMessage message;
+        final HtspConnection.Priority priority;
+        final long queueTime;
+
+        Entry(HtspMessage message, HtspConnection.Priority priority) {
+            this.message = message;
+            this.priority = priority;
+            this.queueTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private final List<ConcurrentLinkedQueue<Entry>> queues;
+    private int backgroundTurn;
+
+    private final AtomicLongArray sentCounts;
+    private final AtomicLongArray totalWaitTimes;
+    private final AtomicLongArray maxWaitTimes;
+
+    HtspSendQueue() {
+        int count = HtspConnection.Priority.values().length;
+        queues = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            queues.add(new ConcurrentLinkedQueue<Entry>());
+        }
+        sentCounts = new AtomicLongArray(count);
+        totalWaitTimes = new AtomicLongArray(count);
+        maxWaitTimes = new AtomicLongArray(count);
+    }
+
+    /**
+     * Returns the priority of messages with the given method in case no other was requested.
+     * Methods that are not known to belong to a streaming or background task are interactive.
+     */
+    static HtspConnection.Priority getDefaultPriority(String method) {
+        HtspConnection.Priority priority = method != null ? METHOD_PRIORITIES.get(method) : null;
+        return priority != null ? priority : HtspConnection.Priority.INTERACTIVE;
+    }
+
+    void add(HtspMessage message, HtspConnection.Priority priority) {
+        queues.get(priority.ordinal()).add(new Entry(message, priority));
+    }
+
+    boolean isEmpty() {
+        for (ConcurrentLinkedQueue<Entry> queue : queues) {
+            if (!queue.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void clear() {
+        for (ConcurrentLinkedQueue<Entry> queue : queues) {
+            queue.clear();
+        }
+    }
+
+    /**
+     * Takes the next message that shall be sent
+     *
+     * @param backgroundAllowed False if only interactive and streaming control messages may be taken
+     * @return The next message or null if none is queued
+     */
+    Entry poll(boolean backgroundAllowed) {
+        Entry entry = queues.get(HtspConnection.Priority.INTERACTIVE.ordinal()).poll();
+        if (entry == null) {
+            entry = queues.get(HtspConnection.Priority.STREAMING_CONTROL.ordinal()).poll();
+        }
+        if (entry == null && backgroundAllowed) {
+            entry = pollBackground();
+        }
+        if (entry != null) {
+            int index = entry.priority.ordinal();
+            long waitTime = SystemClock.elapsedRealtime() - entry.queueTime;
+            sentCounts.incrementAndGet(index);
+            totalWaitTimes.addAndGet(index, waitTime);
+            if (waitTime > maxWaitTimes.get(index)) {
+                maxWaitTimes.set(index, waitTime);
+            }
+        }
+        return entry;
+    }
+
+    private Entry pollBackground() {
+        ConcurrentLinkedQueue<Entry> bulkSync = queues.get(HtspConnection.Priority.BULK_SYNC.ordinal());
+        ConcurrentLinkedQueue<Entry> backgroundFile = queues.get(HtspConnection.Priority.BACKGROUND_FILE.ordinal());
+
+        boolean bulkSyncTurn = backgroundTurn < BULK_SYNC_WEIGHT;
+        backgroundTurn = (backgroundTurn + 1) % (BULK_SYNC_WEIGHT + BACKGROUND_FILE_WEIGHT);
+
+        Entry entry = bulkSyncTurn ? bulkSync.poll() : backgroundFile.poll();
+        if (entry == null) {
+            entry = bulkSyncTurn ? backgroundFile.poll() : bulkSync.poll();
+        }
+        return entry;
+    }
+
+    long getSentCount(HtspConnection.Priority priority) {
+        return sentCounts.get(priority.ordinal());
+    }
+
+    long getAverageWaitTime(HtspConnection.Priority priority) {
+        long count = sentCounts.get(priority.ordinal());
+        return count > 0 ? totalWaitTimes.get(priority.ordinal()) / count : 0;
+    }
+
+    long getMaxWaitTime(HtspConnection.Priority priority) {
+        return maxWaitTimes.get(priority.ordinal());
+    }
+}
@@ -0,0 +1,204 @@
+package org.tvheadend.htsp;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HtspMessageTest {
+
+    private static final long[] S64_VALUES = {
+            0, 1, 127, 128, 255, 256, 65535, 65536, Integer.MAX_VALUE, 1L << 32,
+            Long.MAX_VALUE, -1, -128, Integer.MIN_VALUE, Long.MIN_VALUE
+    };
+
+    @Test
+    public void s64ValuesAreEncodedWithoutTrailingZeroBytes() {
+        assertEquals(0, HtspMessage.getS64Length(0));
+        assertEquals(1, HtspMessage.getS64Length(255));
+        assertEquals(2, HtspMessage.getS64Length(256));
+        assertEquals(4, HtspMessage.getS64Length(Integer.MAX_VALUE));
+        assertEquals(5, HtspMessage.getS64Length(1L << 32));
+        assertEquals(8, HtspMessage.getS64Length(-1));
+    }
+
+    @Test
+    public void s64ValuesSurviveRoundTrip() throws IOException {
+        HtspMessage message = new HtspMessage();
+        for (int i = 0; i < S64_VALUES.length; i++) {
+            message.put("long" + i, S64_VALUES[i]);
+        }
+        message.put("integer", -5);
+
+        for (boolean lazy : new boolean[]{false, true}) {
+            HtspMessage decoded = roundTrip(message, lazy);
+            for (int i = 0; i < S64_VALUES.length; i++) {
+                assertEquals(S64_VALUES[i], decoded.getLong("long" + i));
+            }
+            assertEquals(-5, decoded.getInteger("integer"));
+        }
+    }
+
+    @Test
+    public void allTypesSurviveRoundTrip() throws IOException {
+        HtspMessage nested = new HtspMessage();
+        nested.put("name", "nested");
+        nested.put("id", 42);
+
+        List<Object> channels = new ArrayList<>();
+        channels.add(1);
+        channels.add(300);
+        channels.add(70000);
+
+        List<Object> maps = new ArrayList<>();
+        maps.add(nested);
+
+        HtspMessage message = new HtspMessage();
+        message.setMethod("eventAdd");
+        message.put("title", "Tatort äöü € 📺");
+        message.put("empty", "");
+        message.put("payload", new byte[]{0, 1, 2, (byte) 0xFF});
+        message.put("nested", nested);
+        message.put("channels", channels);
+        message.put("maps", maps);
+
+        for (boolean lazy : new boolean[]{false, true}) {
+            HtspMessage decoded = roundTrip(message, lazy);
+            assertEquals("eventAdd", decoded.getMethod());
+            assertEquals("Tatort äöü € 📺", decoded.getString("title"));
+            assertEquals("", decoded.getString("empty"));
+            assertArrayEquals(new byte[]{0, 1, 2, (byte) 0xFF}, decoded.getByteArray("payload"));
+
+            HtspMessage decodedNested = (HtspMessage) decoded.get("nested");
+            assertEquals("nested", decodedNested.getString("name"));
+            assertEquals(42, decodedNested.getInteger("id"));
+
+            List<Integer> decodedChannels = decoded.getIntegerList("channels");
+            assertEquals(3, decodedChannels.size());
+            assertEquals(1, (int) decodedChannels.get(0));
+            assertEquals(300, (int) decodedChannels.get(1));
+            assertEquals(70000, (int) decodedChannels.get(2));
+
+            HtspMessage decodedMap = (HtspMessage) decoded.getList("maps").get(0);
+            assertEquals(42, decodedMap.getInteger("id"));
+        }
+    }
+
+    @Test
+    public void lazyValuesDoNotLeaveTheMessage() throws IOException {
+        HtspMessage nested = new HtspMessage();
+        nested.put("id", 1);
+        List<Object> list = new ArrayList<>();
+        list.add(2);
+
+        HtspMessage message = new HtspMessage();
+        message.put("nested", nested);
+        message.put("list", list);
+
+        HtspMessage decoded = roundTrip(message, true);
+        for (Map.Entry<String, Object> entry : decoded.entrySet()) {
+            assertTrue(entry.getValue() instanceof HtspMessage || entry.getValue() instanceof List);
+        }
+        for (Object value : decoded.values()) {
+            assertTrue(value instanceof HtspMessage || value instanceof List);
+        }
+        assertTrue(decoded.remove("list") instanceof List);
+        assertTrue(decoded.put("nested", "replaced") instanceof HtspMessage);
+
+        // A decoded message can be encoded again
+        HtspMessage again = roundTrip(roundTrip(message, true), false);
+        assertEquals(1, ((HtspMessage) again.get("nested")).getInteger("id"));
+        assertEquals(2, (int) again.getIntegerList("list").get(0));
+    }
+
+    @Test
+    public void largeListsAreNotLimited() throws IOException {
+        // More than Short.MAX_VALUE bytes in a single list
+        List<Object> list = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            list.add(100000 + i);
+        }
+        HtspMessage message = new HtspMessage();
+        message.put("channels", list);
+
+        HtspMessage decoded = roundTrip(message, false);
+        List<Integer> channels = decoded.getIntegerList("channels");
+        assertEquals(20000, channels.size());
+        assertEquals(119999, (int) channels.get(19999));
+    }
+
+    @Test
+    public void messageIsParsedOnceItWasReceivedCompletely() throws IOException {
+        HtspMessage message = new HtspMessage();
+        message.setMethod("hello");
+        message.put("seq", 7);
+        ByteBuffer encoded = new HtspMessageWriter().write(message);
+
+        // The receive buffer is filled like a channel would do it, one byte after the other
+        ByteBuffer buf = ByteBuffer.allocate(1024);
+        buf.limit(4);
+        HtspMessage decoded = null;
+        while (encoded.hasRemaining()) {
+            assertNull(decoded);
+            buf.put(encoded.get());
+            decoded = HtspMessage.parse(buf);
+        }
+        assertEquals("hello", decoded.getMethod());
+        assertEquals(7, decoded.getInteger("seq"));
+        assertEquals(0, buf.position());
+        assertEquals(4, buf.limit());
+    }
+
+    @Test
+    public void appendedMessagesAreWrittenBehindEachOther() throws IOException {
+        HtspMessageWriter writer = new HtspMessageWriter();
+        for (int i = 0; i < 3; i++) {
+            HtspMessage message = new HtspMessage();
+            message.put("seq", i);
+            writer.append(message);
+        }
+        ByteBuffer buf = writer.flip();
+
+        int offset = 0;
+        for (int i = 0; i < 3; i++) {
+            int length = buf.getInt(offset);
+            HtspMessage decoded = HtspMessage.parse(buf, offset + 4, length, false);
+            assertEquals(i, decoded.getInteger("seq"));
+            offset += 4 + length;
+        }
+        assertEquals(buf.limit(), offset);
+    }
+
+    @Test(expected = IOException.class)
+    public void nullValuesAreRejected() throws IOException {
+        HtspMessage message = new HtspMessage();
+        message.put("value", null);
+        new HtspMessageWriter().write(message);
+    }
+
+    @Test
+    public void missingFieldsReturnTheFallback() {
+        HtspMessage message = new HtspMessage();
+        assertEquals("", message.getMethod());
+        assertEquals(-1, message.getInteger("channelId", -1));
+        assertEquals(-1L, message.getLong("start", -1L));
+        assertFalse(message.getBoolean("enabled", false));
+        assertTrue(message.getIntegerList("channels").isEmpty());
+    }
+
+    private static HtspMessage roundTrip(HtspMessage message, boolean lazy) throws IOException {
+        ByteBuffer buf = new HtspMessageWriter().write(message);
+        int length = buf.getInt(0);
+        assertEquals(buf.limit() - 4, length);
+        return HtspMessage.parse(buf, 4, length, lazy);
+    }
+}
@@ -0,0 +1,111 @@
+package org.tvheadend.htsp;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HtspRecordTest {
+
+    private static final byte[] METHOD_FIELD = "method".getBytes(Charset.forName("UTF-8"));
+
+    private final HtspSchema schema = new HtspSchema("eventAdd", "eventUpdate");
+    private final int eventIdSlot = schema.addField("eventId");
+    private final int titleSlot = schema.addField("title");
+    private final int startSlot = schema.addField("start");
+    private final int contentTypeSlot = schema.addField("contentType");
+    private final int imageSlot = schema.addField("image");
+    private final int channelsSlot = schema.addField("channels");
+
+    @Test
+    public void fieldsOfTheSchemaAreDecodedIntoTheirSlots() throws IOException {
+        List<Object> channels = new ArrayList<>();
+        channels.add(1);
+        channels.add(2);
+
+        HtspMessage message = new HtspMessage();
+        message.setMethod("eventUpdate");
+        message.put("eventId", 123456);
+        message.put("title", "News");
+        message.put("start", 1500000000L);
+        message.put("image", new byte[]{1, 2, 3});
+        message.put("channels", channels);
+        message.put("summary", "Not part of the schema");
+
+        HtspRecord record = decode(message);
+        assertEquals("eventUpdate", record.getMethod());
+        assertEquals(123456, record.getInteger(eventIdSlot));
+        assertEquals("News", record.getString(titleSlot));
+        assertEquals(1500000000L, record.getLong(startSlot));
+        assertArrayEquals(new byte[]{1, 2, 3}, record.getByteArray(imageSlot));
+        assertEquals(2, record.getIntegerList(channelsSlot).size());
+        assertFalse(record.containsKey("summary"));
+        assertNull(record.getString("summary"));
+
+        // The same values are found by the name of the field
+        assertTrue(record.containsKey("title"));
+        assertEquals("News", record.getString("title", ""));
+        assertEquals(123456, record.getInteger("eventId", -1));
+        assertEquals(1500000000L, record.getLong("start"));
+    }
+
+    @Test
+    public void missingFieldsReturnTheFallback() throws IOException {
+        HtspMessage message = new HtspMessage();
+        message.setMethod("eventAdd");
+        message.put("eventId", 1);
+        // Zero is encoded without any bytes, it must still count as present
+        message.put("contentType", 0);
+
+        HtspRecord record = decode(message);
+        assertTrue(record.has(contentTypeSlot));
+        assertEquals(0, record.getInteger(contentTypeSlot, -1));
+        assertFalse(record.has(startSlot));
+        assertEquals(-1L, record.getLong(startSlot, -1L));
+        assertEquals("fallback", record.getString(titleSlot, "fallback"));
+        assertFalse(record.getBoolean(titleSlot, false));
+        assertTrue(record.getIntegerList(channelsSlot).isEmpty());
+        assertTrue(record.getIntegerList("channels").isEmpty());
+    }
+
+    @Test
+    public void otherMethodsAreNotMatched() throws IOException {
+        HtspMessage message = new HtspMessage();
+        message.setMethod("eventDelete");
+        message.put("eventId", 1);
+
+        ByteBuffer buf = new HtspMessageWriter().write(message);
+        int position = HtspMessage.findField(buf, 4, buf.limit(), METHOD_FIELD);
+        int length = HtspMessage.getFieldLength(buf, position, buf.limit());
+        assertNull(schema.matchMethod(buf, position + 6 + METHOD_FIELD.length, length));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fieldsCanOnlyBeAddedOnce() {
+        schema.addField("title");
+    }
+
+    /**
+     * Decodes the message into a record like the connection does it for the received messages
+     */
+    private HtspRecord decode(HtspMessage message) throws IOException {
+        ByteBuffer buf = new HtspMessageWriter().write(message);
+        int limit = buf.limit();
+        int position = HtspMessage.findField(buf, 4, limit, METHOD_FIELD);
+        assertEquals(HtspMessage.HMF_STR, buf.get(position));
+
+        int length = HtspMessage.getFieldLength(buf, position, limit);
+        String method = schema.matchMethod(buf, position + 6 + METHOD_FIELD.length, length);
+        assertEquals(message.getMethod(), method);
+        return HtspRecord.deserialize(schema, method, buf, 4, limit);
+    }
+}